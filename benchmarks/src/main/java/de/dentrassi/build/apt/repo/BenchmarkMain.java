@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks
+ * <p>
+ * This accepts the same arguments as the JMH command line runner, but always
+ * adds the GC profiler, which reports the allocation rate and the allocated
+ * bytes per operation next to the GC activity. Additional profilers can be
+ * added using <code>-prof</code>, e.g. <code>-prof stack</code> or
+ * <code>-prof jfr</code>.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+public final class BenchmarkMain
+{
+    private BenchmarkMain ()
+    {
+    }
+
+    public static void main ( final String[] args ) throws Exception
+    {
+        final CommandLineOptions options = new CommandLineOptions ( args );
+
+        if ( options.shouldHelp () || options.shouldList () || options.shouldListProfilers () || options.shouldListResultFormats () )
+        {
+            Main.main ( args );
+            return;
+        }
+
+        new Runner ( new OptionsBuilder ().parent ( options ).addProfiler ( GCProfiler.class ).build () ).run ();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark digesting a package file
+ * <p>
+ * Compares digesting with a single algorithm, as done by
+ * {@link AptWriter#digest(File, MessageDigest)}, to digesting with all
+ * package digesters in a single pass.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+@State ( Scope.Benchmark )
+@BenchmarkMode ( Mode.AverageTime )
+@OutputTimeUnit ( TimeUnit.MILLISECONDS )
+@Warmup ( iterations = 3, time = 2 )
+@Measurement ( iterations = 5, time = 2 )
+@Fork ( 1 )
+public class DigestBenchmark
+{
+    @Param ( { "MD5", "SHA-1", "SHA-256" } )
+    public String algorithm;
+
+    @Param ( { "1048576", "16777216" } )
+    public int dataSize;
+
+    private File source;
+
+    private File packageFile;
+
+    private List<Digester> digesters;
+
+    @Setup ( Level.Trial )
+    public void setup () throws Exception
+    {
+        this.source = Fixtures.createDirectory ( "source" );
+        this.packageFile = Fixtures.createPackage ( this.source, "bench", "amd64", this.dataSize, false );
+
+        this.digesters = Arrays.<Digester> asList ( //
+                new SimpleDigester ( "MD5sum", "MD5" ), //
+                new SimpleDigester ( "SHA1", "SHA-1" ), //
+                new SimpleDigester ( "SHA256", "SHA-256" ) //
+        );
+    }
+
+    @TearDown ( Level.Trial )
+    public void tearDown () throws Exception
+    {
+        TestPackages.delete ( this.source.toPath () );
+    }
+
+    @Benchmark
+    public String digest () throws Exception
+    {
+        return AptWriter.digest ( this.packageFile, MessageDigest.getInstance ( this.algorithm ) );
+    }
+
+    /**
+     * Digest with all package digesters at once
+     * <p>
+     * This does not depend on the algorithm parameter, compare it to the sum
+     * of the {@link #digest()} results.
+     * </p>
+     */
+    @Benchmark
+    public Map<String, String> multiDigest () throws Exception
+    {
+        return MultiDigest.digest ( this.packageFile, this.digesters );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
+import org.apache.commons.compress.archivers.ar.ArArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+/**
+ * Synthetic package files for the benchmarks
+ * <p>
+ * The package files are created with the {@link TestPackages} of the tests.
+ * The content of the packages is random, but created from a fixed seed, so
+ * that each run uses the same data.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class Fixtures
+{
+    private static final String DEPENDS = "libc6 (>= 2.17), libstdc++6 (>= 4.8)";
+
+    private Fixtures ()
+    {
+    }
+
+    /**
+     * Create a package file
+     * 
+     * @param dir
+     *            the directory to create the package in
+     * @param name
+     *            the name of the package
+     * @param architecture
+     *            the architecture of the package
+     * @param dataSize
+     *            the size of the (uncompressed) payload in bytes
+     * @param xzControl
+     *            whether the control member is compressed with XZ instead of
+     *            GZIP
+     * @return the package file
+     */
+    static File createPackage ( final File dir, final String name, final String architecture, final int dataSize, final boolean xzControl ) throws Exception
+    {
+        final byte[] payload = new byte[dataSize];
+        new Random ( name.hashCode () ).nextBytes ( payload );
+
+        final File debFile = TestPackages.createPackage ( dir, name, "1.0.0", architecture, DEPENDS, payload );
+
+        if ( xzControl )
+        {
+            recompressControl ( debFile );
+        }
+
+        return debFile;
+    }
+
+    /**
+     * Replace the <code>control.tar.gz</code> member of a package file with
+     * a <code>control.tar.xz</code> member
+     * <p>
+     * jdeb always creates a GZIP compressed control member.
+     * </p>
+     */
+    private static void recompressControl ( final File debFile ) throws IOException
+    {
+        final File tmp = new File ( debFile.getParentFile (), debFile.getName () + ".tmp" );
+
+        try ( final ArArchiveInputStream in = new ArArchiveInputStream ( Files.newInputStream ( debFile.toPath () ) );
+              final ArArchiveOutputStream out = new ArArchiveOutputStream ( Files.newOutputStream ( tmp.toPath () ) ) )
+        {
+            ArArchiveEntry entry;
+            while ( ( entry = in.getNextArEntry () ) != null )
+            {
+                byte[] data = readFully ( in );
+                String name = entry.getName ();
+
+                if ( "control.tar.gz".equals ( name ) )
+                {
+                    final byte[] tar = readFully ( new GzipCompressorInputStream ( new ByteArrayInputStream ( data ) ) );
+                    final ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+                    try ( final OutputStream xz = new XZCompressorOutputStream ( bos ) )
+                    {
+                        xz.write ( tar );
+                    }
+                    data = bos.toByteArray ();
+                    name = "control.tar.xz";
+                }
+
+                out.putArchiveEntry ( new ArArchiveEntry ( name, data.length, entry.getUserId (), entry.getGroupId (), entry.getMode (), entry.getLastModified () ) );
+                out.write ( data );
+                out.closeArchiveEntry ();
+            }
+        }
+
+        Files.move ( tmp.toPath (), debFile.toPath (), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    private static byte[] readFully ( final InputStream in ) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        final byte[] buffer = new byte[64 * 1024];
+        int rc;
+        while ( ( rc = in.read ( buffer ) ) > 0 )
+        {
+            out.write ( buffer, 0, rc );
+        }
+        return out.toByteArray ();
+    }
+
+    /**
+     * Create a new temporary directory
+     */
+    static File createDirectory ( final String prefix ) throws IOException
+    {
+        return Files.createTempDirectory ( "apt-repo-" + prefix + "-" ).toFile ();
+    }
+}
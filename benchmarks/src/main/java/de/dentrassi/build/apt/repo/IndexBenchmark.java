@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark writing the index files of a repository
+ * <p>
+ * The package records are read from synthetic package files once per trial.
+ * {@link #writePackageList()} writes the <code>Packages</code> file, all of
+ * its compressed variants and the component release file.
+ * {@link #writeRelease()} writes the distribution release file from the
+ * recorded index file information.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+@State ( Scope.Benchmark )
+@BenchmarkMode ( Mode.AverageTime )
+@OutputTimeUnit ( TimeUnit.MILLISECONDS )
+@Warmup ( iterations = 3, time = 2 )
+@Measurement ( iterations = 5, time = 2 )
+@Fork ( 1 )
+public class IndexBenchmark
+{
+    private static final String ARCHITECTURE = "amd64";
+
+    @Param ( { "100", "1000" } )
+    public int packages;
+
+    /**
+     * The compression formats, separated by <code>+</code>
+     */
+    @Param ( { "GZIP", "GZIP+XZ", "GZIP+XZ+BZIP2+ZSTD" } )
+    public String compressions;
+
+    private File source;
+
+    private File target;
+
+    private AptWriter writer;
+
+    private Distribution distribution;
+
+    private Component component;
+
+    private final List<PackageRecord> records = new ArrayList<PackageRecord> ();
+
+    @Setup ( Level.Trial )
+    public void setup () throws Exception
+    {
+        this.source = Fixtures.createDirectory ( "source" );
+        this.target = Fixtures.createDirectory ( "target" );
+
+        for ( int i = 0; i < this.packages; i++ )
+        {
+            Fixtures.createPackage ( this.source, String.format ( "bench-%05d", i ), ARCHITECTURE, 1024, false );
+        }
+
+        final Configuration configuration = TestPackages.createConfiguration ( this.source, this.target );
+
+        final Set<Compression> compressions = EnumSet.noneOf ( Compression.class );
+        for ( final String compression : this.compressions.split ( "\\+" ) )
+        {
+            compressions.add ( Compression.valueOf ( compression ) );
+        }
+        configuration.setCompressions ( compressions );
+
+        this.distribution = configuration.getDistributions ().iterator ().next ();
+        this.component = this.distribution.getComponents ().iterator ().next ();
+
+        this.writer = new AptWriter ( configuration, TestPackages.QUIET );
+        this.writer.createTargetFolders ();
+
+        final PackageRecord.Interner interner = new PackageRecord.Interner ();
+
+        final File[] packageFiles = this.source.listFiles ( ( dir, name ) -> name.endsWith ( ".deb" ) );
+        Arrays.sort ( packageFiles );
+        for ( final File packageFile : packageFiles )
+        {
+            this.records.add ( this.writer.readArtifact ( packageFile ).toRecord ( interner ) );
+        }
+
+        // the release file benchmark needs the recorded index files
+
+        this.writer.writePackageList ( this.distribution, this.component, ARCHITECTURE, this.records );
+    }
+
+    @TearDown ( Level.Trial )
+    public void tearDown () throws Exception
+    {
+        TestPackages.delete ( this.source.toPath () );
+        TestPackages.delete ( this.target.toPath () );
+    }
+
+    @Benchmark
+    public void writePackageList () throws Exception
+    {
+        this.writer.writePackageList ( this.distribution, this.component, ARCHITECTURE, this.records );
+    }
+
+    @Benchmark
+    public void writeRelease () throws Exception
+    {
+        this.writer.writeRelease ( this.distribution );
+    }
+}
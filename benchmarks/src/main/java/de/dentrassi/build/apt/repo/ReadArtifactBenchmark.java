@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark reading the control information of a package file
+ * <p>
+ * This covers locating and decompressing the control member, parsing the
+ * control file and digesting the package file.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+@State ( Scope.Benchmark )
+@BenchmarkMode ( Mode.AverageTime )
+@OutputTimeUnit ( TimeUnit.MICROSECONDS )
+@Warmup ( iterations = 3, time = 2 )
+@Measurement ( iterations = 5, time = 2 )
+@Fork ( 1 )
+public class ReadArtifactBenchmark
+{
+    @Param ( { "gz", "xz" } )
+    public String control;
+
+    @Param ( { "65536", "4194304" } )
+    public int dataSize;
+
+    private File source;
+
+    private File target;
+
+    private File packageFile;
+
+    private AptWriter writer;
+
+    @Setup ( Level.Trial )
+    public void setup () throws Exception
+    {
+        this.source = Fixtures.createDirectory ( "source" );
+        this.target = Fixtures.createDirectory ( "target" );
+
+        this.packageFile = Fixtures.createPackage ( this.source, "bench", "amd64", this.dataSize, "xz".equals ( this.control ) );
+
+        this.writer = new AptWriter ( TestPackages.createConfiguration ( this.source, this.target ), TestPackages.QUIET );
+        this.writer.createTargetFolders ();
+    }
+
+    @TearDown ( Level.Trial )
+    public void tearDown () throws Exception
+    {
+        TestPackages.delete ( this.source.toPath () );
+        TestPackages.delete ( this.target.toPath () );
+    }
+
+    @Benchmark
+    public BinaryPackagePackagesFile readArtifact () throws Exception
+    {
+        return this.writer.readArtifact ( this.packageFile );
+    }
+}
@@ -15,44 +15,53 @@
  */
 package de.dentrassi.build.apt.repo;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.filefilter.AndFileFilter;
-import org.apache.commons.io.filefilter.CanReadFileFilter;
-import org.apache.commons.io.filefilter.FileFileFilter;
-import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.vafer.jdeb.Console;
 import org.vafer.jdeb.debian.BinaryPackageControlFile;
 
@@ -69,6 +78,7 @@ import org.vafer.jdeb.debian.BinaryPackageControlFile;
  * <ul>
  * <li>Copy all source files to a "pool"</li>
  * <li>Extract the metadata and write Packages files</li>
+ * <li>Compress Packages files with GZIP, XZ, BZIP2 or Zstandard</li>
  * <li>Create Release files for components and distributions</li>
  * <li>Create checksum for all files</li>
  * </ul>
@@ -77,7 +87,6 @@ import org.vafer.jdeb.debian.BinaryPackageControlFile;
  * At the moment this class is still missing some functionality:
  * <ul>
  * <li>Signing is not implemented</li>
- * <li>Compression of index files is not implemented</li>
  * <li>And maybe a few other things</li>
  * </ul>
  * </p>
@@ -91,93 +100,317 @@ public class AptWriter
 
     private File pool;
 
+    /**
+     * The content addressed store of the pool, may be <code>null</code>
+     */
+    private ContentPool contentPool;
+
+    /**
+     * Whether a fallback of the pool strategy was already reported in this
+     * build
+     */
+    private AtomicBoolean poolFallbackReported = new AtomicBoolean ();
+
     private File dists;
 
-    private interface Digester
-    {
-        public MessageDigest create ();
+    private final List<Digester> digestersRelease = new LinkedList<Digester> ();
 
-        public String getName ();
-    }
+    private final List<Digester> digestersPackage = new LinkedList<Digester> ();
 
-    private static class SimpleDigester implements Digester
-    {
+    /**
+     * The column at which the package list of a contents file starts
+     */
+    private static final int CONTENTS_COLUMN = 60;
 
-        private final String name;
+    private static final DateTimeFormatter DF = DateTimeFormatter.ofPattern ( "EEE, dd MMM yyyy HH:mm:ss z", Locale.US ).withZone ( ZoneId.of ( "UTC" ) );
 
-        private final String javaName;
+    private static class IngestedPackage
+    {
+        private final Map<Component, PackageRecord> packageRecords;
 
-        public SimpleDigester ( final String name, String javaName )
+        public IngestedPackage ( final Map<Component, PackageRecord> packageRecords )
         {
-            this.name = name;
-            this.javaName = javaName;
+            this.packageRecords = packageRecords;
         }
 
-        @Override
-        public String getName ()
+        /**
+         * Get the package records, by component
+         * <p>
+         * The records of one package only differ in the file name.
+         * </p>
+         */
+        public Map<Component, PackageRecord> getPackageRecords ()
         {
-            return this.name;
+            return this.packageRecords;
         }
+    }
 
-        @Override
-        public MessageDigest create ()
-        {
-            try
-            {
-                return MessageDigest.getInstance ( this.javaName );
-            }
-            catch ( final Exception e )
-            {
-                throw new RuntimeException ( e );
-            }
-        }
+    /**
+     * The registered packages, by component and architecture
+     */
+    private final ConcurrentMap<Component, ConcurrentMap<String, PackageList>> files = new ConcurrentHashMap<Component, ConcurrentMap<String, PackageList>> ();
 
-    }
+    private final PackageRecord.Interner interner = new PackageRecord.Interner ();
 
-    private final List<Digester> digestersRelease = new LinkedList<AptWriter.Digester> ();
+    private final Console console;
 
-    private final List<Digester> digestersPackage = new LinkedList<AptWriter.Digester> ();
+    /**
+     * Size and checksums of the index files written in this run, by
+     * distribution and file name relative to the distribution directory
+     */
+    private final ConcurrentMap<Distribution, Map<String, FileInformation>> indexFiles = new ConcurrentHashMap<Distribution, Map<String, FileInformation>> ();
 
-    private static final DateFormat DF;
+    /**
+     * Size and checksums of the index files listed by the existing release
+     * files, only used in update mode
+     */
+    private final Map<Distribution, Map<String, FileInformation>> previousIndexFiles = new HashMap<Distribution, Map<String, FileInformation>> ();
 
-    private final Map<Component, Map<String, List<BinaryPackagePackagesFile>>> files = new HashMap<Component, Map<String, List<BinaryPackagePackagesFile>>> ();
+    /**
+     * The executor for writing package lists, <code>null</code> when running
+     * single threaded
+     */
+    private ExecutorService indexExecutor;
 
-    private final Console console;
+    /**
+     * The executor for compressing index files, <code>null</code> when running
+     * single threaded
+     * <p>
+     * This is separate from the {@link #indexExecutor}, since the index jobs
+     * wait for their compression tasks.
+     * </p>
+     */
+    private ExecutorService compressionExecutor;
 
-    static
-    {
-        DF = new SimpleDateFormat ( "EEE, dd MMM yyyy HH:mm:ss z", Locale.US );
-        DF.setTimeZone ( TimeZone.getTimeZone ( "UTC" ) );
-    }
+    /**
+     * The package metadata cache, may be <code>null</code>
+     */
+    private PackageCache cache;
+
+    /**
+     * Whether an existing repository gets updated
+     */
+    private boolean update;
+
+    /**
+     * The pool files of the existing package lists, and of the packages added
+     * since, only used in update mode
+     */
+    private final Set<String> listedFilenames = ConcurrentHashMap.newKeySet ();
+
+    /**
+     * The package files of the pool files
+     */
+    private final SourceIndex sources;
+
+    /**
+     * The package files of the pool files written in this run
+     */
+    private final ConcurrentMap<String, File> poolSources = new ConcurrentHashMap<String, File> ();
+
+    /**
+     * The pool files written in this run which are provided by more than one
+     * package file
+     */
+    private final Set<String> sharedPoolFiles = ConcurrentHashMap.newKeySet ();
+
+    /**
+     * Pool files which removed or changed package files no longer provide
+     */
+    private final Set<String> releasedPoolFiles = ConcurrentHashMap.newKeySet ();
+
+    /**
+     * Architectures with new or changed packages by component, only used in
+     * update mode
+     */
+    private final ConcurrentMap<Component, Set<String>> changed = new ConcurrentHashMap<Component, Set<String>> ();
+
+    /**
+     * Time and size measurements of this build
+     */
+    private final BuildReport report = new BuildReport ();
+
+    /**
+     * The file paths of each package, by pool file name, only used when
+     * creating contents files
+     */
+    private final ConcurrentMap<String, List<String>> packageContents = new ConcurrentHashMap<String, List<String>> ();
+
+    private final Object contentsByHashLock = new Object ();
+
+    /**
+     * The file paths of the package files read in this run, until they are
+     * assigned to their pool files
+     */
+    private final ConcurrentMap<File, List<String>> scannedContents = new ConcurrentHashMap<File, List<String>> ();
+
+    private Router router;
+
+    /**
+     * The name of the package list patches created by this build
+     */
+    private String patchName;
 
     public AptWriter ( final Configuration configuration, final Console console )
     {
         this.console = console;
         this.configuration = configuration.clone ();
+        this.sources = new SourceIndex ( console );
 
-        this.digestersRelease.add ( new SimpleDigester ( "MD5Sum", "MD5" ) );
-        this.digestersRelease.add ( new SimpleDigester ( "SHA1", "SHA-1" ) );
-        this.digestersRelease.add ( new SimpleDigester ( "SHA256", "SHA-256" ) );
-
-        this.digestersPackage.add ( new SimpleDigester ( "MD5sum", "MD5" ) ); // yes, this is really the difference
-        this.digestersPackage.add ( new SimpleDigester ( "SHA1", "SHA-1" ) );
-        this.digestersPackage.add ( new SimpleDigester ( "SHA256", "SHA-256" ) );
+        for ( final Checksum checksum : Checksum.values () )
+        {
+            if ( this.configuration.getChecksums () != null && this.configuration.getChecksums ().contains ( checksum ) )
+            {
+                this.digestersRelease.add ( checksum.createReleaseDigester () );
+                this.digestersPackage.add ( checksum.createPackageDigester () );
+            }
+        }
     }
 
     public void build () throws Exception
     {
-        if ( this.configuration.getTargetFolder ().exists () )
+        if ( this.configuration.getPublishStrategy () == null || this.configuration.getPublishStrategy () == PublishStrategy.DIRECT )
+        {
+            buildRepository ();
+            return;
+        }
+
+        final StagedPublish publish = new StagedPublish ( this.configuration.getTargetFolder ().toPath (), this.configuration.getPublishStrategy (), this.console );
+
+        final File target = this.configuration.getTargetFolder ();
+
+        boolean success = false;
+        try
+        {
+            final File staging = publish.prepare ( this.configuration.isUpdate () ).toFile ();
+
+            // a staged build always creates a new repository or updates a copy
+            this.configuration.setTargetFolder ( staging );
+
+            buildRepository ();
+            publish.commit ();
+            success = true;
+        }
+        finally
+        {
+            // later changes go to the published repository
+            this.configuration.setTargetFolder ( target );
+
+            if ( !success )
+            {
+                publish.abort ();
+            }
+        }
+
+        createTargetFolders ();
+    }
+
+    private void buildRepository () throws Exception
+    {
+        this.report.start ();
+
+        this.update = this.configuration.isUpdate () && this.configuration.getTargetFolder ().exists ();
+
+        if ( !this.configuration.isUpdate () && this.configuration.getTargetFolder ().exists () )
         {
             throw new IllegalStateException ( "The target path must not exist: " + this.configuration.getTargetFolder () );
         }
 
         if ( !this.configuration.getSourceFolder ().isDirectory () )
         {
-            throw new IllegalStateException ( "The source path must exist and must be a directory: " + this.configuration.getTargetFolder () );
+            throw new IllegalStateException ( "The source path must exist and must be a directory: " + this.configuration.getSourceFolder () );
         }
 
         this.configuration.validate ();
+        this.router = new Router ( this.configuration );
+
+        createTargetFolders ();
+
+        if ( this.update )
+        {
+            loadPackageLists ();
+            this.sources.load ( this.configuration.getTargetFolder () );
+            if ( this.configuration.isContents () )
+            {
+                this.packageContents.putAll ( ContentsIndex.load ( this.configuration.getTargetFolder (), this.console ) );
+            }
+        }
+
+        if ( this.configuration.getCacheFile () != null )
+        {
+            this.cache = new PackageCache ( this.configuration.getCacheFile (), this.configuration.isCacheFileKey (), this.console );
+            this.cache.load ();
+        }
+
+        final SourceScanner scanner = new SourceScanner ( this.configuration, this.console );
+
+        if ( this.configuration.getThreads () > 1 )
+        {
+            processPackageFiles ( scanner, this.configuration.getThreads () );
+        }
+        else
+        {
+            scanner.scan ( null, file -> processPackageFile ( file.getFile () ) );
+        }
+
+        this.report.add ( BuildReport.Phase.SCAN, scanner.getNanos (), scanner.getBytes () );
+
+        if ( this.cache != null )
+        {
+            this.cache.store ( this.configuration.getSourceFolder () );
+        }
+
+        removeReleasedPoolFiles ();
+
+        this.patchName = PackagesDiff.makePatchName ( Instant.now () );
+
+        if ( this.configuration.getThreads () > 1 )
+        {
+            this.indexExecutor = Executors.newFixedThreadPool ( this.configuration.getThreads () );
+            this.compressionExecutor = Executors.newFixedThreadPool ( this.configuration.getThreads () );
+        }
+
+        try
+        {
+            writePackageLists ();
+            reportPackageRecords ();
+            releaseStanzas ();
+            cleanupContentPool ();
+            storeSources ();
+        }
+        finally
+        {
+            if ( this.indexExecutor != null )
+            {
+                this.indexExecutor.shutdownNow ();
+                this.indexExecutor = null;
+            }
+            if ( this.compressionExecutor != null )
+            {
+                this.compressionExecutor.shutdownNow ();
+                this.compressionExecutor = null;
+            }
+        }
+
+        this.report.finish ();
+
+        if ( this.configuration.getReportFile () != null )
+        {
+            this.console.info ( "Writing report: " + this.configuration.getReportFile () );
+            this.report.write ( this.configuration.getReportFile (), this.configuration.getReportSlowest () );
+        }
+        if ( this.configuration.isReportSummary () )
+        {
+            this.report.log ( this.console, this.configuration.getReportSlowest () );
+        }
+    }
 
+    /**
+     * Create the target folder and its <code>pool</code> and <code>dists</code>
+     * folders
+     */
+    void createTargetFolders ()
+    {
         this.configuration.getTargetFolder ().mkdirs ();
 
         this.pool = new File ( this.configuration.getTargetFolder (), "pool" );
@@ -186,223 +419,1195 @@ public class AptWriter
         this.pool.mkdirs ();
         this.dists.mkdirs ();
 
-        final FileFilter debFilter = new AndFileFilter ( //
-        Arrays.asList ( //
-                CanReadFileFilter.CAN_READ, //
-                FileFileFilter.INSTANCE, //
-                new SuffixFileFilter ( ".deb" ) //
-            ) //
-        );
+        this.poolFallbackReported = new AtomicBoolean ();
+        this.contentPool = this.configuration.isContentAddressedPool () ? new ContentPool ( this.pool, this.configuration.getPoolStrategy (), this.console, this.poolFallbackReported ) : null;
+    }
+
+    /**
+     * Add or replace a package file of a built repository
+     * <p>
+     * The change is published by {@link #publishChanges()}.
+     * </p>
+     * 
+     * @param packageFile
+     *            the new or changed package file
+     */
+    void updatePackageFile ( final File packageFile ) throws Exception
+    {
+        this.update = true;
+        processPackageFile ( packageFile );
+    }
+
+    /**
+     * Remove a package file from a built repository
+     * <p>
+     * The packages created from the package file are removed, as well as
+     * their pool files, unless another package file with the same content
+     * still provides them. If a directory was removed, this is done for all
+     * package files of the directory which no longer exist. The packages and
+     * pool files are removed when the change is published by
+     * {@link #publishChanges()}.
+     * </p>
+     * 
+     * @param packageFile
+     *            the removed package file or directory
+     */
+    void removePackageFile ( final File packageFile ) throws IOException
+    {
+        this.update = true;
+
+        final String sourcePath = getSourcePath ( packageFile );
+
+        final Set<String> paths = new LinkedHashSet<String> ();
+        if ( this.sources.get ( sourcePath ) != null )
+        {
+            paths.add ( sourcePath );
+        }
+        for ( final String path : this.sources.getPaths ( sourcePath ) )
+        {
+            if ( !new File ( this.configuration.getSourceFolder (), path ).exists () )
+            {
+                paths.add ( path );
+            }
+        }
+
+        for ( final String path : paths )
+        {
+            final SourceIndex.Entry entry = this.sources.remove ( path );
+            releasePoolFiles ( path, entry.getFilenames () );
+        }
+    }
+
+    /**
+     * Release the pool files a package file no longer provides
+     * <p>
+     * The pool files are removed by {@link #removeReleasedPoolFiles()}, once
+     * all package files of a run or a change have been processed, unless
+     * another package file provides them by then.
+     * </p>
+     * 
+     * @param path
+     *            the path of the package file, relative to the source folder
+     * @param filenames
+     *            the pool files
+     */
+    private void releasePoolFiles ( final String path, final Collection<String> filenames )
+    {
+        for ( final String filename : filenames )
+        {
+            this.poolSources.computeIfPresent ( filename, ( name, file ) -> path.equals ( getSourcePath ( file ) ) ? null : file );
+            this.releasedPoolFiles.add ( filename );
+        }
+    }
+
+    /**
+     * Remove the released pool files, and their packages, which no package
+     * file provides any more
+     */
+    private void removeReleasedPoolFiles () throws IOException
+    {
+        final Set<String> removed = new HashSet<String> ();
+        for ( final String filename : this.releasedPoolFiles )
+        {
+            final List<String> sources = this.sources.getSources ( filename );
+            if ( sources.isEmpty () )
+            {
+                removed.add ( filename );
+            }
+            else
+            {
+                this.console.info ( String.format ( "Keeping %s, still provided by: %s", filename, sources ) );
+            }
+        }
+        this.releasedPoolFiles.clear ();
+
+        if ( removed.isEmpty () )
+        {
+            return;
+        }
+
+        for ( final Map.Entry<Component, ConcurrentMap<String, PackageList>> comp : this.files.entrySet () )
+        {
+            for ( final Map.Entry<String, PackageList> arch : comp.getValue ().entrySet () )
+            {
+                final List<PackageRecord> list = arch.getValue ();
+                synchronized ( list )
+                {
+                    if ( list.removeIf ( pkgRecord -> removed.contains ( pkgRecord.get ( "Filename" ) ) ) )
+                    {
+                        this.changed.computeIfAbsent ( comp.getKey (), c -> ConcurrentHashMap.newKeySet () ).add ( arch.getKey () );
+                    }
+                }
+            }
+        }
 
-        for ( final File packageFile : this.configuration.getSourceFolder ().listFiles ( debFilter ) )
+        for ( final String filename : removed )
         {
-            processPackageFile ( packageFile );
+            final File poolFile = new File ( this.configuration.getTargetFolder (), filename );
+            this.console.info ( "Remove artifact: " + poolFile );
+            Files.deleteIfExists ( poolFile.toPath () );
+            this.packageContents.remove ( filename );
+            this.listedFilenames.remove ( filename );
+            this.sharedPoolFiles.remove ( filename );
         }
+    }
+
+    /**
+     * Write the package lists and release files affected by the changes since
+     * the last build or publish
+     */
+    void publishChanges () throws Exception
+    {
+        this.patchName = PackagesDiff.makePatchName ( Instant.now () );
 
+        removeReleasedPoolFiles ();
         writePackageLists ();
+        releaseStanzas ();
+        this.changed.clear ();
+        cleanupContentPool ();
+        storeSources ();
+
+        if ( this.cache != null )
+        {
+            this.cache.store ( this.configuration.getSourceFolder () );
+        }
     }
 
-    private void writePackageLists () throws IOException
+    /**
+     * Delete the stored content no package refers to any more
+     */
+    private void cleanupContentPool () throws IOException
     {
-        for ( final Distribution dist : this.configuration.getDistributions () )
+        if ( this.contentPool == null )
         {
-            for ( final Component comp : dist.getComponents () )
+            return;
+        }
+
+        final Set<Object> fileKeys = new HashSet<Object> ();
+        for ( final Map<String, PackageList> comp : this.files.values () )
+        {
+            for ( final List<PackageRecord> list : comp.values () )
             {
-                final Map<String, List<BinaryPackagePackagesFile>> fileList = this.files.get ( comp );
-                for ( final Map.Entry<String, List<BinaryPackagePackagesFile>> entry : fileList.entrySet () )
+                synchronized ( list )
                 {
-                    writePackageList ( dist, comp, entry.getKey (), entry.getValue () );
+                    for ( final PackageRecord pkgRecord : list )
+                    {
+                        final File poolFile = new File ( this.configuration.getTargetFolder (), pkgRecord.get ( "Filename" ) );
+                        if ( !poolFile.exists () )
+                        {
+                            continue;
+                        }
+
+                        final Object fileKey = Files.readAttributes ( poolFile.toPath (), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).fileKey ();
+                        if ( fileKey == null )
+                        {
+                            // the file system doesn't tell which files are linked
+                            return;
+                        }
+                        fileKeys.add ( fileKey );
+                    }
                 }
             }
-            writeRelease ( dist );
         }
+
+        this.contentPool.cleanup ( fileKeys );
     }
 
-    private void writeRelease ( final Distribution dist ) throws IOException
+    Configuration getConfiguration ()
     {
-        final File dir = new File ( this.dists, dist.getName () );
+        return this.configuration;
+    }
 
-        final DistributionReleaseFile rf = new DistributionReleaseFile ();
-        rf.set ( "Codename", dist.getName () );
-        rf.set ( "Origin", dist.getOrigin () );
-        rf.set ( "Label", dist.getLabel () );
-        rf.set ( "Description", dist.getDescription () );
-        rf.set ( "Components", join ( dist.getComponents () ) );
-        rf.set ( "Architectures", join ( this.configuration.getArchitectures () ) );
-        rf.set ( "Date", DF.format ( new Date () ) );
+    Console getConsole ()
+    {
+        return this.console;
+    }
 
-        for ( final Digester d : this.digestersRelease )
+    /**
+     * Process package files in parallel
+     * <p>
+     * Directories are listed by one pool of threads, which hands each found
+     * file over to the worker threads right away. Reading, digesting and
+     * copying is done by the worker threads. The packages are registered in
+     * the order of a sequential scan, so that the resulting package lists are
+     * the same as with sequential processing.
+     * </p>
+     * 
+     * @param scanner
+     *            the scanner to find the files with
+     * @param threads
+     *            the number of threads of each pool
+     */
+    private void processPackageFiles ( final SourceScanner scanner, final int threads ) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool ( threads );
+        final ExecutorService scanExecutor = Executors.newFixedThreadPool ( threads );
+        try
+        {
+            final ConcurrentMap<SourceScanner.SourceFile, Future<IngestedPackage>> futures = new ConcurrentSkipListMap<SourceScanner.SourceFile, Future<IngestedPackage>> ();
+
+            scanner.scan ( scanExecutor, file -> futures.put ( file, executor.submit ( () -> ingestPackageFile ( file.getFile () ) ) ) );
+
+            for ( final Future<IngestedPackage> future : futures.values () )
+            {
+                registerPackage ( await ( future ) );
+            }
+        }
+        finally
+        {
+            scanExecutor.shutdownNow ();
+            executor.shutdownNow ();
+        }
+    }
+
+    /**
+     * Load the package lists of an existing repository
+     * <p>
+     * This registers all packages of the existing package lists and records
+     * the pool files, so that unchanged package files can be skipped.
+     * </p>
+     */
+    private void loadPackageLists () throws IOException, ParseException
+    {
+        for ( final Distribution dist : this.configuration.getDistributions () )
+        {
+            final File releaseFile = new File ( new File ( this.dists, dist.getName () ), "Release" );
+            if ( releaseFile.isFile () )
+            {
+                this.previousIndexFiles.put ( dist, readReleaseFile ( releaseFile ) );
+            }
+
+            for ( final Component comp : dist.getComponents () )
+            {
+                for ( final String arch : this.configuration.getArchitectures () )
+                {
+                    final File packagesFile = new File ( makeListDirectory ( dist, comp, arch ), "Packages" );
+                    if ( !packagesFile.isFile () )
+                    {
+                        continue;
+                    }
+
+                    this.console.debug ( "Loading: " + packagesFile );
+
+                    for ( final BinaryPackagePackagesFile cf : readPackageList ( packagesFile ) )
+                    {
+                        getPackageList ( comp, arch ).add ( cf.toRecord ( this.interner ) );
+
+                        final String filename = cf.get ( "Filename" );
+                        // packages with a different checksum set are processed again
+                        if ( filename != null && hasPackageChecksums ( cf ) )
+                        {
+                            this.listedFilenames.add ( filename );
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<BinaryPackagePackagesFile> readPackageList ( final File packagesFile ) throws IOException, ParseException
+    {
+        final List<BinaryPackagePackagesFile> result = new ArrayList<BinaryPackagePackagesFile> ();
+
+        final StringBuilder sb = new StringBuilder ();
+        for ( final String line : Files.readAllLines ( packagesFile.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( !line.isEmpty () )
+            {
+                sb.append ( line ).append ( '\n' );
+            }
+            else if ( sb.length () > 0 )
+            {
+                result.add ( new BinaryPackagePackagesFile ( sb.toString () ) );
+                sb.setLength ( 0 );
+            }
+        }
+
+        if ( sb.length () > 0 )
+        {
+            result.add ( new BinaryPackagePackagesFile ( sb.toString () ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Check if the package file is unchanged since the source index was
+     * written
+     * <p>
+     * A package file is considered unchanged if the source index has an entry
+     * for its path with the same size and modification timestamp, and all
+     * pool files of the entry are still listed and present. This works
+     * without reading the file.
+     * </p>
+     * 
+     * @param packageFile
+     *            the source package file
+     * @return <code>true</code> if the package is unchanged
+     */
+    private boolean isUnchanged ( final File packageFile )
+    {
+        final SourceIndex.Entry entry = this.sources.get ( getSourcePath ( packageFile ) );
+        if ( entry == null || entry.getFilenames ().isEmpty () || entry.getSize () != packageFile.length () || entry.getModified () != packageFile.lastModified () )
+        {
+            return false;
+        }
+
+        for ( final String filename : entry.getFilenames () )
+        {
+            final File poolFile = new File ( this.configuration.getTargetFolder (), filename );
+            if ( !this.listedFilenames.contains ( filename ) || poolFile.length () != packageFile.length () )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the path of a package file relative to the source folder
+     */
+    private String getSourcePath ( final File packageFile )
+    {
+        final Path root = this.configuration.getSourceFolder ().toPath ().toAbsolutePath ().normalize ();
+        return root.relativize ( packageFile.toPath ().toAbsolutePath ().normalize () ).toString ().replace ( File.separatorChar, '/' );
+    }
+
+    /**
+     * Write the source index, and the contents index when creating contents
+     * files
+     * <p>
+     * The indexes are written by every build, so that the first update of a
+     * repository can already skip the unchanged package files.
+     * </p>
+     */
+    private void storeSources () throws IOException
+    {
+        this.sources.store ( this.configuration.getTargetFolder () );
+
+        if ( this.configuration.isContents () )
+        {
+            final Map<String, List<String>> contents = new HashMap<String, List<String>> ();
+            for ( final Map<String, PackageList> comp : this.files.values () )
+            {
+                for ( final List<PackageRecord> list : comp.values () )
+                {
+                    synchronized ( list )
+                    {
+                        for ( final PackageRecord pkgRecord : list )
+                        {
+                            final String filename = pkgRecord.get ( "Filename" );
+                            final List<String> paths = filename != null ? this.packageContents.get ( filename ) : null;
+                            if ( paths != null )
+                            {
+                                contents.put ( filename, paths );
+                            }
+                        }
+                    }
+                }
+            }
+            ContentsIndex.store ( this.configuration.getTargetFolder (), contents );
+        }
+    }
+
+    /**
+     * Write all package lists and release files
+     * <p>
+     * The package lists are independent of each other, so they are written in
+     * parallel when running with more than one thread. The release file of a
+     * distribution is written once all of its package lists are complete.
+     * </p>
+     */
+    private void writePackageLists () throws Exception
+    {
+        final Map<Distribution, List<Future<?>>> jobs = new LinkedHashMap<Distribution, List<Future<?>>> ();
+
+        for ( final Distribution dist : this.configuration.getDistributions () )
+        {
+            final List<Future<?>> distJobs = new ArrayList<Future<?>> ();
+            jobs.put ( dist, distJobs );
+
+            for ( final Component comp : dist.getComponents () )
+            {
+                final Map<String, PackageList> fileList = this.files.get ( comp );
+                if ( fileList == null )
+                {
+                    continue;
+                }
+
+                final Set<String> changedArchitectures = this.changed.get ( comp );
+
+                for ( final Map.Entry<String, PackageList> entry : fileList.entrySet () )
+                {
+                    final boolean listChanged = !this.update || changedArchitectures != null && changedArchitectures.contains ( entry.getKey () );
+                    final boolean contentsChanged = this.configuration.isContents () && ( listChanged || !makeContentsFile ( dist, comp, entry.getKey () ).exists () );
+
+                    if ( !listChanged && !contentsChanged )
+                    {
+                        this.console.debug ( String.format ( "Unchanged: %s/%s/binary-%s", dist, comp, entry.getKey () ) );
+                        continue;
+                    }
+
+                    distJobs.add ( submit ( this.indexExecutor, () -> {
+                        if ( listChanged )
+                        {
+                            writePackageList ( dist, comp, entry.getKey (), entry.getValue () );
+                        }
+                        if ( contentsChanged )
+                        {
+                            writeContents ( dist, comp, entry.getKey (), entry.getValue () );
+                        }
+                        return null;
+                    } ) );
+                }
+            }
+        }
+
+        for ( final Map.Entry<Distribution, List<Future<?>>> entry : jobs.entrySet () )
+        {
+            final Distribution dist = entry.getKey ();
+
+            for ( final Future<?> job : entry.getValue () )
+            {
+                await ( job );
+            }
+
+            if ( !entry.getValue ().isEmpty () || !new File ( new File ( this.dists, dist.getName () ), "Release" ).exists () )
+            {
+                writeRelease ( dist );
+            }
+        }
+    }
+
+    /**
+     * Submit a task to an executor, or run it right away
+     * 
+     * @param executor
+     *            the executor, may be <code>null</code>
+     * @param task
+     *            the task
+     * @return the future of the task
+     */
+    private static <T> Future<T> submit ( final ExecutorService executor, final Callable<T> task )
+    {
+        if ( executor != null )
+        {
+            return executor.submit ( task );
+        }
+
+        final FutureTask<T> future = new FutureTask<T> ( task );
+        future.run ();
+        return future;
+    }
+
+    /**
+     * Wait for a task and re-throw its failure
+     */
+    private static <T> T await ( final Future<T> future ) throws Exception
+    {
+        try
+        {
+            return future.get ();
+        }
+        catch ( final ExecutionException e )
+        {
+            if ( e.getCause () instanceof Exception )
+            {
+                throw (Exception)e.getCause ();
+            }
+            throw e;
+        }
+    }
+
+    void writeRelease ( final Distribution dist ) throws IOException
+    {
+        final FlightRecorderEvents.Event event = FlightRecorderEvents.RELEASE_WRITTEN.begin ();
+        final long start = System.nanoTime ();
+
+        final File dir = new File ( this.dists, dist.getName () );
+
+        final DistributionReleaseFile rf = new DistributionReleaseFile ();
+        rf.set ( "Codename", dist.getName () );
+        rf.set ( "Origin", dist.getOrigin () );
+        rf.set ( "Label", dist.getLabel () );
+        rf.set ( "Description", dist.getDescription () );
+        rf.set ( "Components", join ( dist.getComponents () ) );
+        rf.set ( "Architectures", join ( this.configuration.getArchitectures () ) );
+        rf.set ( "Date", DF.format ( Instant.now () ) );
+        if ( this.configuration.isByHash () )
+        {
+            rf.set ( "Acquire-By-Hash", "yes" );
+        }
+
+        final List<FileInformation> indexFiles = collectIndexFiles ( dist );
+        for ( final Digester d : this.digestersRelease )
+        {
+            rf.set ( d.getName (), formatChecksums ( d, indexFiles ) );
+        }
+
+        try ( FileOutputStream os = new FileOutputStream ( new File ( dir, "Release" ) ) )
+        {
+            os.write(rf.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        long bytes = 0;
+        for ( final FileInformation file : indexFiles )
+        {
+            bytes += file.getSize ();
+        }
+        this.report.add ( BuildReport.Phase.RELEASE_DIGEST, System.nanoTime () - start, bytes );
+        event.commit ( dist.getName (), indexFiles.size (), bytes );
+    }
+
+    /**
+     * Collect size and checksums of all index files of a distribution
+     * <p>
+     * Files written in this run have been recorded while writing. In update
+     * mode, files which have not been written again are taken from the
+     * previous release file. Only if neither is possible, the file is read.
+     * </p>
+     */
+    private List<FileInformation> collectIndexFiles ( final Distribution dist ) throws IOException
+    {
+        final List<FileInformation> result = new ArrayList<FileInformation> ();
+
+        final Map<String, FileInformation> recorded = this.indexFiles.getOrDefault ( dist, Collections.<String, FileInformation> emptyMap () );
+        final Map<String, FileInformation> previous = this.previousIndexFiles.getOrDefault ( dist, Collections.<String, FileInformation> emptyMap () );
+
+        final File distDir = new File ( this.dists, dist.getName () );
+
+        for ( final Component comp : dist.getComponents () )
+        {
+            for ( final String arch : this.configuration.getArchitectures () )
+            {
+                final String prefix = comp.getName () + "/binary-" + arch + "/";
+
+                addIndexFile ( result, recorded, previous, distDir, prefix + "Packages" );
+                for ( final Compression compression : this.configuration.getCompressions () )
+                {
+                    addIndexFile ( result, recorded, previous, distDir, prefix + "Packages" + compression.getSuffix () );
+                }
+                addIndexFile ( result, recorded, previous, distDir, prefix + "Release" );
+
+                if ( this.configuration.isPdiff () )
+                {
+                    addIndexFile ( result, recorded, previous, distDir, prefix + "Packages.diff/Index" );
+                }
+
+                if ( this.configuration.isContents () )
+                {
+                    addIndexFile ( result, recorded, previous, distDir, comp.getName () + "/Contents-" + arch + ".gz" );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void addIndexFile ( final List<FileInformation> result, final Map<String, FileInformation> recorded, final Map<String, FileInformation> previous, final File distDir, final String name ) throws IOException
+    {
+        final FileInformation info = recorded.get ( name );
+        if ( info != null )
+        {
+            result.add ( info );
+            return;
+        }
+
+        final File file = new File ( distDir, name );
+        if ( !file.exists () )
+        {
+            return;
+        }
+
+        final FileInformation previousInfo = previous.get ( name );
+        if ( previousInfo != null && previousInfo.getSize () == file.length () && previousInfo.hasChecksums ( this.digestersRelease ) )
+        {
+            result.add ( previousInfo );
+            return;
+        }
+
+        this.console.debug ( "Digesting: " + file );
+        result.add ( new FileInformation ( name, file.length (), MultiDigest.digest ( file, this.digestersRelease ) ) );
+    }
+
+    /**
+     * Read the file list of an existing distribution release file
+     * 
+     * @param releaseFile
+     *            the release file
+     * @return the listed files by name, relative to the distribution directory
+     */
+    private Map<String, FileInformation> readReleaseFile ( final File releaseFile ) throws IOException
+    {
+        final Map<String, Long> sizes = new HashMap<String, Long> ();
+        final Map<String, Map<String, String>> checksums = new LinkedHashMap<String, Map<String, String>> ();
+
+        final Set<String> digesterNames = new HashSet<String> ();
+        for ( final Digester d : this.digestersRelease )
+        {
+            digesterNames.add ( d.getName () );
+        }
+
+        String field = null;
+        for ( final String line : Files.readAllLines ( releaseFile.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( line.isEmpty () )
+            {
+                continue;
+            }
+
+            if ( !Character.isWhitespace ( line.charAt ( 0 ) ) )
+            {
+                final int idx = line.indexOf ( ':' );
+                field = idx > 0 ? line.substring ( 0, idx ) : null;
+                continue;
+            }
+
+            if ( field == null || !digesterNames.contains ( field ) )
+            {
+                continue;
+            }
+
+            final String[] toks = line.trim ().split ( "\\s+" );
+            if ( toks.length != 3 )
+            {
+                continue;
+            }
+
+            sizes.put ( toks[2], Long.parseLong ( toks[1] ) );
+            checksums.computeIfAbsent ( toks[2], n -> new HashMap<String, String> () ).put ( field, toks[0] );
+        }
+
+        final Map<String, FileInformation> result = new HashMap<String, FileInformation> ();
+        for ( final Map.Entry<String, Map<String, String>> entry : checksums.entrySet () )
+        {
+            result.put ( entry.getKey (), new FileInformation ( entry.getKey (), sizes.get ( entry.getKey () ), entry.getValue () ) );
+        }
+        return result;
+    }
+
+    private String formatChecksums ( final Digester d, final List<FileInformation> files )
+    {
+        final StringWriter sw = new StringWriter ();
+        final PrintWriter pw = new PrintWriter ( sw );
+
+        pw.println (); // start with a newline
+
+        for ( final FileInformation file : files )
+        {
+            pw.format ( " %s %20s %s", file.getChecksum ( d.getName () ), file.getSize (), file.getName () );
+            pw.println ();
+        }
+
+        pw.close ();
+
+        return sw.toString ();
+    }
+
+    private String join ( final Collection<?> items )
+    {
+        if ( items == null )
+        {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder ();
+
+        boolean first = true;
+        for ( final Object item : items )
+        {
+            if ( first )
+            {
+                first = false;
+            }
+            else
+            {
+                sb.append ( ' ' );
+            }
+            sb.append ( item );
+        }
+
+        return sb.toString ();
+    }
+
+    void writePackageList ( final Distribution distribution, final Component component, final String architecture, final List<PackageRecord> files ) throws IOException
+    {
+        final FlightRecorderEvents.Event event = FlightRecorderEvents.INDEX_WRITTEN.begin ();
+        final long start = System.nanoTime ();
+
+        final File dir = makeListDirectory ( distribution, component, architecture );
+        Files.createDirectories ( dir.toPath () );
+
+        // Packages
+
+        final File packagesFile = new File ( dir, "Packages" );
+
+        final byte[] previousPackages = this.update && this.configuration.isPdiff () && packagesFile.isFile () ? Files.readAllBytes ( packagesFile.toPath () ) : null;
+
+        this.console.info ( "Writing: " + packagesFile );
+
+        final IndexWriter writer = new IndexWriter ( packagesFile, component.getName () + "/binary-" + architecture + "/Packages", this.digestersRelease, this.configuration, this.compressionExecutor );
+        try
+        {
+            for ( final PackageRecord pkgRecord : files )
+            {
+                writer.write ( pkgRecord.getStanza () );
+            }
+        }
+        finally
+        {
+            writer.close ();
+        }
+
+        final List<FileInformation> written = writer.getFiles ();
+        recordIndexFiles ( distribution, written );
+
+        // Packages.diff
+
+        if ( previousPackages != null )
+        {
+            final PackagesDiff diff = new PackagesDiff ( dir, component.getName () + "/binary-" + architecture + "/", this.digestersRelease, this.configuration, this.console );
+            final FileInformation diffIndex = diff.update ( previousPackages, Files.readAllBytes ( packagesFile.toPath () ), this.patchName );
+            if ( diffIndex != null )
+            {
+                recordIndexFiles ( distribution, Collections.singletonList ( diffIndex ) );
+            }
+        }
+
+        // Release
+
+        final File releaseFile = new File ( dir, "Release" );
+
+        this.console.info ( "Writing: " + releaseFile );
+
+        final ComponentReleaseFile crf = new ComponentReleaseFile ();
+        crf.set ( "Component", component.getName () );
+        crf.set ( "Architecture", architecture );
+        crf.set ( "Label", component.getLabel () );
+        crf.set ( "Origin", component.getDistribution ().getOrigin () );
+
+        final byte[] data = crf.toString ().getBytes ( StandardCharsets.UTF_8 );
+
+        // replace the file, the previous one may be linked from by-hash
+        Files.deleteIfExists ( releaseFile.toPath () );
+        try ( final FileOutputStream os = new FileOutputStream ( releaseFile ) )
+        {
+            os.write ( data );
+        }
+
+        final MultiDigest digest = new MultiDigest ( this.digestersRelease );
+        digest.write ( data, 0, data.length );
+
+        final String name = component.getName () + "/binary-" + architecture + "/Release";
+        final FileInformation releaseInfo = new FileInformation ( name, data.length, digest.getResult () );
+        recordIndexFiles ( distribution, Collections.singletonList ( releaseInfo ) );
+
+        if ( this.configuration.isByHash () )
+        {
+            final List<FileInformation> all = new ArrayList<FileInformation> ( written );
+            all.add ( releaseInfo );
+            new ByHash ( dir, null, this.configuration.getByHashGenerations (), this.console ).publish ( all, this.digestersRelease );
+        }
+
+        long compressedBytes = 0;
+        for ( final FileInformation file : written.subList ( 1, written.size () ) )
+        {
+            compressedBytes += file.getSize ();
+        }
+
+        final long compressionNanos = writer.getCompressionNanos ();
+        this.report.add ( BuildReport.Phase.INDEX_WRITE, System.nanoTime () - start - compressionNanos, written.get ( 0 ).getSize () + data.length );
+        this.report.add ( BuildReport.Phase.COMPRESS, compressionNanos, compressedBytes );
+        event.commit ( distribution.getName (), component.getName (), architecture, files.size (), written.get ( 0 ).getSize (), compressedBytes );
+    }
+
+    /**
+     * Write the <code>Contents-&lt;arch&gt;.gz</code> file of a component
+     * <p>
+     * The file paths of packages read in this run have been collected while
+     * digesting the package file. Packages taken from an existing package
+     * list use the file paths recorded in the contents index of the previous
+     * run. Packages without recorded file paths, e.g. from the package cache,
+     * are listed from their pool file.
+     * </p>
+     */
+    private void writeContents ( final Distribution distribution, final Component component, final String architecture, final List<PackageRecord> files ) throws IOException
+    {
+        final File contentsFile = makeContentsFile ( distribution, component, architecture );
+        final File dir = contentsFile.getParentFile ();
+        Files.createDirectories ( dir.toPath () );
+
+        this.console.info ( "Writing: " + contentsFile );
+
+        final SortedMap<String, StringBuilder> index = new TreeMap<String, StringBuilder> ();
+        for ( final PackageRecord pkgRecord : files )
+        {
+            final String section = pkgRecord.get ( "Section" );
+            final String location = section != null ? section + "/" + pkgRecord.get ( "Package" ) : pkgRecord.get ( "Package" );
+
+            for ( final String path : getContents ( pkgRecord ) )
+            {
+                final StringBuilder locations = index.get ( path );
+                if ( locations == null )
+                {
+                    index.put ( path, new StringBuilder ( location ) );
+                }
+                else
+                {
+                    locations.append ( ',' ).append ( location );
+                }
+            }
+        }
+
+        final String plainFile = contentsFile.getName ().substring ( 0, contentsFile.getName ().length () - Compression.GZIP.getSuffix ().length () );
+
+        final IndexWriter writer = new IndexWriter ( new File ( dir, plainFile ), component.getName () + "/" + plainFile, this.digestersRelease, this.configuration, EnumSet.of ( Compression.GZIP ), false, this.compressionExecutor );
+        try
+        {
+            final StringBuilder line = new StringBuilder ();
+            for ( final Map.Entry<String, StringBuilder> entry : index.entrySet () )
+            {
+                line.setLength ( 0 );
+                line.append ( entry.getKey () );
+                do
+                {
+                    line.append ( ' ' );
+                } while ( line.length () < CONTENTS_COLUMN );
+                line.append ( entry.getValue () ).append ( '\n' );
+
+                writer.write ( line.toString ().getBytes ( StandardCharsets.UTF_8 ) );
+            }
+        }
+        finally
         {
-            rf.set ( d.getName (), digestPackageLists ( rf, d, dist ) );
+            writer.close ();
         }
 
-        try ( FileOutputStream os = new FileOutputStream ( new File ( dir, "Release" ) ) )
+        final List<FileInformation> written = writer.getFiles ();
+        recordIndexFiles ( distribution, written );
+
+        if ( this.configuration.isByHash () )
         {
-            os.write(rf.toString().getBytes(StandardCharsets.UTF_8));
+            // the component directory is shared by all architectures
+            synchronized ( this.contentsByHashLock )
+            {
+                new ByHash ( dir, "Contents-" + architecture, this.configuration.getByHashGenerations (), this.console ).publish ( written, this.digestersRelease );
+            }
         }
     }
 
-    private String digestPackageLists ( final DistributionReleaseFile rf, final Digester d, final Distribution dist ) throws IOException
+    /**
+     * Get the file paths of a package
+     */
+    private List<String> getContents ( final PackageRecord pkgRecord ) throws IOException
     {
+        final String filename = pkgRecord.get ( "Filename" );
+        if ( filename == null )
+        {
+            return Collections.emptyList ();
+        }
 
-        final StringWriter sw = new StringWriter ();
-        final PrintWriter pw = new PrintWriter ( sw );
-
-        final File distDir = new File ( this.dists, dist.getName () ).getCanonicalFile ();
-
-        pw.println (); // start with a newline
-
-        for ( final Component comp : dist.getComponents () )
+        final List<String> result = this.packageContents.get ( filename );
+        if ( result != null )
         {
-            for ( final String arch : this.configuration.getArchitectures () )
-            {
-                File dir = new File ( this.dists, dist.getName () );
-                dir = new File ( dir, comp.getName () );
-                dir = new File ( dir, "binary-" + arch );
+            return result;
+        }
 
-                digestPackageList ( pw, d, distDir, new File ( dir, "Packages" ).getCanonicalFile () );
-                digestPackageList ( pw, d, distDir, new File ( dir, "Packages.gz" ).getCanonicalFile () );
-                digestPackageList ( pw, d, distDir, new File ( dir, "Release" ).getCanonicalFile () );
-            }
+        final File poolFile = new File ( this.configuration.getTargetFolder (), filename );
+        if ( !poolFile.isFile () )
+        {
+            this.console.warn ( "Unable to list contents, missing pool file: " + poolFile );
+            return Collections.emptyList ();
         }
 
-        pw.close ();
+        this.console.debug ( "Listing contents: " + poolFile );
 
-        return sw.toString ();
+        final List<String> contents = PackageScanner.listContents ( poolFile );
+        this.packageContents.put ( filename, contents );
+        return contents;
     }
 
-    private void digestPackageList ( final PrintWriter pw, final Digester d, final File distDir, final File file ) throws IOException
+    private File makeContentsFile ( final Distribution distribution, final Component component, final String architecture )
     {
-        if ( !file.exists () )
+        File file = new File ( this.dists, distribution.getName () );
+        file = new File ( file, component.getName () );
+        return new File ( file, "Contents-" + architecture + Compression.GZIP.getSuffix () );
+    }
+
+    private File makeListDirectory ( final Distribution distribution, final Component component, final String architecture )
+    {
+        File dir = new File ( this.dists, distribution.getName () );
+        dir = new File ( dir, component.getName () );
+        dir = new File ( dir, "binary-" + architecture );
+        return dir;
+    }
+
+    private void recordIndexFiles ( final Distribution distribution, final List<FileInformation> files )
+    {
+        final Map<String, FileInformation> distFiles = this.indexFiles.computeIfAbsent ( distribution, d -> new ConcurrentHashMap<String, FileInformation> () );
+        for ( final FileInformation file : files )
         {
-            return;
+            distFiles.put ( file.getName (), file );
         }
+    }
 
-        final String relativeDir = file.getAbsolutePath ().substring ( distDir.getAbsolutePath ().length () + 1 ); // +1 for the leading/trailing slash
-
-        final long size = file.length ();
-        pw.format ( " %s %20s %s", digest ( file, d.create () ), size, relativeDir );
-        pw.println ();
+    protected void processPackageFile ( final File packageFile ) throws Exception
+    {
+        registerPackage ( ingestPackageFile ( packageFile ) );
     }
 
-    private String join ( final Collection<?> items )
+    /**
+     * Read, digest and copy a package file
+     * <p>
+     * This method may be called concurrently for different package files. It
+     * also renders the stanza of the package, so that writing the package
+     * lists only needs to copy bytes.
+     * </p>
+     * 
+     * @param packageFile
+     *            the package file to process
+     * @return the package information or <code>null</code> if the package
+     *         should be ignored
+     */
+    private IngestedPackage ingestPackageFile ( final File packageFile ) throws Exception
     {
-        if ( items == null )
+        if ( this.update && isUnchanged ( packageFile ) )
         {
+            this.console.debug ( "Unchanged: " + packageFile );
             return null;
         }
 
-        final StringBuilder sb = new StringBuilder ();
+        final String sourcePath = getSourcePath ( packageFile );
 
-        boolean first = true;
-        for ( final Object item : items )
+        final FlightRecorderEvents.Event event = FlightRecorderEvents.PACKAGE_INGESTED.begin ();
+        final BuildReport.PackageTiming timing = new BuildReport.PackageTiming ( sourcePath, packageFile.length () );
+
+        final long start = System.nanoTime ();
+        final BinaryPackagePackagesFile cf = readArtifact ( packageFile, timing );
+        timing.setParseNanos ( System.nanoTime () - start - timing.getHashNanos () );
+
+        final List<String> contents = this.scannedContents.remove ( packageFile );
+
+        final List<Component> components = cf == null ? Collections.<Component> emptyList () : findComponents ( cf, packageFile );
+        if ( components.isEmpty () )
         {
-            if ( first )
-            {
-                first = false;
-            }
-            else
+            // a package file which was published before
+            final SourceIndex.Entry previous = this.sources.remove ( sourcePath );
+            if ( previous != null )
             {
-                sb.append ( ' ' );
+                releasePoolFiles ( sourcePath, previous.getFilenames () );
             }
-            sb.append ( item );
+
+            this.report.addPackage ( timing );
+            return null; // skip
         }
 
-        return sb.toString ();
-    }
+        this.console.debug ( "Processing: " + cf );
 
-    private void writePackageList ( final Distribution distribution, final Component component, final String architecture, final List<BinaryPackagePackagesFile> files ) throws IOException
-    {
-        File dir = new File ( this.dists, distribution.getName () );
+        // components of different distributions may share the pool directory
 
-        dir = new File ( dir, component.getName () );
-        dir = new File ( dir, "binary-" + architecture );
-        dir.mkdirs ();
+        final Map<String, PackageRecord> byFilename = new HashMap<String, PackageRecord> ();
+        final Map<Component, PackageRecord> packageRecords = new LinkedHashMap<Component, PackageRecord> ();
 
-        // Packages
+        final long copyStart = System.nanoTime ();
+        final String sha256 = this.contentPool != null ? getSha256 ( cf, packageFile ) : null;
+        for ( final Component component : components )
+        {
+            final File targetFile = makeTargetFile ( component, packageFile, cf.get ( "Package" ) );
+            final String filename = targetFile.toString ().substring ( this.configuration.getTargetFolder ().toString ().length () + 1 );
 
-        final File packagesFile = new File ( dir, "Packages" );
+            PackageRecord pkgRecord = byFilename.get ( filename );
+            if ( pkgRecord == null )
+            {
+                if ( claimPoolFile ( filename, packageFile, sourcePath ) )
+                {
+                    copyArtifact ( targetFile, packageFile, sha256 );
+                }
 
-        this.console.info ( "Writing: " + packagesFile );
+                cf.set ( "Filename", filename );
+                pkgRecord = cf.toRecord ( this.interner );
+                pkgRecord.getStanza (); // render once, while still on the worker thread
+                byFilename.put ( filename, pkgRecord );
 
-        try ( final PrintStream ps1 = new PrintStream ( packagesFile ) )
-        {
-            for ( final BinaryPackagePackagesFile cf : files )
-            {
-                ps1.println ( cf.toString () );
+                if ( contents != null )
+                {
+                    this.packageContents.put ( filename, contents );
+                }
+                else
+                {
+                    // the pool file may have changed, it is listed again
+                    this.packageContents.remove ( filename );
+                }
             }
-        }
 
-        compressFile ( packagesFile );
+            packageRecords.put ( component, pkgRecord );
+        }
+        timing.setCopyNanos ( System.nanoTime () - copyStart );
 
-        // Release
+        final SourceIndex.Entry previous = this.sources.put ( sourcePath, new SourceIndex.Entry ( packageFile.length (), packageFile.lastModified (), new ArrayList<String> ( byFilename.keySet () ) ) );
+        if ( previous != null )
+        {
+            // the package name or the components may have changed
+            final Set<String> stale = new HashSet<String> ( previous.getFilenames () );
+            stale.removeAll ( byFilename.keySet () );
+            releasePoolFiles ( sourcePath, stale );
+        }
+        this.listedFilenames.addAll ( byFilename.keySet () );
 
-        final File releaseFile = new File ( dir, "Release" );
+        this.report.addPackage ( timing );
+        event.commit ( packageFile.toString (), timing.getSize (), timing.getControlFormat (), timing.getHashNanos (), timing.getCopyNanos () );
 
-        this.console.info ( "Writing: " + releaseFile );
+        return new IngestedPackage ( packageRecords );
+    }
 
-        final ComponentReleaseFile crf = new ComponentReleaseFile ();
-        crf.set ( "Component", component.getName () );
-        crf.set ( "Architecture", architecture );
-        crf.set ( "Label", component.getLabel () );
-        crf.set ( "Origin", component.getDistribution ().getOrigin () );
+    /**
+     * Claim a pool file for a package file
+     * <p>
+     * Package files in different directories of the source folder may have
+     * the same pool file. This is fine if they have the same content, then
+     * the package is published once. Otherwise the build fails, as only one
+     * of them could be stored.
+     * </p>
+     * 
+     * @param filename
+     *            the pool file name
+     * @param packageFile
+     *            the package file
+     * @param sourcePath
+     *            the path of the package file, relative to the source folder
+     * @return <code>true</code> if the package file must be copied to the
+     *         pool file, <code>false</code> if another package file with the
+     *         same content provides it
+     * @throws IllegalStateException
+     *             if another package file with different content provides the
+     *             pool file
+     */
+    private boolean claimPoolFile ( final String filename, final File packageFile, final String sourcePath ) throws IOException
+    {
+        File other = this.poolSources.putIfAbsent ( filename, packageFile );
+        if ( other == null )
+        {
+            // package files of earlier runs, which are not processed again
+            other = findOtherSource ( filename, sourcePath );
+            if ( other == null || !new File ( this.configuration.getTargetFolder (), filename ).isFile () )
+            {
+                return true;
+            }
+        }
+        else if ( other.equals ( packageFile ) )
+        {
+            return true;
+        }
 
-        try ( final FileOutputStream os = new FileOutputStream ( releaseFile ) )
+        if ( !isSameContent ( other, packageFile ) )
         {
-            os.write ( crf.toString ().getBytes ( "UTF-8" ) );
+            throw new IllegalStateException ( String.format ( "Package files %s and %s differ, but would both be stored as %s", other, packageFile, filename ) );
         }
+
+        this.console.info ( String.format ( "Package file %s is the same as %s, publishing it once", packageFile, other ) );
+        this.sharedPoolFiles.add ( filename );
+        return false;
     }
 
-    private void compressFile ( final File packagesFile ) throws IOException
+    /**
+     * Find another existing package file which the source index records for
+     * a pool file
+     */
+    private File findOtherSource ( final String filename, final String sourcePath )
     {
-        this.console.debug ( "Compressing: " + packagesFile );
-
-        final File compressedFile = new File ( packagesFile.getAbsolutePath () + ".gz" );
-        try ( final OutputStream os = new GZIPOutputStream ( new FileOutputStream ( compressedFile ) ) )
+        for ( final String path : this.sources.getSources ( filename ) )
         {
-            try ( final InputStream is = new FileInputStream ( packagesFile ) )
+            final File file = new File ( this.configuration.getSourceFolder (), path );
+            if ( !path.equals ( sourcePath ) && file.isFile () )
             {
-                IOUtils.copy ( is, os );
+                return file;
             }
         }
+        return null;
     }
 
-    protected void processPackageFile ( final File packageFile ) throws Exception
+    private static boolean isSameContent ( final File a, final File b ) throws IOException
     {
-        final BinaryPackagePackagesFile cf = readArtifact ( packageFile );
-
-        final Component component = findComponent ( cf );
-        if ( component == null )
+        if ( a.length () != b.length () )
         {
-            return; // skip
+            return false;
         }
 
-        this.console.debug ( "Processing: " + cf );
-
-        copyArtifact ( component, packageFile, cf );
-
-        final String arch = cf.get ( "Architecture" );
-        if ( "all".equals ( arch ) )
+        try ( InputStream ina = new BufferedInputStream ( new FileInputStream ( a ), 64 * 1024 );
+              InputStream inb = new BufferedInputStream ( new FileInputStream ( b ), 64 * 1024 ) )
         {
-            for ( final String ae : this.configuration.getArchitectures () )
+            int c;
+            while ( ( c = ina.read () ) >= 0 )
             {
-                registerPackage ( component, ae, cf );
+                if ( c != inb.read () )
+                {
+                    return false;
+                }
             }
+            return inb.read () < 0;
         }
-        else
+    }
+
+    private void registerPackage ( final IngestedPackage pkg )
+    {
+        if ( pkg == null )
+        {
+            return;
+        }
+
+        for ( final Map.Entry<Component, PackageRecord> entry : pkg.getPackageRecords ().entrySet () )
         {
-            if ( this.configuration.getArchitectures ().contains ( arch ) )
+            final PackageRecord pkgRecord = entry.getValue ();
+
+            final String arch = pkgRecord.get ( "Architecture" );
+            if ( "all".equals ( arch ) )
+            {
+                for ( final String ae : this.configuration.getArchitectures () )
+                {
+                    registerPackage ( entry.getKey (), ae, pkgRecord );
+                }
+            }
+            else
             {
-                registerPackage ( component, arch, cf );
+                if ( this.configuration.getArchitectures ().contains ( arch ) )
+                {
+                    registerPackage ( entry.getKey (), arch, pkgRecord );
+                }
             }
         }
     }
 
+    /**
+     * Get the components that this package is assigned to
+     * <p>
+     * If routes are configured, these are the components of all matching
+     * routes. Otherwise this is the result of
+     * {@link #findComponent(BinaryPackagePackagesFile)}. This method is called
+     * once for each package file, and may be called concurrently.
+     * </p>
+     * 
+     * @param cf
+     *            the package file data
+     * @param packageFile
+     *            the package file
+     * @return the components, an empty list if the package should be ignored
+     */
+    protected List<Component> findComponents ( final BinaryPackagePackagesFile cf, final File packageFile )
+    {
+        if ( !this.router.isEmpty () )
+        {
+            return this.router.route ( cf, packageFile );
+        }
+
+        final Component component = findComponent ( cf );
+        return component == null ? Collections.<Component> emptyList () : Collections.singletonList ( component );
+    }
+
     /**
      * Get the component that this package is assigned to
      * <p>
-     * Note: This method is called twice at the moment. It must return the same
-     * result for the same package data.
+     * This is only used if no routes are configured.
      * </p>
      * 
      * @param cf
@@ -422,71 +1627,237 @@ public class AptWriter
         return this.configuration.getDistributions ().iterator ().next ().getComponents ().iterator ().next ();
     }
 
-    private void registerPackage ( final Component component, final String architecture, final BinaryPackagePackagesFile cf )
+    private void registerPackage ( final Component component, final String architecture, final PackageRecord pkgRecord )
+    {
+        final PackageList arch = getPackageList ( component, architecture );
+
+        if ( this.update )
+        {
+            arch.replaceOrAdd ( pkgRecord );
+            this.changed.computeIfAbsent ( component, c -> ConcurrentHashMap.newKeySet () ).add ( architecture );
+        }
+        else if ( this.sharedPoolFiles.contains ( pkgRecord.get ( "Filename" ) ) )
+        {
+            // the package files have the same content, keep a single record
+            arch.replaceOrAdd ( pkgRecord );
+        }
+        else
+        {
+            arch.add ( pkgRecord );
+        }
+    }
+
+    private PackageList getPackageList ( final Component component, final String architecture )
+    {
+        final ConcurrentMap<String, PackageList> fileList = this.files.computeIfAbsent ( component, c -> new ConcurrentHashMap<String, PackageList> () );
+        return fileList.computeIfAbsent ( architecture, a -> new PackageList () );
+    }
+
+    /**
+     * Report the estimated heap usage of the registered packages
+     * <p>
+     * This is called after the package lists are written, so that the
+     * rendered stanzas are accounted for.
+     * </p>
+     */
+    private void reportPackageRecords ()
     {
-        Map<String, List<BinaryPackagePackagesFile>> fileList = this.files.get ( component );
-        if ( fileList == null )
+        final List<PackageRecord> records = new ArrayList<PackageRecord> ();
+        for ( final Map<String, PackageList> fileList : this.files.values () )
         {
-            fileList = new HashMap<String, List<BinaryPackagePackagesFile>> ();
-            this.files.put ( component, fileList );
+            for ( final List<PackageRecord> list : fileList.values () )
+            {
+                synchronized ( list )
+                {
+                    records.addAll ( list );
+                }
+            }
         }
 
-        List<BinaryPackagePackagesFile> arch = fileList.get ( architecture );
-        if ( arch == null )
+        final long[] estimate = PackageRecord.estimateSize ( records );
+        if ( estimate[0] > 0 )
         {
-            arch = new LinkedList<BinaryPackagePackagesFile> ();
-            fileList.put ( architecture, arch );
+            this.console.info ( String.format ( "Package records: %s packages, %s shared values, about %s bytes per package", estimate[0], this.interner.size (), estimate[1] / estimate[0] ) );
         }
-        arch.add ( cf );
     }
 
-    private BinaryPackagePackagesFile readArtifact ( final File packageFile ) throws Exception
+    /**
+     * Release the rendered stanzas of all registered packages
+     */
+    private void releaseStanzas ()
     {
-        try ( final ArArchiveInputStream in = new ArArchiveInputStream ( new FileInputStream ( packageFile ) ) )
+        for ( final Map<String, PackageList> fileList : this.files.values () )
         {
-            ArchiveEntry ar;
-            while ( ( ar = in.getNextEntry () ) != null )
+            for ( final List<PackageRecord> list : fileList.values () )
             {
-                if ( ar.getName().equals ( "control.tar.gz" ) || ar.getName().equals ( "control.tar.xz" ) )
+                synchronized ( list )
                 {
-                    try (final InputStream compressedInputStream = ar.getName().endsWith(".gz") ? new GZIPInputStream ( in ) : new XZCompressorInputStream( in );
-                         final TarArchiveInputStream inputStream = new TarArchiveInputStream ( compressedInputStream ) ) {
+                    for ( final PackageRecord pkgRecord : list )
+                    {
+                        pkgRecord.releaseStanza ();
+                    }
+                }
+            }
+        }
+    }
 
-                        TarArchiveEntry te;
-                        while ((te = inputStream.getNextTarEntry()) != null) {
-                            if (!te.getName().equals("./control")) {
-                                continue;
-                            }
-                            return convert(new BinaryPackageControlFile(inputStream), packageFile);
-                        }
+    BinaryPackagePackagesFile readArtifact ( final File packageFile ) throws Exception
+    {
+        return readArtifact ( packageFile, null );
+    }
+
+    /**
+     * Read the control information of a package file
+     * 
+     * @param packageFile
+     *            the package file
+     * @param timing
+     *            the timing to record the hash duration in, may be
+     *            <code>null</code>
+     * @return the package information, or <code>null</code> if the file
+     *         could not be read
+     */
+    private BinaryPackagePackagesFile readArtifact ( final File packageFile, final BuildReport.PackageTiming timing ) throws Exception
+    {
+        if ( this.cache != null )
+        {
+            final String stanza = this.cache.get ( packageFile );
+            if ( stanza != null )
+            {
+                final BinaryPackagePackagesFile pf = new BinaryPackagePackagesFile ( stanza );
+                if ( hasPackageChecksums ( pf ) )
+                {
+                    if ( timing != null )
+                    {
+                        timing.setControlFormat ( "cache" );
+                    }
+                    return pf;
+                }
+            }
+        }
+
+        if ( this.configuration.isContents () )
+        {
+            return scanArtifact ( packageFile, timing );
+        }
+
+        try ( final ArFile ar = new ArFile ( packageFile.toPath () ) )
+        {
+            final ArFile.Member member = ar.findMember ( "control.tar" );
+            if ( member == null )
+            {
+                this.console.warn ( "No control member found: " + packageFile );
+                return null;
+            }
+
+            if ( timing != null )
+            {
+                timing.setControlFormat ( member.getName () );
+                timing.setControlSize ( member.getSize () );
+            }
+
+            final InputStream compressedInputStream = openControlMember ( ar, member );
+            if ( compressedInputStream == null )
+            {
+                this.console.warn ( String.format ( "Unsupported control member '%s': %s", member, packageFile ) );
+                return null;
+            }
+
+            try ( final TarArchiveInputStream inputStream = new TarArchiveInputStream ( compressedInputStream ) )
+            {
+                TarArchiveEntry te;
+                while ( ( te = inputStream.getNextTarEntry () ) != null )
+                {
+                    if ( !te.getName ().equals ( "./control" ) && !te.getName ().equals ( "control" ) )
+                    {
+                        continue;
                     }
+                    return convert ( new BinaryPackageControlFile ( inputStream ), packageFile, digestPackage ( packageFile, timing ) );
                 }
             }
         }
         return null;
     }
 
-    private BinaryPackagePackagesFile convert ( final BinaryPackageControlFile cf, final File packageFile ) throws Exception
+    /**
+     * Check if a package stanza has exactly the configured checksums
+     */
+    private boolean hasPackageChecksums ( final BinaryPackagePackagesFile pf )
     {
-        final BinaryPackagePackagesFile pf = new BinaryPackagePackagesFile ( cf.toString () );
+        for ( final Checksum checksum : Checksum.values () )
+        {
+            final boolean configured = this.configuration.getChecksums ().contains ( checksum );
+            if ( configured != ( pf.get ( checksum.getPackageField () ) != null ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        for ( final Digester d : this.digestersPackage )
+    /**
+     * Open the decompressed content of the control member
+     * 
+     * @return the stream, or <code>null</code> if the compression is not
+     *         supported
+     */
+    private static InputStream openControlMember ( final ArFile ar, final ArFile.Member member ) throws IOException
+    {
+        return PackageScanner.decompress ( new BufferedInputStream ( ar.openMember ( member ), 64 * 1024 ), member.getName () );
+    }
+
+    /**
+     * Read the control information, the checksums and the contents of a
+     * package file in a single pass
+     */
+    private BinaryPackagePackagesFile scanArtifact ( final File packageFile, final BuildReport.PackageTiming timing ) throws Exception
+    {
+        final long start = System.nanoTime ();
+        final PackageScanner.Result result = PackageScanner.scan ( packageFile, this.digestersPackage );
+        if ( timing != null )
         {
-            pf.set ( d.getName (), digest ( packageFile, d.create () ) );
+            // parsing the control member is part of the same pass
+            timing.setHashNanos ( System.nanoTime () - start );
+            timing.setControlFormat ( result.getControlFormat () );
         }
 
-        final Component component = findComponent ( pf );
-        if ( component == null )
+        if ( result.getControl () == null )
         {
+            this.console.warn ( "No supported control member found: " + packageFile );
             return null;
         }
 
-        final File targetFile = makeTargetFile ( component, packageFile, cf.get ( "Package" ) );
-        final String filename = targetFile.toString ().substring ( this.configuration.getTargetFolder ().toString ().length () + 1 );
+        this.scannedContents.put ( packageFile, result.getContents () );
+        return convert ( result.getControl (), packageFile, result.getChecksums () );
+    }
+
+    private Map<String, String> digestPackage ( final File packageFile, final BuildReport.PackageTiming timing ) throws IOException
+    {
+        final long start = System.nanoTime ();
+        final Map<String, String> checksums = MultiDigest.digest ( packageFile, this.digestersPackage );
+        if ( timing != null )
+        {
+            timing.setHashNanos ( System.nanoTime () - start );
+        }
+        return checksums;
+    }
+
+    private BinaryPackagePackagesFile convert ( final BinaryPackageControlFile cf, final File packageFile, final Map<String, String> checksums ) throws Exception
+    {
+        final BinaryPackagePackagesFile pf = new BinaryPackagePackagesFile ( cf.toString () );
+
+        for ( final Map.Entry<String, String> entry : checksums.entrySet () )
+        {
+            pf.set ( entry.getKey (), entry.getValue () );
+        }
 
-        pf.set ( "Filename", filename );
         pf.set ( "Size", "" + packageFile.length () );
 
+        if ( this.cache != null )
+        {
+            this.cache.put ( packageFile, pf.toString () );
+        }
+
         return pf;
     }
 
@@ -500,24 +1871,45 @@ public class AptWriter
             {
                 digest.update ( buffer, 0, rc );
             }
-            final byte[] dv = digest.digest ();
-            final StringBuilder sb = new StringBuilder ();
-            for ( final byte b : dv )
-            {
-                sb.append ( String.format ( "%02x", b ) );
-            }
-            return sb.toString ();
+            return MultiDigest.toHex ( digest.digest () );
         }
     }
 
-    private void copyArtifact ( final Component component, final File packageFile, final BinaryPackagePackagesFile cf ) throws IOException
+    /**
+     * Get the SHA-256 checksum of a package file, digesting the file only if
+     * the checksum is not part of the package stanza
+     */
+    private static String getSha256 ( final BinaryPackagePackagesFile cf, final File packageFile ) throws IOException, NoSuchAlgorithmException
     {
-        final String name = cf.get ( "Package" );
+        final String sha256 = cf.get ( Checksum.SHA256.getPackageField () );
+        if ( sha256 != null )
+        {
+            return sha256;
+        }
+        return digest ( packageFile, MessageDigest.getInstance ( "SHA-256" ) );
+    }
 
-        final File targetFile = makeTargetFile ( component, packageFile, name );
+    /**
+     * Copy a package file to its pool file
+     * 
+     * @param sha256
+     *            the SHA-256 checksum of the package file, if the pool is
+     *            content addressed, <code>null</code> otherwise
+     */
+    private void copyArtifact ( final File targetFile, final File packageFile, final String sha256 ) throws IOException
+    {
         this.console.info ( "Copy artifact: " + targetFile );
-        targetFile.mkdirs ();
-        Files.copy ( packageFile.toPath (), targetFile.toPath (), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING );
+        Files.createDirectories ( targetFile.getParentFile ().toPath () );
+        // the pool file may be a hard link to a published pool file
+        Files.deleteIfExists ( targetFile.toPath () );
+        if ( sha256 != null )
+        {
+            this.contentPool.populate ( packageFile.toPath (), sha256, targetFile.toPath () );
+        }
+        else
+        {
+            this.configuration.getPoolStrategy ().populate ( packageFile.toPath (), targetFile.toPath (), this.console, this.poolFallbackReported );
+        }
     }
 
     private File makeTargetFile ( final Component component, final File packageFile, final String packageName )
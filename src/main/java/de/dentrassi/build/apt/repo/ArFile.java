@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Random access reader for <code>ar</code> archives, like <code>.deb</code>
+ * files
+ * <p>
+ * Only the member headers are read when opening the archive. The content of
+ * a member is read on demand, from its byte range in the file. So reading one
+ * member never touches the data of the other members.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class ArFile implements Closeable
+{
+    private static final byte[] MAGIC = "!<arch>\n".getBytes ( StandardCharsets.US_ASCII );
+
+    private static final int HEADER_SIZE = 60;
+
+    /**
+     * A member of the archive
+     */
+    public static final class Member
+    {
+        private final String name;
+
+        private final long offset;
+
+        private final long size;
+
+        private Member ( final String name, final long offset, final long size )
+        {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public String getName ()
+        {
+            return this.name;
+        }
+
+        /**
+         * @return the position of the member data in the archive file
+         */
+        public long getOffset ()
+        {
+            return this.offset;
+        }
+
+        public long getSize ()
+        {
+            return this.size;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return this.name;
+        }
+    }
+
+    private final FileChannel channel;
+
+    private final List<Member> members;
+
+    /**
+     * Open an archive and read its member headers
+     * 
+     * @param file
+     *            the archive file
+     * @throws IOException
+     *             if the file cannot be read or is not an <code>ar</code>
+     *             archive
+     */
+    public ArFile ( final Path file ) throws IOException
+    {
+        this.channel = FileChannel.open ( file, StandardOpenOption.READ );
+        try
+        {
+            this.members = Collections.unmodifiableList ( readMembers () );
+        }
+        catch ( final IOException e )
+        {
+            this.channel.close ();
+            throw e;
+        }
+    }
+
+    private List<Member> readMembers () throws IOException
+    {
+        final ByteBuffer magic = ByteBuffer.allocate ( MAGIC.length );
+        readFully ( magic, 0 );
+        if ( !Arrays.equals ( magic.array (), MAGIC ) )
+        {
+            throw new IOException ( "Not an ar archive" );
+        }
+
+        final List<Member> result = new ArrayList<Member> ();
+
+        final long length = this.channel.size ();
+        final ByteBuffer header = ByteBuffer.allocate ( HEADER_SIZE );
+
+        long position = MAGIC.length;
+        while ( position + HEADER_SIZE <= length )
+        {
+            header.clear ();
+            readFully ( header, position );
+
+            final byte[] data = header.array ();
+            if ( data[58] != '`' || data[59] != '\n' )
+            {
+                throw new IOException ( "Invalid ar member header at: " + position );
+            }
+
+            String name = new String ( data, 0, 16, StandardCharsets.US_ASCII ).trim ();
+            if ( name.endsWith ( "/" ) && name.length () > 1 )
+            {
+                name = name.substring ( 0, name.length () - 1 ); // GNU style name terminator
+            }
+
+            final long size;
+            try
+            {
+                size = Long.parseLong ( new String ( data, 48, 10, StandardCharsets.US_ASCII ).trim () );
+            }
+            catch ( final NumberFormatException e )
+            {
+                throw new IOException ( "Invalid ar member size at: " + position, e );
+            }
+
+            final long offset = position + HEADER_SIZE;
+            if ( size < 0 || offset + size > length )
+            {
+                throw new IOException ( "Truncated ar member: " + name );
+            }
+
+            result.add ( new Member ( name, offset, size ) );
+
+            position = offset + size + ( size % 2 ); // members are aligned to even offsets
+        }
+
+        return result;
+    }
+
+    private void readFully ( final ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining () )
+        {
+            final int rc = this.channel.read ( buffer, position );
+            if ( rc < 0 )
+            {
+                throw new IOException ( "Unexpected end of file" );
+            }
+            position += rc;
+        }
+    }
+
+    public List<Member> getMembers ()
+    {
+        return this.members;
+    }
+
+    /**
+     * Find the first member whose name starts with a prefix
+     * 
+     * @param prefix
+     *            the name prefix, e.g. <code>control.tar</code>
+     * @return the member, or <code>null</code> if there is none
+     */
+    public Member findMember ( final String prefix )
+    {
+        for ( final Member member : this.members )
+        {
+            if ( member.getName ().startsWith ( prefix ) )
+            {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open the content of a member
+     * <p>
+     * The stream reads only the byte range of the member. It does not need to
+     * be closed, and does not change the state of this archive, so several
+     * members may be read at the same time.
+     * </p>
+     * 
+     * @param member
+     *            the member to read
+     * @return the raw content of the member
+     */
+    public InputStream openMember ( final Member member )
+    {
+        return new InputStream ()
+        {
+            private long position = member.getOffset ();
+
+            private final long end = member.getOffset () + member.getSize ();
+
+            @Override
+            public int read () throws IOException
+            {
+                final byte[] b = new byte[1];
+                return read ( b, 0, 1 ) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read ( final byte[] b, final int off, final int len ) throws IOException
+            {
+                if ( len == 0 )
+                {
+                    return 0;
+                }
+
+                final long remaining = this.end - this.position;
+                if ( remaining <= 0 )
+                {
+                    return -1;
+                }
+
+                final int rc = ArFile.this.channel.read ( ByteBuffer.wrap ( b, off, (int)Math.min ( len, remaining ) ), this.position );
+                if ( rc > 0 )
+                {
+                    this.position += rc;
+                }
+                return rc;
+            }
+
+            @Override
+            public long skip ( final long n )
+            {
+                final long skipped = Math.max ( 0, Math.min ( n, this.end - this.position ) );
+                this.position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available ()
+            {
+                return (int)Math.min ( Integer.MAX_VALUE, this.end - this.position );
+            }
+        };
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+        this.channel.close ();
+    }
+}
@@ -19,6 +19,9 @@ package de.dentrassi.build.apt.repo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.vafer.jdeb.debian.ControlField;
 import org.vafer.jdeb.debian.ControlFile;
@@ -53,6 +56,7 @@ public final class BinaryPackagePackagesFile extends ControlFile
             new ControlField ( "Description", true, ControlField.Type.MULTILINE ),
             new ControlField ( "Homepage" ),
             new ControlField ( "Installed-Size" ),
+            new ControlField ( "SHA512" ),
             new ControlField ( "SHA256" ),
             new ControlField ( "SHA1" ),
             new ControlField ( "MD5sum" ),
@@ -104,6 +108,40 @@ public final class BinaryPackagePackagesFile extends ControlFile
         return get ( "Description" ).split ( "\n" )[0];
     }
 
+    /**
+     * Convert to a compact record
+     * 
+     * @param interner
+     *            the interner to share fields and values with
+     * @return the record, containing all fields which {@link #toString()}
+     *         would write
+     */
+    PackageRecord toRecord ( final PackageRecord.Interner interner )
+    {
+        final List<ControlField> fields = new ArrayList<ControlField> ( FIELDS.length );
+        final List<String> values = new ArrayList<String> ( FIELDS.length );
+
+        final List<ControlField> allFields = new ArrayList<ControlField> ( Arrays.asList ( FIELDS ) );
+        for ( final ControlField field : getUserDefinedFieldNames () )
+        {
+            allFields.add ( interner.field ( field ) );
+        }
+
+        for ( final ControlField field : allFields )
+        {
+            final String value = this.values.get ( field.getName () );
+            if ( value == null || value.trim ().isEmpty () )
+            {
+                continue;
+            }
+
+            fields.add ( field );
+            values.add ( interner.value ( field.getName (), value ) );
+        }
+
+        return new PackageRecord ( fields.toArray ( new ControlField[fields.size ()] ), values.toArray ( new String[values.size ()] ) );
+    }
+
     @Override
     protected char getUserDefinedFieldLetter ()
     {
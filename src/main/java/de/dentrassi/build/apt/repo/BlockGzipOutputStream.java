@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A GZIP output stream which compresses independent blocks
+ * <p>
+ * The data is split into blocks, which are deflated separately, using the
+ * tail of the previous block as preset dictionary, and then concatenated into
+ * a single deflate stream (like <code>pigz</code> does). The blocks are
+ * compressed in parallel if an executor is provided.
+ * </p>
+ * <p>
+ * The output only depends on the data and the compression level, not on the
+ * executor or the Java version. For data smaller than one block, the output
+ * is the same as the one of {@link java.util.zip.GZIPOutputStream}, except for
+ * the operating system field of the header. This is always <code>255</code>
+ * (unknown), while older Java versions write <code>0</code>.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class BlockGzipOutputStream extends OutputStream
+{
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+    private final OutputStream out;
+
+    private final int level;
+
+    private final ExecutorService executor;
+
+    private final int maxPending;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>> ();
+
+    private final CRC32 crc = new CRC32 ();
+
+    private long total;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    private int count;
+
+    private byte[] dictionary;
+
+    private boolean closed;
+
+    /**
+     * @param out
+     *            the stream to write the compressed data to
+     * @param level
+     *            the compression level, or <code>-1</code> for the default
+     * @param executor
+     *            the executor to compress blocks with, may be
+     *            <code>null</code> to compress in the calling thread
+     * @param parallelism
+     *            the maximum number of blocks being compressed at the same
+     *            time
+     */
+    public BlockGzipOutputStream ( final OutputStream out, final int level, final ExecutorService executor, final int parallelism ) throws IOException
+    {
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxPending = Math.max ( 1, parallelism );
+
+        this.out.write ( HEADER );
+    }
+
+    @Override
+    public void write ( final int b ) throws IOException
+    {
+        write ( new byte[] { (byte)b }, 0, 1 );
+    }
+
+    @Override
+    public void write ( final byte[] b, int off, int len ) throws IOException
+    {
+        this.crc.update ( b, off, len );
+        this.total += len;
+
+        while ( len > 0 )
+        {
+            final int n = Math.min ( len, this.block.length - this.count );
+            System.arraycopy ( b, off, this.block, this.count, n );
+            this.count += n;
+            off += n;
+            len -= n;
+
+            if ( this.count == this.block.length )
+            {
+                submit ( false );
+            }
+        }
+    }
+
+    private void submit ( final boolean last ) throws IOException
+    {
+        final byte[] data = this.block;
+        final int length = this.count;
+        final byte[] dict = this.dictionary;
+
+        this.dictionary = Arrays.copyOfRange ( data, Math.max ( 0, length - DICTIONARY_SIZE ), length );
+        this.block = new byte[BLOCK_SIZE];
+        this.count = 0;
+
+        final Callable<byte[]> task = () -> deflate ( data, length, dict, last );
+
+        if ( this.executor != null )
+        {
+            this.pending.add ( this.executor.submit ( task ) );
+        }
+        else
+        {
+            final FutureTask<byte[]> future = new FutureTask<byte[]> ( task );
+            future.run ();
+            this.pending.add ( future );
+        }
+
+        while ( this.pending.size () >= this.maxPending || last && !this.pending.isEmpty () )
+        {
+            writeNext ();
+        }
+    }
+
+    private void writeNext () throws IOException
+    {
+        try
+        {
+            this.out.write ( this.pending.removeFirst ().get () );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ();
+        }
+        catch ( final ExecutionException e )
+        {
+            throw new IOException ( "Failed to compress block", e.getCause () );
+        }
+    }
+
+    private byte[] deflate ( final byte[] data, final int length, final byte[] dict, final boolean last )
+    {
+        final Deflater deflater = new Deflater ( this.level, true );
+        try
+        {
+            if ( dict != null )
+            {
+                deflater.setDictionary ( dict );
+            }
+            deflater.setInput ( data, 0, length );
+
+            final ByteArrayOutputStream result = new ByteArrayOutputStream ( length / 2 + 64 );
+            final byte[] buffer = new byte[64 * 1024];
+
+            if ( last )
+            {
+                deflater.finish ();
+                while ( !deflater.finished () )
+                {
+                    final int n = deflater.deflate ( buffer );
+                    result.write ( buffer, 0, n );
+                }
+            }
+            else
+            {
+                int n;
+                do
+                {
+                    n = deflater.deflate ( buffer, 0, buffer.length, Deflater.SYNC_FLUSH );
+                    result.write ( buffer, 0, n );
+                } while ( n == buffer.length );
+            }
+
+            return result.toByteArray ();
+        }
+        finally
+        {
+            deflater.end ();
+        }
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+        if ( this.closed )
+        {
+            return;
+        }
+        this.closed = true;
+
+        try
+        {
+            submit ( true );
+
+            final byte[] trailer = new byte[8];
+            writeInt ( trailer, 0, this.crc.getValue () );
+            writeInt ( trailer, 4, this.total );
+            this.out.write ( trailer );
+        }
+        finally
+        {
+            for ( final Future<byte[]> future : this.pending )
+            {
+                future.cancel ( true );
+            }
+            this.out.close ();
+        }
+    }
+
+    private static void writeInt ( final byte[] data, final int offset, final long value )
+    {
+        data[offset] = (byte)value;
+        data[offset + 1] = (byte) ( value >> 8 );
+        data[offset + 2] = (byte) ( value >> 16 );
+        data[offset + 3] = (byte) ( value >> 24 );
+    }
+}
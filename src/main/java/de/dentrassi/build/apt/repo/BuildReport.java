@@ -0,0 +1,393 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * Time and size measurements of a repository build
+ * <p>
+ * The time of a phase is the sum of the time all threads spent in it, so with
+ * more than one thread it may exceed the wall time of the build. This class
+ * is thread safe.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class BuildReport
+{
+    private static final double MB = 1024.0 * 1024.0;
+
+    enum Phase
+    {
+        SCAN ( "scan" ),
+        PARSE_CONTROL ( "parseControl" ),
+        HASH ( "hash" ),
+        POOL_COPY ( "poolCopy" ),
+        INDEX_WRITE ( "indexWrite" ),
+        COMPRESS ( "compress" ),
+        RELEASE_DIGEST ( "releaseDigest" );
+
+        private final String id;
+
+        private Phase ( final String id )
+        {
+            this.id = id;
+        }
+
+        public String getId ()
+        {
+            return this.id;
+        }
+    }
+
+    private static class Counter
+    {
+        private final LongAdder nanos = new LongAdder ();
+
+        private final LongAdder bytes = new LongAdder ();
+
+        private final LongAdder count = new LongAdder ();
+    }
+
+    /**
+     * The timings of a single package file
+     */
+    static class PackageTiming
+    {
+        private final String file;
+
+        private final long size;
+
+        private String controlFormat;
+
+        private long controlSize;
+
+        private long parseNanos;
+
+        private long hashNanos;
+
+        private long copyNanos;
+
+        /**
+         * @param file
+         *            the path of the package file, relative to the source
+         *            folder
+         * @param size
+         *            the size of the package file
+         */
+        public PackageTiming ( final String file, final long size )
+        {
+            this.file = file;
+            this.size = size;
+        }
+
+        public void setControlFormat ( final String controlFormat )
+        {
+            this.controlFormat = controlFormat;
+        }
+
+        public String getControlFormat ()
+        {
+            return this.controlFormat;
+        }
+
+        /**
+         * Set the size of the control member which was parsed
+         * <p>
+         * This stays 0 if the control information was taken from the cache,
+         * or was read in the same pass as the checksums.
+         * </p>
+         */
+        public void setControlSize ( final long controlSize )
+        {
+            this.controlSize = controlSize;
+        }
+
+        public long getSize ()
+        {
+            return this.size;
+        }
+
+        public void setParseNanos ( final long parseNanos )
+        {
+            this.parseNanos = parseNanos;
+        }
+
+        public void setHashNanos ( final long hashNanos )
+        {
+            this.hashNanos = hashNanos;
+        }
+
+        public long getHashNanos ()
+        {
+            return this.hashNanos;
+        }
+
+        public long getCopyNanos ()
+        {
+            return this.copyNanos;
+        }
+
+        public void setCopyNanos ( final long copyNanos )
+        {
+            this.copyNanos = copyNanos;
+        }
+
+        public long getTotalNanos ()
+        {
+            return this.parseNanos + this.hashNanos + this.copyNanos;
+        }
+    }
+
+    private final Counter[] counters = new Counter[Phase.values ().length];
+
+    private final ConcurrentLinkedQueue<PackageTiming> packages = new ConcurrentLinkedQueue<PackageTiming> ();
+
+    private long start = System.nanoTime ();
+
+    private long wallNanos;
+
+    public BuildReport ()
+    {
+        for ( int i = 0; i < this.counters.length; i++ )
+        {
+            this.counters[i] = new Counter ();
+        }
+    }
+
+    /**
+     * Record time spent in a phase
+     * 
+     * @param phase
+     *            the phase
+     * @param nanos
+     *            the time spent, in nanoseconds
+     * @param bytes
+     *            the number of bytes processed
+     */
+    public void add ( final Phase phase, final long nanos, final long bytes )
+    {
+        final Counter counter = this.counters[phase.ordinal ()];
+        counter.nanos.add ( nanos );
+        counter.bytes.add ( bytes );
+        counter.count.increment ();
+    }
+
+    /**
+     * Record the timings of a processed package file
+     * <p>
+     * The timings are also added to their phases.
+     * </p>
+     */
+    public void addPackage ( final PackageTiming timing )
+    {
+        this.packages.add ( timing );
+        add ( Phase.PARSE_CONTROL, timing.parseNanos, timing.controlSize );
+        if ( timing.hashNanos > 0 )
+        {
+            add ( Phase.HASH, timing.hashNanos, timing.size );
+        }
+        add ( Phase.POOL_COPY, timing.copyNanos, timing.size );
+    }
+
+    /**
+     * Mark the start of the build
+     */
+    public void start ()
+    {
+        this.start = System.nanoTime ();
+    }
+
+    /**
+     * Mark the end of the build
+     */
+    public void finish ()
+    {
+        this.wallNanos = System.nanoTime () - this.start;
+    }
+
+    private List<PackageTiming> getPackages ()
+    {
+        final List<PackageTiming> result = new ArrayList<PackageTiming> ( this.packages );
+        Collections.sort ( result, Comparator.comparing ( ( final PackageTiming p ) -> p.file ) );
+        return result;
+    }
+
+    private List<PackageTiming> getSlowest ( final int count )
+    {
+        final List<PackageTiming> result = getPackages ();
+        Collections.sort ( result, Comparator.comparingLong ( PackageTiming::getTotalNanos ).reversed () );
+        return result.subList ( 0, Math.min ( count, result.size () ) );
+    }
+
+    private long getPackageBytes ()
+    {
+        long result = 0;
+        for ( final PackageTiming timing : this.packages )
+        {
+            result += timing.size;
+        }
+        return result;
+    }
+
+    /**
+     * Write the report as JSON
+     * 
+     * @param file
+     *            the file to write to
+     * @param slowest
+     *            the number of slowest packages to list
+     */
+    public void write ( final File file, final int slowest ) throws IOException
+    {
+        final StringWriter sw = new StringWriter ();
+        final PrintWriter pw = new PrintWriter ( sw );
+
+        final long bytes = getPackageBytes ();
+
+        pw.println ( "{" );
+        pw.format ( "  \"wallTime\": %s,%n", millis ( this.wallNanos ) );
+        pw.format ( "  \"packages\": %s,%n", this.packages.size () );
+        pw.format ( "  \"bytes\": %s,%n", bytes );
+        pw.format ( "  \"throughput\": %s,%n", throughput ( bytes, this.wallNanos ) );
+
+        pw.println ( "  \"phases\": {" );
+        for ( final Phase phase : Phase.values () )
+        {
+            final Counter counter = this.counters[phase.ordinal ()];
+            final long nanos = counter.nanos.sum ();
+            final long phaseBytes = counter.bytes.sum ();
+            pw.format ( "    \"%s\": { \"time\": %s, \"bytes\": %s, \"count\": %s, \"throughput\": %s }%s%n", phase.getId (), millis ( nanos ), phaseBytes, counter.count.sum (), throughput ( phaseBytes, nanos ), phase.ordinal () < this.counters.length - 1 ? "," : "" );
+        }
+        pw.println ( "  }," );
+
+        pw.println ( "  \"slowest\": [" );
+        writePackages ( pw, getSlowest ( slowest ) );
+        pw.println ( "  ]," );
+
+        pw.println ( "  \"packageTimings\": [" );
+        writePackages ( pw, getPackages () );
+        pw.println ( "  ]" );
+
+        pw.println ( "}" );
+        pw.close ();
+
+        final File parent = file.getAbsoluteFile ().getParentFile ();
+        if ( parent != null )
+        {
+            Files.createDirectories ( parent.toPath () );
+        }
+        Files.write ( file.toPath (), sw.toString ().getBytes ( StandardCharsets.UTF_8 ) );
+    }
+
+    private static void writePackages ( final PrintWriter pw, final List<PackageTiming> packages )
+    {
+        for ( int i = 0; i < packages.size (); i++ )
+        {
+            final PackageTiming timing = packages.get ( i );
+            pw.format ( "    { \"file\": %s, \"size\": %s, \"control\": %s, \"parseControl\": %s, \"hash\": %s, \"poolCopy\": %s, \"total\": %s }%s%n", quote ( timing.file ), timing.size, timing.controlFormat == null ? "null" : quote ( timing.controlFormat ), millis ( timing.parseNanos ), millis ( timing.hashNanos ), millis ( timing.copyNanos ), millis ( timing.getTotalNanos () ), i < packages.size () - 1 ? "," : "" );
+        }
+    }
+
+    /**
+     * Log a summary of the report
+     * 
+     * @param console
+     *            the console to log to
+     * @param slowest
+     *            the number of slowest packages to list
+     */
+    public void log ( final Console console, final int slowest )
+    {
+        final long bytes = getPackageBytes ();
+
+        console.info ( String.format ( Locale.ROOT, "Report: %s packages, %.1f MB in %s ms (%s MB/s)", this.packages.size (), bytes / MB, millis ( this.wallNanos ), throughput ( bytes, this.wallNanos ) ) );
+
+        for ( final Phase phase : Phase.values () )
+        {
+            final Counter counter = this.counters[phase.ordinal ()];
+            final long nanos = counter.nanos.sum ();
+            final long phaseBytes = counter.bytes.sum ();
+            console.info ( String.format ( Locale.ROOT, "  %-14s %12s ms %10.1f MB %10s MB/s", phase.getId (), millis ( nanos ), phaseBytes / MB, throughput ( phaseBytes, nanos ) ) );
+        }
+
+        for ( final PackageTiming timing : getSlowest ( slowest ) )
+        {
+            console.info ( String.format ( "  Slow package: %s (%s ms)", timing.file, millis ( timing.getTotalNanos () ) ) );
+        }
+    }
+
+    private static String millis ( final long nanos )
+    {
+        return String.format ( Locale.ROOT, "%.3f", nanos / (double)TimeUnit.MILLISECONDS.toNanos ( 1 ) );
+    }
+
+    private static String throughput ( final long bytes, final long nanos )
+    {
+        if ( nanos <= 0 )
+        {
+            return "0.0";
+        }
+        return String.format ( Locale.ROOT, "%.1f", bytes / MB / ( nanos / (double)TimeUnit.SECONDS.toNanos ( 1 ) ) );
+    }
+
+    private static String quote ( final String value )
+    {
+        final StringBuilder sb = new StringBuilder ( value.length () + 2 );
+        sb.append ( '"' );
+        for ( int i = 0; i < value.length (); i++ )
+        {
+            final char c = value.charAt ( i );
+            switch ( c )
+            {
+                case '"':
+                    sb.append ( "\\\"" );
+                    break;
+                case '\\':
+                    sb.append ( "\\\\" );
+                    break;
+                default:
+                    if ( c < 0x20 )
+                    {
+                        sb.append ( String.format ( "\\u%04x", (int)c ) );
+                    }
+                    else
+                    {
+                        sb.append ( c );
+                    }
+                    break;
+            }
+        }
+        sb.append ( '"' );
+        return sb.toString ();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * The <code>by-hash</code> directory of an index directory
+ * <p>
+ * Each index file is also stored as <code>by-hash/&lt;name&gt;/&lt;digest&gt;</code>,
+ * for each checksum, where <code>name</code> is the name of the checksum in
+ * the release file. As these files never change, clients and caches don't
+ * see a mix of old and new files during a publish.
+ * </p>
+ * <p>
+ * The stored files are hard links to the index files, if the file system
+ * supports it, and copies otherwise. So index files must be replaced with a
+ * new file when writing them again, never be overwritten.
+ * </p>
+ * <p>
+ * The file <code>by-hash/generations</code> records the files of each
+ * publish, one line per generation, newest first. Index files which are
+ * published independently, like the contents files of different
+ * architectures in one component directory, use separate groups, each
+ * recorded in <code>by-hash/generations-&lt;group&gt;</code>. Files which are
+ * neither part of the current generation nor of the configured number of
+ * previous generations of any group are deleted.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class ByHash
+{
+    private static final String GENERATIONS = "generations";
+
+    private final File indexDir;
+
+    private final File dir;
+
+    private final File generationsFile;
+
+    private final int generations;
+
+    private final Console console;
+
+    /**
+     * @param indexDir
+     *            the index directory, e.g. <code>main/binary-amd64</code>
+     * @param group
+     *            the group of index files, or <code>null</code> if all index
+     *            files of the directory are published together
+     * @param generations
+     *            the number of previous generations to keep
+     * @param console
+     *            the console to log to
+     */
+    public ByHash ( final File indexDir, final String group, final int generations, final Console console )
+    {
+        this.indexDir = indexDir;
+        this.dir = new File ( indexDir, "by-hash" );
+        this.generationsFile = new File ( this.dir, group == null ? GENERATIONS : GENERATIONS + "-" + group );
+        this.generations = generations;
+        this.console = console;
+    }
+
+    /**
+     * Store the index files as a new generation
+     * 
+     * @param files
+     *            the index files, the names may contain a path, only the
+     *            last segment is used
+     * @param digesters
+     *            the digesters, providing the checksum names
+     */
+    public void publish ( final List<FileInformation> files, final List<Digester> digesters ) throws IOException
+    {
+        final List<String> current = new ArrayList<String> ();
+
+        for ( final FileInformation file : files )
+        {
+            final String name = file.getName ().substring ( file.getName ().lastIndexOf ( '/' ) + 1 );
+            final Path source = new File ( this.indexDir, name ).toPath ();
+
+            for ( final Digester d : digesters )
+            {
+                final String checksum = file.getChecksum ( d.getName () );
+                if ( checksum == null )
+                {
+                    continue;
+                }
+
+                final String entry = d.getName () + "/" + checksum;
+                current.add ( entry );
+                store ( source, new File ( this.dir, entry ).toPath () );
+            }
+        }
+
+        final List<String> history = readGenerations ( this.generationsFile );
+        history.add ( 0, String.join ( " ", current ) );
+        while ( history.size () > this.generations + 1 )
+        {
+            history.remove ( history.size () - 1 );
+        }
+
+        Files.write ( this.generationsFile.toPath (), history, StandardCharsets.UTF_8 );
+
+        final Set<String> keep = new HashSet<String> ();
+        final File[] generationsFiles = this.dir.listFiles ( ( d, name ) -> name.startsWith ( GENERATIONS ) );
+        for ( final File file : generationsFiles )
+        {
+            for ( final String generation : readGenerations ( file ) )
+            {
+                for ( final String entry : generation.split ( " " ) )
+                {
+                    if ( !entry.isEmpty () )
+                    {
+                        keep.add ( entry );
+                    }
+                }
+            }
+        }
+
+        prune ( keep );
+    }
+
+    /**
+     * Store a file, unless it is already present
+     * <p>
+     * The file is copied, not linked, as the index file will be overwritten
+     * by the next publish. The copy is moved into place, so that it never
+     * appears partially written.
+     * </p>
+     */
+    private void store ( final Path source, final Path target ) throws IOException
+    {
+        if ( Files.exists ( target ) )
+        {
+            return;
+        }
+
+        Files.createDirectories ( target.getParent () );
+
+        try
+        {
+            Files.createLink ( target, source );
+            return;
+        }
+        catch ( final IOException | UnsupportedOperationException e )
+        {
+            this.console.debug ( String.format ( "Failed to link %s, copying: %s", source, e.getMessage () ) );
+        }
+
+        final Path tmp = target.resolveSibling ( target.getFileName () + ".tmp" );
+        Files.copy ( source, tmp, StandardCopyOption.REPLACE_EXISTING );
+        Files.move ( tmp, target, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private static List<String> readGenerations ( final File file ) throws IOException
+    {
+        if ( !file.isFile () )
+        {
+            return new ArrayList<String> ();
+        }
+        return new ArrayList<String> ( Files.readAllLines ( file.toPath (), StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Delete all files which are not part of the kept generations
+     */
+    private void prune ( final Set<String> keep ) throws IOException
+    {
+        try ( final DirectoryStream<Path> checksumDirs = Files.newDirectoryStream ( this.dir.toPath (), Files::isDirectory ) )
+        {
+            for ( final Path checksumDir : checksumDirs )
+            {
+                try ( final DirectoryStream<Path> entries = Files.newDirectoryStream ( checksumDir ) )
+                {
+                    for ( final Path entry : entries )
+                    {
+                        if ( !keep.contains ( checksumDir.getFileName () + "/" + entry.getFileName () ) )
+                        {
+                            this.console.debug ( "Deleting: " + entry );
+                            Files.delete ( entry );
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+/**
+ * Checksum algorithms for package files and index files
+ * 
+ * @author Jens Reimann
+ */
+public enum Checksum
+{
+    MD5 ( "MD5Sum", "MD5sum", "MD5" ),
+    SHA1 ( "SHA1", "SHA1", "SHA-1" ),
+    SHA256 ( "SHA256", "SHA256", "SHA-256" ),
+    SHA512 ( "SHA512", "SHA512", "SHA-512" );
+
+    private final String releaseField;
+
+    private final String packageField;
+
+    private final String algorithm;
+
+    private Checksum ( final String releaseField, final String packageField, final String algorithm )
+    {
+        this.releaseField = releaseField;
+        this.packageField = packageField;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Get the field name in release files
+     */
+    public String getReleaseField ()
+    {
+        return this.releaseField;
+    }
+
+    /**
+     * Get the field name in package lists
+     * <p>
+     * This differs from the release field name for MD5.
+     * </p>
+     */
+    public String getPackageField ()
+    {
+        return this.packageField;
+    }
+
+    /**
+     * Get the name of the JCA message digest algorithm
+     */
+    public String getAlgorithm ()
+    {
+        return this.algorithm;
+    }
+
+    Digester createReleaseDigester ()
+    {
+        return new SimpleDigester ( this.releaseField, this.algorithm );
+    }
+
+    Digester createPackageDigester ()
+    {
+        return new SimpleDigester ( this.packageField, this.algorithm );
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+
+/**
+ * Compression formats for index files
+ * 
+ * @author Jens Reimann
+ */
+public enum Compression
+{
+    /**
+     * GZIP, compressed in parallel blocks
+     */
+    GZIP ( ".gz", -1, 1, 9 )
+    {
+        @Override
+        protected OutputStream create ( final OutputStream out, final int level, final ExecutorService executor, final int parallelism ) throws IOException
+        {
+            return new BlockGzipOutputStream ( out, level, executor, parallelism );
+        }
+    },
+    /**
+     * XZ
+     */
+    XZ ( ".xz", 6, 0, 9 )
+    {
+        @Override
+        protected OutputStream create ( final OutputStream out, final int level, final ExecutorService executor, final int parallelism ) throws IOException
+        {
+            return new XZCompressorOutputStream ( out, level );
+        }
+    },
+    /**
+     * BZIP2, the level is the block size
+     */
+    BZIP2 ( ".bz2", 9, 1, 9 )
+    {
+        @Override
+        protected OutputStream create ( final OutputStream out, final int level, final ExecutorService executor, final int parallelism ) throws IOException
+        {
+            return new BZip2CompressorOutputStream ( out, level );
+        }
+    },
+    /**
+     * Zstandard
+     * <p>
+     * This requires the optional dependency
+     * <code>com.github.luben:zstd-jni</code> on the class path.
+     * </p>
+     */
+    ZSTD ( ".zst", 3, 1, 22 )
+    {
+        @Override
+        protected OutputStream create ( final OutputStream out, final int level, final ExecutorService executor, final int parallelism ) throws IOException
+        {
+            return new ZstdCompressorOutputStream ( out, level );
+        }
+
+        @Override
+        public boolean isAvailable ()
+        {
+            return ZstdUtils.isZstdCompressionAvailable ();
+        }
+    };
+
+    private final String suffix;
+
+    private final int defaultLevel;
+
+    private final int minLevel;
+
+    private final int maxLevel;
+
+    private Compression ( final String suffix, final int defaultLevel, final int minLevel, final int maxLevel )
+    {
+        this.suffix = suffix;
+        this.defaultLevel = defaultLevel;
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+    }
+
+    public String getSuffix ()
+    {
+        return this.suffix;
+    }
+
+    public boolean isAvailable ()
+    {
+        return true;
+    }
+
+    /**
+     * Check if a level is valid for this format
+     * 
+     * @param level
+     *            the level to check
+     * @return <code>true</code> if the level is valid
+     */
+    public boolean isValidLevel ( final int level )
+    {
+        return level >= this.minLevel && level <= this.maxLevel;
+    }
+
+    protected abstract OutputStream create ( OutputStream out, int level, ExecutorService executor, int parallelism ) throws IOException;
+
+    /**
+     * Create a compressing output stream
+     * 
+     * @param out
+     *            the stream to write the compressed data to
+     * @param level
+     *            the compression level, or <code>null</code> for the default
+     *            level of the format
+     * @param executor
+     *            the executor to compress with, if the format supports
+     *            parallel compression, may be <code>null</code>
+     * @param parallelism
+     *            the maximum number of parallel compression tasks
+     * @return the new output stream
+     * @throws IOException
+     *             if creating the stream fails
+     */
+    public OutputStream createOutputStream ( final OutputStream out, final Integer level, final ExecutorService executor, final int parallelism ) throws IOException
+    {
+        return create ( out, level != null ? level : this.defaultLevel, executor, parallelism );
+    }
+}
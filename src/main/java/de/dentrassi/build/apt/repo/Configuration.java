@@ -16,8 +16,13 @@
 package de.dentrassi.build.apt.repo;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -33,8 +38,52 @@ public class Configuration
 
     private final Set<Distribution> distributions = new HashSet<Distribution> ();
 
+    private final List<Route> routes = new ArrayList<Route> ();
+
     private Set<String> architectures = new HashSet<String> ( Arrays.asList ( "i386", "amd64" ) );
 
+    private int threads = 1;
+
+    private boolean recursive;
+
+    private List<String> includes = new ArrayList<String> ( Arrays.asList ( "**.deb" ) );
+
+    private List<String> excludes = new ArrayList<String> ();
+
+    private boolean update;
+
+    private File cacheFile;
+
+    private boolean cacheFileKey;
+
+    private PoolStrategy poolStrategy = PoolStrategy.COPY;
+
+    private boolean contentAddressedPool;
+
+    private PublishStrategy publishStrategy = PublishStrategy.DIRECT;
+
+    private Set<Compression> compressions = EnumSet.of ( Compression.GZIP );
+
+    private Set<Checksum> checksums = EnumSet.of ( Checksum.MD5, Checksum.SHA1, Checksum.SHA256 );
+
+    private final Map<Compression, Integer> compressionLevels = new EnumMap<Compression, Integer> ( Compression.class );
+
+    private boolean contents;
+
+    private boolean byHash;
+
+    private int byHashGenerations = 2;
+
+    private boolean pdiff;
+
+    private int pdiffHistory = 14;
+
+    private File reportFile;
+
+    private boolean reportSummary;
+
+    private int reportSlowest = 10;
+
     public Configuration ()
     {
     }
@@ -47,7 +96,51 @@ public class Configuration
         {
             this.distributions.add ( new Distribution ( dist ) );
         }
-        this.architectures = new HashSet<String> ( other.architectures );
+        for ( final Route route : other.routes )
+        {
+            this.routes.add ( new Route ( route ) );
+        }
+        this.architectures = other.architectures == null ? null : new HashSet<String> ( other.architectures );
+        this.threads = other.threads;
+        this.recursive = other.recursive;
+        this.includes = other.includes == null ? null : new ArrayList<String> ( other.includes );
+        this.excludes = other.excludes == null ? null : new ArrayList<String> ( other.excludes );
+        this.update = other.update;
+        this.cacheFile = other.cacheFile;
+        this.cacheFileKey = other.cacheFileKey;
+        this.poolStrategy = other.poolStrategy;
+        this.contentAddressedPool = other.contentAddressedPool;
+        this.publishStrategy = other.publishStrategy;
+        this.compressions = copyOf ( other.compressions, Compression.class );
+        this.compressionLevels.putAll ( other.compressionLevels );
+        this.checksums = copyOf ( other.checksums, Checksum.class );
+        this.contents = other.contents;
+        this.byHash = other.byHash;
+        this.byHashGenerations = other.byHashGenerations;
+        this.pdiff = other.pdiff;
+        this.pdiffHistory = other.pdiffHistory;
+        this.reportFile = other.reportFile;
+        this.reportSummary = other.reportSummary;
+        this.reportSlowest = other.reportSlowest;
+    }
+
+    /**
+     * Copy a set of enum values
+     * <p>
+     * A <code>null</code> set stays <code>null</code>, so that it is reported
+     * by {@link #validate()}.
+     * </p>
+     */
+    private static <E extends Enum<E>> Set<E> copyOf ( final Set<E> values, final Class<E> type )
+    {
+        if ( values == null )
+        {
+            return null;
+        }
+
+        final Set<E> result = EnumSet.noneOf ( type );
+        result.addAll ( values );
+        return result;
     }
 
     public void validate () throws IllegalStateException
@@ -61,6 +154,87 @@ public class Configuration
         {
             Names.validate ( "architecture", arch );
         }
+
+        for ( final Route route : this.routes )
+        {
+            Router.findComponent ( this, route );
+        }
+
+        if ( this.includes == null || this.includes.isEmpty () )
+        {
+            throw new IllegalStateException ( "At least one include pattern must be set" );
+        }
+
+        if ( this.excludes == null )
+        {
+            throw new IllegalStateException ( "Excludes must be set" );
+        }
+
+        try
+        {
+            SourceScanner.compile ( this.includes );
+            SourceScanner.compile ( this.excludes );
+        }
+        catch ( final IllegalArgumentException e )
+        {
+            throw new IllegalStateException ( "Invalid source file pattern", e );
+        }
+
+        if ( this.poolStrategy == null )
+        {
+            throw new IllegalStateException ( "Pool strategy must be set" );
+        }
+
+        if ( this.publishStrategy == null )
+        {
+            throw new IllegalStateException ( "Publish strategy must be set" );
+        }
+
+        if ( this.compressions == null )
+        {
+            throw new IllegalStateException ( "Compressions must be set" );
+        }
+
+        for ( final Compression compression : this.compressions )
+        {
+            if ( !compression.isAvailable () )
+            {
+                throw new IllegalStateException ( String.format ( "Compression %s is not available, its library is missing from the class path", compression ) );
+            }
+        }
+
+        for ( final Map.Entry<Compression, Integer> entry : this.compressionLevels.entrySet () )
+        {
+            if ( !entry.getKey ().isValidLevel ( entry.getValue () ) )
+            {
+                throw new IllegalStateException ( String.format ( "Invalid compression level for %s: %s", entry.getKey (), entry.getValue () ) );
+            }
+        }
+
+        if ( this.checksums == null || this.checksums.isEmpty () )
+        {
+            throw new IllegalStateException ( "At least one checksum must be set" );
+        }
+
+        if ( this.threads < 1 )
+        {
+            throw new IllegalStateException ( "Threads must be at least 1" );
+        }
+
+        if ( this.byHashGenerations < 0 )
+        {
+            throw new IllegalStateException ( "The number of by-hash generations must not be negative" );
+        }
+
+        if ( this.pdiffHistory < 1 )
+        {
+            throw new IllegalStateException ( "The number of patches to keep must be at least 1" );
+        }
+
+        if ( this.reportSlowest < 0 )
+        {
+            throw new IllegalStateException ( "The number of slowest packages to report must not be negative" );
+        }
     }
 
     @Override
@@ -99,6 +273,438 @@ public class Configuration
         return this.architectures;
     }
 
+    /**
+     * Set the number of threads used to process package files
+     * <p>
+     * A value of <code>1</code> processes all packages sequentially. The
+     * result is the same for any number of threads.
+     * </p>
+     * 
+     * @param threads
+     *            the number of threads, must be at least <code>1</code>
+     */
+    public void setThreads ( final int threads )
+    {
+        this.threads = threads;
+    }
+
+    public int getThreads ()
+    {
+        return this.threads;
+    }
+
+    /**
+     * Set whether the sub-directories of the source folder are scanned
+     * <p>
+     * Directories are listed in parallel when running with more than one
+     * thread. Symbolic links to directories are not followed.
+     * </p>
+     * 
+     * @param recursive
+     *            <code>true</code> to scan sub-directories
+     */
+    public void setRecursive ( final boolean recursive )
+    {
+        this.recursive = recursive;
+    }
+
+    public boolean isRecursive ()
+    {
+        return this.recursive;
+    }
+
+    /**
+     * Set the patterns of the package files
+     * <p>
+     * The patterns are globs, matched against the path relative to the source
+     * folder. <code>**</code> also matches across directories, so the default
+     * <code>**.deb</code> matches all <code>.deb</code> files in any
+     * directory.
+     * </p>
+     * 
+     * @param includes
+     *            the patterns, must not be empty
+     */
+    public void setIncludes ( final List<String> includes )
+    {
+        this.includes = includes;
+    }
+
+    public List<String> getIncludes ()
+    {
+        return this.includes;
+    }
+
+    /**
+     * Set the patterns of the files and directories to skip
+     * <p>
+     * For example <code>{tmp,**&#47;tmp}</code> skips all directories named
+     * <code>tmp</code> and their content.
+     * </p>
+     * 
+     * @param excludes
+     *            the patterns, may be empty
+     */
+    public void setExcludes ( final List<String> excludes )
+    {
+        this.excludes = excludes;
+    }
+
+    public List<String> getExcludes ()
+    {
+        return this.excludes;
+    }
+
+    /**
+     * Set the update mode
+     * <p>
+     * In update mode an existing target repository is extended instead of
+     * rejected. Package files which the source index of the repository records
+     * with the same size and modification timestamp, and whose pool files are
+     * still listed, are skipped. Only the package lists which got new or
+     * changed packages are written again.
+     * </p>
+     * 
+     * @param update
+     *            <code>true</code> to update an existing repository
+     */
+    public void setUpdate ( final boolean update )
+    {
+        this.update = update;
+    }
+
+    public boolean isUpdate ()
+    {
+        return this.update;
+    }
+
+    /**
+     * Set the package metadata cache file
+     * <p>
+     * If set, the metadata and checksums of each package file are stored in
+     * this file. Package files which did not change since they were recorded
+     * are neither unpacked nor digested again.
+     * </p>
+     * 
+     * @param cacheFile
+     *            the cache file, or <code>null</code> to disable the cache
+     */
+    public void setCacheFile ( final File cacheFile )
+    {
+        this.cacheFile = cacheFile;
+    }
+
+    public File getCacheFile ()
+    {
+        return this.cacheFile;
+    }
+
+    /**
+     * Set whether the file key (e.g. the inode) is part of the cache key
+     * <p>
+     * By default a cache entry is matched by path, size and modification
+     * timestamp.
+     * </p>
+     * 
+     * @param cacheFileKey
+     *            <code>true</code> to also match the file key
+     */
+    public void setCacheFileKey ( final boolean cacheFileKey )
+    {
+        this.cacheFileKey = cacheFileKey;
+    }
+
+    public boolean isCacheFileKey ()
+    {
+        return this.cacheFileKey;
+    }
+
+    /**
+     * Set how package files are put into the pool
+     * 
+     * @param poolStrategy
+     *            the pool strategy
+     */
+    public void setPoolStrategy ( final PoolStrategy poolStrategy )
+    {
+        this.poolStrategy = poolStrategy;
+    }
+
+    public PoolStrategy getPoolStrategy ()
+    {
+        return this.poolStrategy;
+    }
+
+    /**
+     * Set whether each distinct package file is stored only once
+     * <p>
+     * The package files are then stored by their SHA-256 checksum, using the
+     * pool strategy, and the pool files of all components are hard links to
+     * them. The <code>Filename</code> of the packages doesn't change.
+     * </p>
+     * 
+     * @param contentAddressedPool
+     *            <code>true</code> to store each distinct package file once
+     */
+    public void setContentAddressedPool ( final boolean contentAddressedPool )
+    {
+        this.contentAddressedPool = contentAddressedPool;
+    }
+
+    public boolean isContentAddressedPool ()
+    {
+        return this.contentAddressedPool;
+    }
+
+    /**
+     * Set how the repository is published into the target folder
+     * <p>
+     * With a staged strategy the repository is built in a sibling folder of
+     * the target folder and swapped in once it is complete, so clients never
+     * see a partially written repository and a failed build leaves the
+     * published repository untouched. The target folder may then already
+     * exist without update mode, it is replaced by a new repository.
+     * </p>
+     * <p>
+     * {@link PublishStrategy#RENAME} leaves a short moment in which the
+     * target folder does not exist, {@link PublishStrategy#SYMLINK} switches
+     * atomically and is recommended.
+     * </p>
+     * 
+     * @param publishStrategy
+     *            the publish strategy
+     */
+    public void setPublishStrategy ( final PublishStrategy publishStrategy )
+    {
+        this.publishStrategy = publishStrategy;
+    }
+
+    public PublishStrategy getPublishStrategy ()
+    {
+        return this.publishStrategy;
+    }
+
+    /**
+     * Set the compression formats of the index files
+     * <p>
+     * The plain index files are always written. By default only GZIP
+     * compressed variants are created.
+     * </p>
+     * 
+     * @param compressions
+     *            the compression formats, may be empty
+     */
+    public void setCompressions ( final Set<Compression> compressions )
+    {
+        this.compressions = compressions;
+    }
+
+    public Set<Compression> getCompressions ()
+    {
+        return this.compressions;
+    }
+
+    /**
+     * Set the compression level of a format
+     * 
+     * @param compression
+     *            the compression format
+     * @param level
+     *            the level, or <code>null</code> to use the default level of
+     *            the format
+     */
+    public void setCompressionLevel ( final Compression compression, final Integer level )
+    {
+        if ( level == null )
+        {
+            this.compressionLevels.remove ( compression );
+        }
+        else
+        {
+            this.compressionLevels.put ( compression, level );
+        }
+    }
+
+    public Integer getCompressionLevel ( final Compression compression )
+    {
+        return this.compressionLevels.get ( compression );
+    }
+
+    /**
+     * Set the checksums of package files and index files
+     * <p>
+     * By default MD5, SHA1 and SHA256 checksums are created. APT only requires
+     * the strongest checksum it supports, so dropping the weaker ones saves
+     * time for large repositories.
+     * </p>
+     * 
+     * @param checksums
+     *            the checksums, must not be empty
+     */
+    public void setChecksums ( final Set<Checksum> checksums )
+    {
+        this.checksums = checksums;
+    }
+
+    public Set<Checksum> getChecksums ()
+    {
+        return this.checksums;
+    }
+
+    /**
+     * Set whether contents files are created
+     * <p>
+     * If enabled, a <code>Contents-&lt;arch&gt;.gz</code> file, listing the
+     * files of all packages, is created for each component and architecture.
+     * The files are listed while digesting the package files, so this does
+     * not require an additional read of new package files.
+     * </p>
+     * 
+     * @param contents
+     *            <code>true</code> to create contents files
+     */
+    public void setContents ( final boolean contents )
+    {
+        this.contents = contents;
+    }
+
+    public boolean isContents ()
+    {
+        return this.contents;
+    }
+
+    /**
+     * Set whether index files are also stored by their checksums
+     * <p>
+     * If enabled, each index file is also written to
+     * <code>by-hash/&lt;checksum&gt;/&lt;digest&gt;</code> in its directory
+     * and the release file announces this with <code>Acquire-By-Hash</code>.
+     * </p>
+     * 
+     * @param byHash
+     *            <code>true</code> to create the by-hash files
+     */
+    public void setByHash ( final boolean byHash )
+    {
+        this.byHash = byHash;
+    }
+
+    public boolean isByHash ()
+    {
+        return this.byHash;
+    }
+
+    /**
+     * Set the number of previous generations of by-hash files to keep
+     * <p>
+     * Clients which fetched an older release file can still download the
+     * index files of the kept generations.
+     * </p>
+     * 
+     * @param byHashGenerations
+     *            the number of previous generations, must not be negative
+     */
+    public void setByHashGenerations ( final int byHashGenerations )
+    {
+        this.byHashGenerations = byHashGenerations;
+    }
+
+    public int getByHashGenerations ()
+    {
+        return this.byHashGenerations;
+    }
+
+    /**
+     * Set whether patches of the package lists are created
+     * <p>
+     * If enabled, updating a repository adds an <code>ed</code> script from
+     * the previous to the new package list to
+     * <code>Packages.diff</code>, which is listed in the release file by its
+     * <code>Index</code> file. Clients which are only a few updates behind
+     * download these patches instead of the full package list.
+     * </p>
+     * 
+     * @param pdiff
+     *            <code>true</code> to create the patches
+     */
+    public void setPdiff ( final boolean pdiff )
+    {
+        this.pdiff = pdiff;
+    }
+
+    public boolean isPdiff ()
+    {
+        return this.pdiff;
+    }
+
+    /**
+     * Set the number of patches kept for each package list
+     * 
+     * @param pdiffHistory
+     *            the number of patches, must be at least <code>1</code>
+     */
+    public void setPdiffHistory ( final int pdiffHistory )
+    {
+        this.pdiffHistory = pdiffHistory;
+    }
+
+    public int getPdiffHistory ()
+    {
+        return this.pdiffHistory;
+    }
+
+    /**
+     * Set the performance report file
+     * <p>
+     * If set, a JSON report with the time and the number of bytes of each
+     * build phase, and the timings of each package, is written to this file.
+     * </p>
+     * 
+     * @param reportFile
+     *            the report file, or <code>null</code> to not write a report
+     */
+    public void setReportFile ( final File reportFile )
+    {
+        this.reportFile = reportFile;
+    }
+
+    public File getReportFile ()
+    {
+        return this.reportFile;
+    }
+
+    /**
+     * Set whether a summary of the performance report is logged
+     * 
+     * @param reportSummary
+     *            <code>true</code> to log the summary
+     */
+    public void setReportSummary ( final boolean reportSummary )
+    {
+        this.reportSummary = reportSummary;
+    }
+
+    public boolean isReportSummary ()
+    {
+        return this.reportSummary;
+    }
+
+    /**
+     * Set the number of slowest packages listed in the performance report
+     * 
+     * @param reportSlowest
+     *            the number of packages, must not be negative
+     */
+    public void setReportSlowest ( final int reportSlowest )
+    {
+        this.reportSlowest = reportSlowest;
+    }
+
+    public int getReportSlowest ()
+    {
+        return this.reportSlowest;
+    }
+
     public Set<Distribution> getDistributions ()
     {
         return this.distributions;
@@ -115,4 +721,28 @@ public class Configuration
     {
         this.distributions.add ( new Distribution ( dist ) );
     }
+
+    public List<Route> getRoutes ()
+    {
+        return this.routes;
+    }
+
+    /**
+     * Add a route
+     * <p>
+     * If no routes are added, all packages are assigned to the first component
+     * of the first distribution. Otherwise each package is assigned to the
+     * components of all matching routes, and packages which don't match any
+     * route are skipped. The route is copied and cannot be altered after
+     * adding.
+     * </p>
+     * 
+     * @param route
+     *            the route to add, its distribution and component must be
+     *            added as well
+     */
+    public void addRoute ( final Route route )
+    {
+        this.routes.add ( new Route ( route ) );
+    }
 }
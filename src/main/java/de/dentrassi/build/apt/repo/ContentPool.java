@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * A content addressed store for the pool
+ * <p>
+ * Each distinct package file is stored once, named by its SHA-256 checksum,
+ * in the folder <code>pool/.sha256</code>. The pool files referenced by the
+ * package lists are hard links to the stored file, so the same package file
+ * in several components, or under different names, takes up disk space and
+ * copy time only once.
+ * </p>
+ * <p>
+ * If hard linking is not possible, e.g. because the file system doesn't
+ * support it, content addressing cannot save anything. This is reported once,
+ * and the package files are then put into the pool files directly, using the
+ * pool strategy.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class ContentPool
+{
+    static final String FOLDER = ".sha256";
+
+    private final Path root;
+
+    private final PoolStrategy strategy;
+
+    private final Console console;
+
+    private final AtomicBoolean fallbackReported;
+
+    /**
+     * Whether linking pool files to stored files failed
+     */
+    private final AtomicBoolean linkFailed = new AtomicBoolean ();
+
+    /**
+     * @param pool
+     *            the pool folder
+     * @param strategy
+     *            how package files are stored
+     * @param console
+     *            the console to log to
+     * @param fallbackReported
+     *            whether a fallback of the pool strategy was already reported
+     */
+    public ContentPool ( final File pool, final PoolStrategy strategy, final Console console, final AtomicBoolean fallbackReported )
+    {
+        this.root = new File ( pool, FOLDER ).toPath ();
+        this.strategy = strategy;
+        this.console = console;
+        this.fallbackReported = fallbackReported;
+    }
+
+    private Path getBlob ( final String sha256 )
+    {
+        return this.root.resolve ( sha256.substring ( 0, 2 ) ).resolve ( sha256 );
+    }
+
+    /**
+     * Put a package file into the pool
+     * <p>
+     * This method may be called concurrently, also for package files with
+     * the same content.
+     * </p>
+     * 
+     * @param source
+     *            the package file
+     * @param sha256
+     *            the hex encoded SHA-256 checksum of the package file
+     * @param target
+     *            the pool file, which must not exist
+     */
+    public void populate ( final Path source, final String sha256, final Path target ) throws IOException
+    {
+        if ( this.linkFailed.get () )
+        {
+            this.strategy.populate ( source, target, this.console, this.fallbackReported );
+            return;
+        }
+
+        final Path blob = getBlob ( sha256 );
+
+        if ( Files.isRegularFile ( blob ) && Files.size ( blob ) == Files.size ( source ) )
+        {
+            this.console.debug ( "Reusing stored content: " + blob );
+        }
+        else
+        {
+            Files.createDirectories ( blob.getParent () );
+
+            // concurrent writers of the same content replace each other atomically
+            final Path tmp = blob.resolveSibling ( sha256 + "." + Thread.currentThread ().getId () + ".tmp" );
+            Files.deleteIfExists ( tmp );
+            this.strategy.populate ( source, tmp, this.console, this.fallbackReported );
+            Files.move ( tmp, blob, StandardCopyOption.ATOMIC_MOVE );
+        }
+
+        try
+        {
+            Files.createLink ( target, blob );
+        }
+        catch ( final IOException | UnsupportedOperationException e )
+        {
+            if ( this.linkFailed.compareAndSet ( false, true ) )
+            {
+                this.console.warn ( String.format ( "Unable to link pool file %s to stored content, content addressing is not effective: %s", target, e.getMessage () ) );
+            }
+            // the stored file is removed by the next cleanup
+            this.strategy.populate ( source, target, this.console, this.fallbackReported );
+        }
+    }
+
+    /**
+     * Delete stored files which are no longer linked from the pool
+     * 
+     * @param fileKeys
+     *            the file keys of all pool files referenced by the package
+     *            lists
+     */
+    public void cleanup ( final Set<Object> fileKeys ) throws IOException
+    {
+        if ( !Files.isDirectory ( this.root ) )
+        {
+            return;
+        }
+
+        try ( DirectoryStream<Path> dirs = Files.newDirectoryStream ( this.root ) )
+        {
+            for ( final Path dir : dirs )
+            {
+                try ( DirectoryStream<Path> blobs = Files.newDirectoryStream ( dir ) )
+                {
+                    for ( final Path blob : blobs )
+                    {
+                        final Object fileKey = Files.readAttributes ( blob, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).fileKey ();
+                        if ( !fileKeys.contains ( fileKey ) )
+                        {
+                            this.console.info ( "Remove stored content: " + blob );
+                            Files.delete ( blob );
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * The file paths of the packages in the pool
+ * <p>
+ * This keeps the file paths, which the contents files are created from,
+ * between runs of a repository which is updated. So only the packages which
+ * are new or changed in a run need to be unpacked.
+ * </p>
+ * <p>
+ * The index is stored in the target folder, as plain text file. Each entry
+ * starts with a line of the form <code>@ &lt;pool file&gt;</code>, followed
+ * by the file paths of the package, each indented by a space, and an empty
+ * line.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class ContentsIndex
+{
+    static final String FILE_NAME = ".contents";
+
+    private static final String HEADER = "# apt-repo contents index 1";
+
+    private ContentsIndex ()
+    {
+    }
+
+    /**
+     * Load the index file, if it exists
+     * <p>
+     * An index file which cannot be read is ignored.
+     * </p>
+     * 
+     * @param targetFolder
+     *            the target folder of the repository
+     * @param console
+     *            the console to report to
+     * @return the file paths by pool file name, empty if there is no index
+     */
+    public static Map<String, List<String>> load ( final File targetFolder, final Console console )
+    {
+        final File file = new File ( targetFolder, FILE_NAME );
+        if ( !file.isFile () )
+        {
+            return Collections.emptyMap ();
+        }
+
+        final Map<String, List<String>> result = new HashMap<String, List<String>> ();
+
+        try ( final BufferedReader reader = Files.newBufferedReader ( file.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( !HEADER.equals ( reader.readLine () ) )
+            {
+                console.warn ( "Ignoring contents index with unknown format: " + file );
+                return Collections.emptyMap ();
+            }
+
+            String filename = null;
+            List<String> paths = null;
+
+            String line;
+            while ( ( line = reader.readLine () ) != null )
+            {
+                if ( line.startsWith ( "@ " ) )
+                {
+                    filename = line.substring ( 2 );
+                    paths = new ArrayList<String> ();
+                }
+                else if ( line.isEmpty () )
+                {
+                    if ( filename != null )
+                    {
+                        result.put ( filename, Collections.unmodifiableList ( paths ) );
+                    }
+                    filename = null;
+                }
+                else if ( paths != null && line.startsWith ( " " ) )
+                {
+                    paths.add ( line.substring ( 1 ) );
+                }
+            }
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            console.warn ( "Failed to read contents index: " + file + ": " + e.getMessage () );
+            return Collections.emptyMap ();
+        }
+
+        console.debug ( String.format ( "Loaded %s entries from contents index: %s", result.size (), file ) );
+
+        return result;
+    }
+
+    /**
+     * Write the index file
+     * 
+     * @param targetFolder
+     *            the target folder of the repository
+     * @param contents
+     *            the file paths by pool file name
+     */
+    public static void store ( final File targetFolder, final Map<String, List<String>> contents ) throws IOException
+    {
+        final Path path = new File ( targetFolder, FILE_NAME ).toPath ();
+        final Path tmp = Files.createTempFile ( path.getParent (), path.getFileName ().toString (), ".tmp" );
+        try
+        {
+            try ( final Writer writer = Files.newBufferedWriter ( tmp, StandardCharsets.UTF_8 ) )
+            {
+                writer.write ( HEADER );
+                writer.write ( '\n' );
+
+                for ( final Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>> ( contents ).entrySet () )
+                {
+                    writer.write ( "@ " );
+                    writer.write ( entry.getKey () );
+                    writer.write ( '\n' );
+                    for ( final String file : entry.getValue () )
+                    {
+                        writer.write ( ' ' );
+                        writer.write ( file );
+                        writer.write ( '\n' );
+                    }
+                    writer.write ( '\n' );
+                }
+            }
+
+            Files.move ( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            Files.deleteIfExists ( tmp );
+        }
+    }
+}
@@ -37,10 +37,12 @@ public final class DistributionReleaseFile extends ControlFile
             new ControlField ( "Codename", true ),
             new ControlField ( "Date", true ),
             new ControlField ( "Components", true ),
+            new ControlField ( "Acquire-By-Hash" ),
             new ControlField ( "Description", true, ControlField.Type.MULTILINE ),
-            new ControlField ( "MD5Sum", true, ControlField.Type.MULTILINE ),
-            new ControlField ( "SHA1", true, ControlField.Type.MULTILINE ),
-            new ControlField ( "SHA256", true, ControlField.Type.MULTILINE )
+            new ControlField ( "MD5Sum", false, ControlField.Type.MULTILINE ),
+            new ControlField ( "SHA1", false, ControlField.Type.MULTILINE ),
+            new ControlField ( "SHA256", false, ControlField.Type.MULTILINE ),
+            new ControlField ( "SHA512", false, ControlField.Type.MULTILINE )
     };
 
     public DistributionReleaseFile ()
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Create <code>ed</code> scripts, as created by <code>diff --ed</code>
+ * <p>
+ * The difference is calculated with the algorithm of Myers, after stripping
+ * the common prefix and suffix. As the memory used grows with the square of
+ * the number of edits, the number of edits is limited.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class EdDiff
+{
+    /**
+     * A block of changed lines
+     * <p>
+     * The lines <code>[oldStart, oldEnd)</code> of the old file are replaced
+     * by the lines <code>[newStart, newEnd)</code> of the new file.
+     * </p>
+     */
+    private static final class Hunk
+    {
+        private int oldStart;
+
+        private int oldEnd;
+
+        private int newStart;
+
+        private int newEnd;
+    }
+
+    private EdDiff ()
+    {
+    }
+
+    /**
+     * Split data into lines
+     * 
+     * @param data
+     *            the data, lines are terminated by <code>\n</code>
+     * @return the lines, without the line terminator
+     */
+    public static List<String> lines ( final String data )
+    {
+        final List<String> result = new ArrayList<String> ();
+
+        int start = 0;
+        int idx;
+        while ( ( idx = data.indexOf ( '\n', start ) ) >= 0 )
+        {
+            result.add ( data.substring ( start, idx ) );
+            start = idx + 1;
+        }
+        if ( start < data.length () )
+        {
+            result.add ( data.substring ( start ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Create an <code>ed</code> script
+     * 
+     * @param oldLines
+     *            the lines of the old file
+     * @param newLines
+     *            the lines of the new file
+     * @param maxEdits
+     *            the maximum number of inserted and deleted lines
+     * @return the script transforming the old into the new file, or
+     *         <code>null</code> if the files differ in more than
+     *         <code>maxEdits</code> lines, or if the script cannot be
+     *         expressed safely
+     */
+    public static String diff ( final List<String> oldLines, final List<String> newLines, final int maxEdits )
+    {
+        // map lines to numbers, so comparing is cheap
+
+        final Map<String, Integer> ids = new HashMap<String, Integer> ();
+        final int[] a = toIds ( oldLines, ids );
+        final int[] b = toIds ( newLines, ids );
+
+        // strip common prefix and suffix
+
+        int prefix = 0;
+        while ( prefix < a.length && prefix < b.length && a[prefix] == b[prefix] )
+        {
+            prefix++;
+        }
+
+        int suffix = 0;
+        while ( suffix < a.length - prefix && suffix < b.length - prefix && a[a.length - 1 - suffix] == b[b.length - 1 - suffix] )
+        {
+            suffix++;
+        }
+
+        final List<Hunk> hunks = diff ( a, prefix, a.length - suffix, b, prefix, b.length - suffix, maxEdits );
+        if ( hunks == null )
+        {
+            return null;
+        }
+
+        // write commands from the end, so that line numbers stay valid
+
+        final StringBuilder sb = new StringBuilder ();
+        for ( int i = hunks.size () - 1; i >= 0; i-- )
+        {
+            final Hunk hunk = hunks.get ( i );
+
+            if ( hunk.oldStart == hunk.oldEnd )
+            {
+                sb.append ( hunk.oldStart ).append ( 'a' );
+            }
+            else
+            {
+                sb.append ( hunk.oldStart + 1 );
+                if ( hunk.oldEnd - hunk.oldStart > 1 )
+                {
+                    sb.append ( ',' ).append ( hunk.oldEnd );
+                }
+                sb.append ( hunk.newStart == hunk.newEnd ? 'd' : 'c' );
+            }
+            sb.append ( '\n' );
+
+            if ( hunk.newStart < hunk.newEnd )
+            {
+                for ( int j = hunk.newStart; j < hunk.newEnd; j++ )
+                {
+                    final String line = newLines.get ( j );
+                    if ( line.equals ( "." ) )
+                    {
+                        // would end the input mode of ed
+                        return null;
+                    }
+                    sb.append ( line ).append ( '\n' );
+                }
+                sb.append ( ".\n" );
+            }
+        }
+
+        return sb.toString ();
+    }
+
+    private static int[] toIds ( final List<String> lines, final Map<String, Integer> ids )
+    {
+        final int[] result = new int[lines.size ()];
+        int i = 0;
+        for ( final String line : lines )
+        {
+            Integer id = ids.get ( line );
+            if ( id == null )
+            {
+                id = ids.size ();
+                ids.put ( line, id );
+            }
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Find the hunks between two ranges of lines
+     * 
+     * @return the hunks in ascending order, or <code>null</code> if there are
+     *         more than <code>maxEdits</code> edits
+     */
+    private static List<Hunk> diff ( final int[] a, final int aStart, final int aEnd, final int[] b, final int bStart, final int bEnd, final int maxEdits )
+    {
+        final int n = aEnd - aStart;
+        final int m = bEnd - bStart;
+        final int max = Math.min ( n + m, maxEdits );
+
+        // trace.get(d) holds the furthest x for each diagonal k in [-d, d], at index k + d
+
+        final List<int[]> trace = new ArrayList<int[]> ();
+
+        int[] previous = new int[] { 0 };
+        int d;
+        found: for ( d = 0; d <= max; d++ )
+        {
+            final int[] v = new int[2 * d + 1];
+
+            for ( int k = -d; k <= d; k += 2 )
+            {
+                int x;
+                if ( d == 0 )
+                {
+                    x = 0;
+                }
+                else if ( k == -d || k != d && get ( previous, d - 1, k - 1 ) < get ( previous, d - 1, k + 1 ) )
+                {
+                    x = get ( previous, d - 1, k + 1 );
+                }
+                else
+                {
+                    x = get ( previous, d - 1, k - 1 ) + 1;
+                }
+
+                int y = x - k;
+                while ( x < n && y < m && a[aStart + x] == b[bStart + y] )
+                {
+                    x++;
+                    y++;
+                }
+
+                v[k + d] = x;
+
+                if ( x >= n && y >= m )
+                {
+                    trace.add ( v );
+                    break found;
+                }
+            }
+
+            trace.add ( v );
+            previous = v;
+        }
+
+        if ( d > max )
+        {
+            return null;
+        }
+
+        // walk back, collecting the edits
+
+        final boolean[] deleted = new boolean[n];
+        final boolean[] inserted = new boolean[m];
+
+        int x = n;
+        int y = m;
+        for ( int i = trace.size () - 1; i > 0; i-- )
+        {
+            final int[] v = trace.get ( i - 1 );
+            final int k = x - y;
+
+            final int prevK;
+            if ( k == -i || k != i && get ( v, i - 1, k - 1 ) < get ( v, i - 1, k + 1 ) )
+            {
+                prevK = k + 1;
+            }
+            else
+            {
+                prevK = k - 1;
+            }
+
+            final int prevX = get ( v, i - 1, prevK );
+            final int prevY = prevX - prevK;
+
+            while ( x > prevX && y > prevY )
+            {
+                x--;
+                y--;
+            }
+
+            if ( x == prevX )
+            {
+                inserted[prevY] = true;
+            }
+            else
+            {
+                deleted[prevX] = true;
+            }
+
+            x = prevX;
+            y = prevY;
+        }
+
+        // group the edits into hunks
+
+        final List<Hunk> result = new ArrayList<Hunk> ();
+
+        int i = 0;
+        int j = 0;
+        while ( i < n || j < m )
+        {
+            if ( i < n && j < m && !deleted[i] && !inserted[j] )
+            {
+                i++;
+                j++;
+                continue;
+            }
+
+            final Hunk hunk = new Hunk ();
+            hunk.oldStart = aStart + i;
+            hunk.newStart = bStart + j;
+            while ( i < n && deleted[i] )
+            {
+                i++;
+            }
+            while ( j < m && inserted[j] )
+            {
+                j++;
+            }
+            hunk.oldEnd = aStart + i;
+            hunk.newEnd = bStart + j;
+            result.add ( hunk );
+        }
+
+        return result;
+    }
+
+    private static int get ( final int[] v, final int d, final int k )
+    {
+        return v[k + d];
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Size and checksums of a file listed in a release file
+ * 
+ * @author Jens Reimann
+ */
+final class FileInformation
+{
+    private final String name;
+
+    private final long size;
+
+    private final Map<String, String> checksums;
+
+    /**
+     * @param name
+     *            the name of the file, relative to the distribution directory
+     * @param size
+     *            the size of the file in bytes
+     * @param checksums
+     *            map of digester name to hex encoded checksum
+     */
+    public FileInformation ( final String name, final long size, final Map<String, String> checksums )
+    {
+        this.name = name;
+        this.size = size;
+        this.checksums = checksums;
+    }
+
+    public String getName ()
+    {
+        return this.name;
+    }
+
+    public long getSize ()
+    {
+        return this.size;
+    }
+
+    public String getChecksum ( final String digesterName )
+    {
+        return this.checksums.get ( digesterName );
+    }
+
+    /**
+     * Check if there is a checksum for each of the digesters
+     * 
+     * @param digesters
+     *            the digesters to check
+     * @return <code>true</code> if all checksums are present
+     */
+    public boolean hasChecksums ( final Collection<Digester> digesters )
+    {
+        for ( final Digester d : digesters )
+        {
+            if ( !this.checksums.containsKey ( d.getName () ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
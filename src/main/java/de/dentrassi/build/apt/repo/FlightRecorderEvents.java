@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of a repository build
+ * <p>
+ * The events can be recorded by running the build with e.g.
+ * <code>-XX:StartFlightRecording=filename=build.jfr</code>. They are defined
+ * using the <code>jdk.jfr.EventFactory</code>, accessed by reflection, so that
+ * the plugin still runs on Java versions without the flight recorder. On those
+ * JVMs, and whenever no recording is active, all events are no-ops.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class FlightRecorderEvents
+{
+    private static final String TIMESPAN = "jdk.jfr.Timespan";
+
+    private static final String NANOSECONDS = "NANOSECONDS";
+
+    private static final String DATA_AMOUNT = "jdk.jfr.DataAmount";
+
+    private static final String BYTES = "BYTES";
+
+    /**
+     * A package file was read, digested and copied into the pool
+     * <p>
+     * Fields: file, size, control format, hash duration, copy duration
+     * </p>
+     */
+    static final Type PACKAGE_INGESTED = new Type ( "de.dentrassi.apt.PackageIngested", "Package Ingested", //
+            new Field ( String.class, "file", "File" ), //
+            new Field ( long.class, "size", "Size", DATA_AMOUNT, BYTES ), //
+            new Field ( String.class, "controlFormat", "Control Format" ), //
+            new Field ( long.class, "hashDuration", "Hash Duration", TIMESPAN, NANOSECONDS ), //
+            new Field ( long.class, "copyDuration", "Copy Duration", TIMESPAN, NANOSECONDS ) //
+    );
+
+    /**
+     * A package list and its compressed variants were written
+     * <p>
+     * Fields: distribution, component, architecture, stanza count, raw bytes,
+     * compressed bytes
+     * </p>
+     */
+    static final Type INDEX_WRITTEN = new Type ( "de.dentrassi.apt.IndexWritten", "Index Written", //
+            new Field ( String.class, "distribution", "Distribution" ), //
+            new Field ( String.class, "component", "Component" ), //
+            new Field ( String.class, "architecture", "Architecture" ), //
+            new Field ( int.class, "stanzas", "Stanzas" ), //
+            new Field ( long.class, "rawBytes", "Raw Bytes", DATA_AMOUNT, BYTES ), //
+            new Field ( long.class, "compressedBytes", "Compressed Bytes", DATA_AMOUNT, BYTES ) //
+    );
+
+    /**
+     * A distribution release file was written
+     * <p>
+     * Fields: distribution, number of listed files, bytes of listed files
+     * </p>
+     */
+    static final Type RELEASE_WRITTEN = new Type ( "de.dentrassi.apt.ReleaseWritten", "Release Written", //
+            new Field ( String.class, "distribution", "Distribution" ), //
+            new Field ( int.class, "files", "Files" ), //
+            new Field ( long.class, "bytes", "Bytes", DATA_AMOUNT, BYTES ) //
+    );
+
+    private FlightRecorderEvents ()
+    {
+    }
+
+    /**
+     * A field of an event type
+     */
+    static final class Field
+    {
+        private final Class<?> type;
+
+        private final String name;
+
+        private final String label;
+
+        private final String contentType;
+
+        private final String contentValue;
+
+        public Field ( final Class<?> type, final String name, final String label )
+        {
+            this ( type, name, label, null, null );
+        }
+
+        public Field ( final Class<?> type, final String name, final String label, final String contentType, final String contentValue )
+        {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.contentType = contentType;
+            this.contentValue = contentValue;
+        }
+    }
+
+    /**
+     * The flight recorder API, or <code>null</code> if not available
+     */
+    private static final class Api
+    {
+        private final Constructor<?> annotationElement;
+
+        private final Constructor<?> valueDescriptor;
+
+        private final Method create;
+
+        private final Method getEventType;
+
+        private final Method isEnabled;
+
+        private final Method newEvent;
+
+        private final Method begin;
+
+        private final Method set;
+
+        private final Method commit;
+
+        private final Class<? extends Annotation> nameAnnotation;
+
+        private final Class<? extends Annotation> labelAnnotation;
+
+        private final Class<? extends Annotation> categoryAnnotation;
+
+        private final Class<? extends Annotation> stackTraceAnnotation;
+
+        private static final Api INSTANCE = load ();
+
+        private Api () throws ReflectiveOperationException
+        {
+            final Class<?> annotationElementClass = Class.forName ( "jdk.jfr.AnnotationElement" );
+            final Class<?> valueDescriptorClass = Class.forName ( "jdk.jfr.ValueDescriptor" );
+            final Class<?> factoryClass = Class.forName ( "jdk.jfr.EventFactory" );
+            final Class<?> eventTypeClass = Class.forName ( "jdk.jfr.EventType" );
+            final Class<?> eventClass = Class.forName ( "jdk.jfr.Event" );
+
+            this.annotationElement = annotationElementClass.getConstructor ( Class.class, Object.class );
+            this.valueDescriptor = valueDescriptorClass.getConstructor ( Class.class, String.class, List.class );
+            this.create = factoryClass.getMethod ( "create", List.class, List.class );
+            this.getEventType = factoryClass.getMethod ( "getEventType" );
+            this.isEnabled = eventTypeClass.getMethod ( "isEnabled" );
+            this.newEvent = factoryClass.getMethod ( "newEvent" );
+            this.begin = eventClass.getMethod ( "begin" );
+            this.set = eventClass.getMethod ( "set", int.class, Object.class );
+            this.commit = eventClass.getMethod ( "commit" );
+
+            this.nameAnnotation = annotation ( "jdk.jfr.Name" );
+            this.labelAnnotation = annotation ( "jdk.jfr.Label" );
+            this.categoryAnnotation = annotation ( "jdk.jfr.Category" );
+            this.stackTraceAnnotation = annotation ( "jdk.jfr.StackTrace" );
+        }
+
+        private static Class<? extends Annotation> annotation ( final String name ) throws ClassNotFoundException
+        {
+            return Class.forName ( name ).asSubclass ( Annotation.class );
+        }
+
+        private static Api load ()
+        {
+            try
+            {
+                return new Api ();
+            }
+            catch ( final ReflectiveOperationException | LinkageError | RuntimeException e )
+            {
+                return null;
+            }
+        }
+
+        private Object annotation ( final Class<? extends Annotation> type, final Object value ) throws ReflectiveOperationException
+        {
+            return this.annotationElement.newInstance ( type, value );
+        }
+
+        private Object createFactory ( final String name, final String label, final Field[] fields ) throws ReflectiveOperationException
+        {
+            final List<Object> annotations = new ArrayList<Object> ();
+            annotations.add ( annotation ( this.nameAnnotation, name ) );
+            annotations.add ( annotation ( this.labelAnnotation, label ) );
+            annotations.add ( annotation ( this.categoryAnnotation, new String[] { "APT Repository" } ) );
+            // the stack trace would only show the reflective calls
+            annotations.add ( annotation ( this.stackTraceAnnotation, false ) );
+
+            final List<Object> values = new ArrayList<Object> ( fields.length );
+            for ( final Field field : fields )
+            {
+                final List<Object> fieldAnnotations = new ArrayList<Object> ();
+                fieldAnnotations.add ( annotation ( this.labelAnnotation, field.label ) );
+                if ( field.contentType != null )
+                {
+                    fieldAnnotations.add ( annotation ( annotation ( field.contentType ), field.contentValue ) );
+                }
+                values.add ( this.valueDescriptor.newInstance ( field.type, field.name, fieldAnnotations ) );
+            }
+
+            return this.create.invoke ( null, annotations, values );
+        }
+    }
+
+    /**
+     * An event type
+     */
+    static final class Type
+    {
+        private final Object factory;
+
+        private final Object eventType;
+
+        Type ( final String name, final String label, final Field... fields )
+        {
+            Object factory = null;
+            Object eventType = null;
+
+            final Api api = Api.INSTANCE;
+            if ( api != null )
+            {
+                try
+                {
+                    factory = api.createFactory ( name, label, fields );
+                    eventType = api.getEventType.invoke ( factory );
+                }
+                catch ( final ReflectiveOperationException | LinkageError | RuntimeException e )
+                {
+                    factory = null;
+                    eventType = null;
+                }
+            }
+
+            this.factory = factory;
+            this.eventType = eventType;
+        }
+
+        /**
+         * Begin a new event
+         * 
+         * @return the new event, a no-op event if the flight recorder is not
+         *         available or the event type is not enabled
+         */
+        public Event begin ()
+        {
+            if ( this.factory == null )
+            {
+                return Event.NOOP;
+            }
+
+            final Api api = Api.INSTANCE;
+            try
+            {
+                if ( ! ( (Boolean)api.isEnabled.invoke ( this.eventType ) ) )
+                {
+                    return Event.NOOP;
+                }
+
+                final Object event = api.newEvent.invoke ( this.factory );
+                api.begin.invoke ( event );
+                return new Event ( event );
+            }
+            catch ( final ReflectiveOperationException | RuntimeException e )
+            {
+                return Event.NOOP;
+            }
+        }
+    }
+
+    /**
+     * An event, which is committed with the field values in the order of
+     * the fields of its type
+     */
+    static class Event
+    {
+        static final Event NOOP = new Event ( null );
+
+        private final Object event;
+
+        private Event ( final Object event )
+        {
+            this.event = event;
+        }
+
+        /**
+         * Set the field values and commit the event
+         * 
+         * @param values
+         *            the values, in the order of the fields of the type
+         */
+        public void commit ( final Object... values )
+        {
+            if ( this.event == null )
+            {
+                return;
+            }
+
+            final Api api = Api.INSTANCE;
+            try
+            {
+                for ( int i = 0; i < values.length; i++ )
+                {
+                    api.set.invoke ( this.event, i, values[i] );
+                }
+                api.commit.invoke ( this.event );
+            }
+            catch ( final ReflectiveOperationException | RuntimeException e )
+            {
+                // ignore, events are best effort
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A writer for index files, like <code>Packages</code>
+ * <p>
+ * Everything written to this stream is written once to the plain file and to
+ * each compressed variant of the file. The size and checksums of each
+ * resulting file are recorded while writing, so that they don't need to be
+ * read again for creating the release file.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class IndexWriter extends OutputStream
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * An output stream which records the size and checksums of the data
+     * written to it
+     */
+    private static class RecordingOutputStream extends FilterOutputStream
+    {
+        private final String name;
+
+        private final MultiDigest digest;
+
+        private long size;
+
+        public RecordingOutputStream ( final OutputStream out, final String name, final List<Digester> digesters )
+        {
+            super ( out );
+            this.name = name;
+            this.digest = new MultiDigest ( digesters );
+        }
+
+        @Override
+        public void write ( final int b ) throws IOException
+        {
+            this.out.write ( b );
+            this.digest.write ( b );
+            this.size++;
+        }
+
+        @Override
+        public void write ( final byte[] b, final int off, final int len ) throws IOException
+        {
+            this.out.write ( b, off, len );
+            this.digest.write ( b, off, len );
+            this.size += len;
+        }
+
+        public FileInformation getInformation ()
+        {
+            return new FileInformation ( this.name, this.size, this.digest.getResult () );
+        }
+    }
+
+    private final List<RecordingOutputStream> files = new ArrayList<RecordingOutputStream> ();
+
+    private OutputStream plain;
+
+    private final List<OutputStream> compressed = new ArrayList<OutputStream> ();
+
+    private long compressionNanos;
+
+    /**
+     * Create a new index writer
+     * 
+     * @param file
+     *            the plain index file, compressed variants are created next
+     *            to it
+     * @param name
+     *            the name of the plain file as it should be recorded, relative
+     *            to the distribution directory
+     * @param digesters
+     *            the digesters to record checksums with
+     * @param configuration
+     *            the configuration providing the compression formats and
+     *            levels
+     * @param executor
+     *            the executor for parallel compression, may be
+     *            <code>null</code>
+     * @throws IOException
+     *             if a file cannot be created
+     */
+    public IndexWriter ( final File file, final String name, final List<Digester> digesters, final Configuration configuration, final ExecutorService executor ) throws IOException
+    {
+        this ( file, name, digesters, configuration, configuration.getCompressions (), true, executor );
+    }
+
+    /**
+     * Create a new index writer with a specific set of compression formats
+     * 
+     * @param file
+     *            the plain index file, compressed variants are created next
+     *            to it
+     * @param name
+     *            the name of the plain file as it should be recorded, relative
+     *            to the distribution directory
+     * @param digesters
+     *            the digesters to record checksums with
+     * @param configuration
+     *            the configuration providing the compression levels
+     * @param compressions
+     *            the compression formats to create
+     * @param plain
+     *            whether the plain file is created as well
+     * @param executor
+     *            the executor for parallel compression, may be
+     *            <code>null</code>
+     * @throws IOException
+     *             if a file cannot be created
+     */
+    public IndexWriter ( final File file, final String name, final List<Digester> digesters, final Configuration configuration, final Set<Compression> compressions, final boolean plain, final ExecutorService executor ) throws IOException
+    {
+        try
+        {
+            if ( plain )
+            {
+                this.plain = open ( file, name, digesters );
+            }
+
+            for ( final Compression compression : compressions )
+            {
+                final RecordingOutputStream target = open ( new File ( file.getPath () + compression.getSuffix () ), name + compression.getSuffix (), digesters );
+                this.compressed.add ( compression.createOutputStream ( target, configuration.getCompressionLevel ( compression ), executor, 2 * configuration.getThreads () ) );
+            }
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            try
+            {
+                close ();
+            }
+            catch ( final IOException e2 )
+            {
+                e.addSuppressed ( e2 );
+            }
+            throw e;
+        }
+    }
+
+    private RecordingOutputStream open ( final File file, final String name, final List<Digester> digesters ) throws IOException
+    {
+        // the previous file may be linked from by-hash, which must not change
+        Files.deleteIfExists ( file.toPath () );
+
+        final RecordingOutputStream result = new RecordingOutputStream ( new BufferedOutputStream ( new FileOutputStream ( file ), BUFFER_SIZE ), name, digesters );
+        this.files.add ( result );
+        return result;
+    }
+
+    @Override
+    public void write ( final int b ) throws IOException
+    {
+        if ( this.plain != null )
+        {
+            this.plain.write ( b );
+        }
+
+        final long start = System.nanoTime ();
+        for ( final OutputStream target : this.compressed )
+        {
+            target.write ( b );
+        }
+        this.compressionNanos += System.nanoTime () - start;
+    }
+
+    @Override
+    public void write ( final byte[] b, final int off, final int len ) throws IOException
+    {
+        if ( this.plain != null )
+        {
+            this.plain.write ( b, off, len );
+        }
+
+        final long start = System.nanoTime ();
+        for ( final OutputStream target : this.compressed )
+        {
+            target.write ( b, off, len );
+        }
+        this.compressionNanos += System.nanoTime () - start;
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+        IOException error = null;
+
+        if ( this.plain != null )
+        {
+            try
+            {
+                this.plain.close ();
+            }
+            catch ( final IOException e )
+            {
+                error = e;
+            }
+        }
+
+        final long start = System.nanoTime ();
+        for ( final OutputStream target : this.compressed )
+        {
+            try
+            {
+                target.close ();
+            }
+            catch ( final IOException e )
+            {
+                if ( error == null )
+                {
+                    error = e;
+                }
+            }
+        }
+        this.compressionNanos += System.nanoTime () - start;
+
+        // close files which no stream was created for, closing twice is a no-op
+        for ( final OutputStream file : this.files )
+        {
+            try
+            {
+                file.close ();
+            }
+            catch ( final IOException e )
+            {
+                if ( error == null )
+                {
+                    error = e;
+                }
+            }
+        }
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+    /**
+     * Get the time spent writing to and closing the compressed variants
+     * <p>
+     * With parallel compression this includes waiting for the compression
+     * tasks, but not the time the tasks spent while the writer continued.
+     * </p>
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getCompressionNanos ()
+    {
+        return this.compressionNanos;
+    }
+
+    /**
+     * Get the information of all written files
+     * <p>
+     * This must only be called after the writer was closed.
+     * </p>
+     * 
+     * @return the size and checksums of the plain file and all compressed
+     *         variants
+     */
+    public List<FileInformation> getFiles ()
+    {
+        final List<FileInformation> result = new ArrayList<FileInformation> ( this.files.size () );
+        for ( final RecordingOutputStream file : this.files )
+        {
+            result.add ( file.getInformation () );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digest data with several algorithms at once
+ * <p>
+ * All data written to this stream is fed to each of the configured digesters.
+ * This allows to calculate all checksums of a file with a single read.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class MultiDigest extends OutputStream
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray ();
+
+    private final List<Digester> digesters;
+
+    private final MessageDigest[] digests;
+
+    public MultiDigest ( final List<Digester> digesters )
+    {
+        this.digesters = digesters;
+        this.digests = new MessageDigest[digesters.size ()];
+
+        int i = 0;
+        for ( final Digester d : digesters )
+        {
+            this.digests[i++] = d.create ();
+        }
+    }
+
+    @Override
+    public void write ( final int b )
+    {
+        for ( final MessageDigest digest : this.digests )
+        {
+            digest.update ( (byte)b );
+        }
+    }
+
+    @Override
+    public void write ( final byte[] b, final int off, final int len )
+    {
+        for ( final MessageDigest digest : this.digests )
+        {
+            digest.update ( b, off, len );
+        }
+    }
+
+    /**
+     * Finish all digests
+     * <p>
+     * This resets the digests, so the result can only be fetched once.
+     * </p>
+     * 
+     * @return a map of digester name to hex encoded digest value, in the order
+     *         of the digesters
+     */
+    public Map<String, String> getResult ()
+    {
+        final Map<String, String> result = new LinkedHashMap<String, String> ( this.digests.length );
+
+        int i = 0;
+        for ( final Digester d : this.digesters )
+        {
+            result.put ( d.getName (), toHex ( this.digests[i++].digest () ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Digest a file with all digesters, reading it only once
+     * 
+     * @param file
+     *            the file to digest
+     * @param digesters
+     *            the digesters to use
+     * @return a map of digester name to hex encoded digest value
+     * @throws IOException
+     *             if reading the file fails
+     */
+    public static Map<String, String> digest ( final File file, final List<Digester> digesters ) throws IOException
+    {
+        final MultiDigest digest = new MultiDigest ( digesters );
+
+        try ( final InputStream in = new FileInputStream ( file ) )
+        {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int rc;
+            while ( ( rc = in.read ( buffer ) ) > 0 )
+            {
+                digest.write ( buffer, 0, rc );
+            }
+        }
+
+        return digest.getResult ();
+    }
+
+    /**
+     * Encode data as lower case hex string
+     * 
+     * @param data
+     *            the data to encode
+     * @return the hex encoded data
+     */
+    public static String toHex ( final byte[] data )
+    {
+        final char[] result = new char[data.length * 2];
+        int i = 0;
+        for ( final byte b : data )
+        {
+            result[i++] = HEX[ ( b >> 4 ) & 0x0F];
+            result[i++] = HEX[b & 0x0F];
+        }
+        return new String ( result );
+    }
+}
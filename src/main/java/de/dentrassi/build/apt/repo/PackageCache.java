@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * A persistent cache of package metadata
+ * <p>
+ * The cache stores the package stanza, including the checksums and the size,
+ * of each processed package file. The entries are keyed by the absolute path,
+ * the size and the modification timestamp of the package file, and
+ * optionally the file key (e.g. the inode) reported by the file system. A
+ * package file which matches a cache entry does neither need to be unpacked
+ * nor digested again.
+ * </p>
+ * <p>
+ * The cache file is a plain text file. Each entry starts with a line of the
+ * form <code>@ &lt;size&gt; &lt;modified&gt; &lt;file key&gt; &lt;path&gt;</code>,
+ * followed by the stanza and an empty line.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class PackageCache
+{
+    private static final String HEADER = "# apt-repo package cache 1";
+
+    private static final String NO_FILE_KEY = "-";
+
+    private static class Entry
+    {
+        private final long size;
+
+        private final long modified;
+
+        private final String fileKey;
+
+        private final String stanza;
+
+        public Entry ( final long size, final long modified, final String fileKey, final String stanza )
+        {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.stanza = stanza;
+        }
+
+        public boolean matches ( final Entry other )
+        {
+            return this.size == other.size && this.modified == other.modified && this.fileKey.equals ( other.fileKey );
+        }
+    }
+
+    private final File file;
+
+    private final boolean useFileKey;
+
+    private final Console console;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry> ();
+
+    private final AtomicInteger hits = new AtomicInteger ();
+
+    private final AtomicInteger misses = new AtomicInteger ();
+
+    /**
+     * @param file
+     *            the cache file
+     * @param useFileKey
+     *            whether the file key (e.g. the inode) is part of the cache
+     *            key
+     * @param console
+     *            the console to report to
+     */
+    public PackageCache ( final File file, final boolean useFileKey, final Console console )
+    {
+        this.file = file;
+        this.useFileKey = useFileKey;
+        this.console = console;
+    }
+
+    /**
+     * Load the cache file, if it exists
+     * <p>
+     * A cache file which cannot be read is ignored.
+     * </p>
+     */
+    public void load ()
+    {
+        if ( !this.file.isFile () )
+        {
+            return;
+        }
+
+        try ( final BufferedReader reader = Files.newBufferedReader ( this.file.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( !HEADER.equals ( reader.readLine () ) )
+            {
+                this.console.warn ( "Ignoring package cache with unknown format: " + this.file );
+                return;
+            }
+
+            String key = null;
+            long size = 0;
+            long modified = 0;
+            String fileKey = null;
+            final StringBuilder stanza = new StringBuilder ();
+
+            String line;
+            while ( ( line = reader.readLine () ) != null )
+            {
+                if ( line.startsWith ( "@ " ) )
+                {
+                    final String[] toks = line.split ( " ", 5 );
+                    size = Long.parseLong ( toks[1] );
+                    modified = Long.parseLong ( toks[2] );
+                    fileKey = toks[3];
+                    key = toks[4];
+                    stanza.setLength ( 0 );
+                }
+                else if ( line.isEmpty () )
+                {
+                    if ( key != null )
+                    {
+                        this.entries.put ( key, new Entry ( size, modified, fileKey, stanza.toString () ) );
+                    }
+                    key = null;
+                }
+                else
+                {
+                    stanza.append ( line ).append ( '\n' );
+                }
+            }
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            this.console.warn ( "Failed to read package cache: " + this.file + ": " + e.getMessage () );
+            this.entries.clear ();
+        }
+
+        this.console.debug ( String.format ( "Loaded %s entries from package cache: %s", this.entries.size (), this.file ) );
+    }
+
+    /**
+     * Get the cached stanza of a package file
+     * 
+     * @param packageFile
+     *            the package file
+     * @return the stanza, or <code>null</code> if the package file has no
+     *         valid cache entry
+     */
+    public String get ( final File packageFile ) throws IOException
+    {
+        final String key = packageFile.getAbsolutePath ();
+        final Entry entry = this.entries.get ( key );
+
+        if ( entry != null && entry.matches ( makeEntry ( packageFile, null ) ) )
+        {
+            this.hits.incrementAndGet ();
+            this.console.debug ( "Package cache hit: " + packageFile );
+            return entry.stanza;
+        }
+
+        this.misses.incrementAndGet ();
+        this.console.debug ( "Package cache miss: " + packageFile );
+        return null;
+    }
+
+    /**
+     * Record the stanza of a package file
+     * 
+     * @param packageFile
+     *            the package file
+     * @param stanza
+     *            the stanza, including checksums and size
+     */
+    public void put ( final File packageFile, final String stanza ) throws IOException
+    {
+        this.entries.put ( packageFile.getAbsolutePath (), makeEntry ( packageFile, stanza ) );
+    }
+
+    private Entry makeEntry ( final File packageFile, final String stanza ) throws IOException
+    {
+        final BasicFileAttributes attrs = Files.readAttributes ( packageFile.toPath (), BasicFileAttributes.class );
+
+        String fileKey = NO_FILE_KEY;
+        if ( this.useFileKey && attrs.fileKey () != null )
+        {
+            fileKey = attrs.fileKey ().toString ().replace ( ' ', '_' );
+        }
+
+        return new Entry ( attrs.size (), attrs.lastModifiedTime ().toMillis (), fileKey, stanza );
+    }
+
+    private boolean isValid ( final File packageFile, final Entry entry ) throws IOException
+    {
+        try
+        {
+            return entry.matches ( makeEntry ( packageFile, null ) );
+        }
+        catch ( final NoSuchFileException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Write the cache file
+     * <p>
+     * Entries of package files inside the source folder which no longer exist,
+     * or no longer match their entry, are dropped. Package files which were
+     * skipped in this run, e.g. because they are unchanged in update mode,
+     * keep their entries. Entries of other package files are kept, so that one
+     * cache file can be shared between projects.
+     * </p>
+     * 
+     * @param sourceFolder
+     *            the source folder of this run
+     */
+    public void store ( final File sourceFolder ) throws IOException
+    {
+        final String prefix = sourceFolder.getAbsolutePath () + File.separator;
+
+        final Path path = this.file.toPath ().toAbsolutePath ();
+        Files.createDirectories ( path.getParent () );
+
+        // builds of several projects may share the cache, and run at the same time
+        final Path tmp = Files.createTempFile ( path.getParent (), path.getFileName ().toString (), ".tmp" );
+        try
+        {
+            try ( final Writer writer = Files.newBufferedWriter ( tmp, StandardCharsets.UTF_8 ) )
+            {
+                writer.write ( HEADER );
+                writer.write ( '\n' );
+
+                for ( final Iterator<Map.Entry<String, Entry>> i = this.entries.entrySet ().iterator (); i.hasNext (); )
+                {
+                    final Map.Entry<String, Entry> entry = i.next ();
+                    final Entry e = entry.getValue ();
+                    if ( entry.getKey ().startsWith ( prefix ) && !isValid ( new File ( entry.getKey () ), e ) )
+                    {
+                        i.remove ();
+                        continue;
+                    }
+
+                    writer.write ( String.format ( "@ %s %s %s %s\n", e.size, e.modified, e.fileKey, entry.getKey () ) );
+                    writer.write ( e.stanza );
+                    writer.write ( '\n' );
+                }
+            }
+
+            Files.move ( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            Files.deleteIfExists ( tmp );
+        }
+
+        this.console.info ( String.format ( "Package cache: %s hits, %s misses", this.hits.get (), this.misses.get () ) );
+    }
+}
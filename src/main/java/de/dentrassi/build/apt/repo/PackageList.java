@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * The packages of one package list
+ * <p>
+ * The packages keep their order, and are indexed by their
+ * <code>Filename</code>, so that replacing a package does not need to scan
+ * the list. All methods synchronize on the list, so iterating must be done
+ * while holding its lock, like with
+ * {@link java.util.Collections#synchronizedList(List)}.
+ * </p>
+ *
+ * @author Jens Reimann
+ */
+final class PackageList extends AbstractList<PackageRecord> implements RandomAccess
+{
+    private final List<PackageRecord> records = new ArrayList<PackageRecord> ();
+
+    /**
+     * The index of the first package with a file name
+     */
+    private final Map<String, Integer> byFilename = new HashMap<String, Integer> ();
+
+    @Override
+    public synchronized PackageRecord get ( final int index )
+    {
+        return this.records.get ( index );
+    }
+
+    @Override
+    public synchronized int size ()
+    {
+        return this.records.size ();
+    }
+
+    @Override
+    public synchronized boolean add ( final PackageRecord pkgRecord )
+    {
+        final String filename = pkgRecord.get ( "Filename" );
+        if ( filename != null )
+        {
+            this.byFilename.putIfAbsent ( filename, this.records.size () );
+        }
+        this.records.add ( pkgRecord );
+        this.modCount++;
+        return true;
+    }
+
+    /**
+     * Replace the package with the same file name, or add it
+     */
+    public synchronized void replaceOrAdd ( final PackageRecord pkgRecord )
+    {
+        final String filename = pkgRecord.get ( "Filename" );
+        final Integer index = filename != null ? this.byFilename.get ( filename ) : null;
+        if ( index != null )
+        {
+            this.records.set ( index, pkgRecord );
+        }
+        else
+        {
+            add ( pkgRecord );
+        }
+    }
+
+    @Override
+    public synchronized boolean removeIf ( final Predicate<? super PackageRecord> filter )
+    {
+        if ( !this.records.removeIf ( filter ) )
+        {
+            return false;
+        }
+
+        this.byFilename.clear ();
+        for ( int i = 0; i < this.records.size (); i++ )
+        {
+            final String filename = this.records.get ( i ).get ( "Filename" );
+            if ( filename != null )
+            {
+                this.byFilename.putIfAbsent ( filename, i );
+            }
+        }
+        this.modCount++;
+        return true;
+    }
+}
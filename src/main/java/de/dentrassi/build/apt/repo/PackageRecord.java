@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vafer.jdeb.debian.ControlField;
+
+/**
+ * A compact, immutable package stanza
+ * <p>
+ * Instead of the maps of a {@link BinaryPackagePackagesFile}, a record only
+ * keeps two arrays with the fields and values which are actually written to
+ * the <code>Packages</code> file. Values which typically repeat between
+ * packages, like the maintainer or dependencies, are shared through a
+ * {@link Interner}.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class PackageRecord
+{
+    /**
+     * Shares field definitions and repeating field values between records
+     * <p>
+     * This class is thread safe.
+     * </p>
+     */
+    public static final class Interner
+    {
+        private static final Set<String> SHARED_FIELDS = Collections.unmodifiableSet ( new HashSet<String> ( Arrays.asList ( //
+                "Source", "Version", "Section", "Priority", "Architecture", "Essential", //
+                "Depends", "Pre-Depends", "Recommends", "Suggests", "Breaks", "Enhances", "Conflicts", "Provides", "Replaces", //
+                "Installed-Size", "Maintainer", "Homepage" //
+        ) ) );
+
+        private final Map<String, String> values = new ConcurrentHashMap<String, String> ();
+
+        private final Map<String, ControlField> fields = new ConcurrentHashMap<String, ControlField> ();
+
+        String value ( final String field, final String value )
+        {
+            if ( !SHARED_FIELDS.contains ( field ) )
+            {
+                return value;
+            }
+
+            final String existing = this.values.putIfAbsent ( value, value );
+            return existing != null ? existing : value;
+        }
+
+        ControlField field ( final ControlField field )
+        {
+            final ControlField existing = this.fields.putIfAbsent ( field.getName (), field );
+            return existing != null ? existing : field;
+        }
+
+        /**
+         * @return the number of distinct shared values
+         */
+        public int size ()
+        {
+            return this.values.size ();
+        }
+    }
+
+    private final ControlField[] fields;
+
+    private final String[] values;
+
+    private volatile byte[] stanza;
+
+    PackageRecord ( final ControlField[] fields, final String[] values )
+    {
+        this.fields = fields;
+        this.values = values;
+    }
+
+    /**
+     * Get the rendered stanza
+     * <p>
+     * The stanza is rendered on the first call, and then reused until it is
+     * released. This way a package which is listed for several architectures
+     * or distributions is only encoded once. The returned array must not be
+     * modified.
+     * </p>
+     * 
+     * @return the UTF-8 encoded stanza, including the terminating empty line
+     */
+    public byte[] getStanza ()
+    {
+        byte[] result = this.stanza;
+        if ( result == null )
+        {
+            result = ( toString () + "\n" ).getBytes ( StandardCharsets.UTF_8 );
+            this.stanza = result;
+        }
+        return result;
+    }
+
+    /**
+     * Release the rendered stanza
+     * <p>
+     * The stanza duplicates the fields of the record, so it is released once
+     * all package lists are written.
+     * </p>
+     */
+    public void releaseStanza ()
+    {
+        this.stanza = null;
+    }
+
+    /**
+     * Get the value of a field
+     * 
+     * @param name
+     *            the name of the field
+     * @return the value, or <code>null</code> if the field is not set
+     */
+    public String get ( final String name )
+    {
+        for ( int i = 0; i < this.fields.length; i++ )
+        {
+            if ( this.fields[i].getName ().equals ( name ) )
+            {
+                return this.values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Render the stanza
+     * 
+     * @return the stanza, exactly as {@link BinaryPackagePackagesFile#toString()}
+     *         would render it
+     */
+    @Override
+    public String toString ()
+    {
+        final StringBuilder sb = new StringBuilder ();
+        for ( int i = 0; i < this.fields.length; i++ )
+        {
+            sb.append ( this.fields[i].format ( this.values[i] ) );
+        }
+        return sb.toString ();
+    }
+
+    /**
+     * Estimate the heap size used by this record
+     * <p>
+     * Objects which have already been seen are not counted again, so that
+     * shared values are only accounted once. The estimate assumes a 64 bit
+     * JVM with compressed references and compact strings.
+     * </p>
+     * 
+     * @param seen
+     *            the objects which have already been accounted for
+     * @return the estimated number of bytes
+     */
+    long estimateSize ( final Map<Object, Boolean> seen )
+    {
+        if ( seen.put ( this, Boolean.TRUE ) != null )
+        {
+            return 0;
+        }
+
+        long size = align ( 12 + 3 * 4 ) + 2 * align ( 16 + 4 * this.fields.length );
+
+        final byte[] stanza = this.stanza;
+        if ( stanza != null )
+        {
+            size += align ( 16 + stanza.length );
+        }
+
+        for ( final String value : this.values )
+        {
+            if ( seen.put ( value, Boolean.TRUE ) == null )
+            {
+                size += align ( 24 ) + align ( 16 + value.length () );
+            }
+        }
+
+        return size;
+    }
+
+    private static long align ( final long size )
+    {
+        return ( size + 7 ) & ~7;
+    }
+
+    /**
+     * Estimate the heap size of a collection of records
+     * 
+     * @param records
+     *            the records, the same record may be contained multiple times
+     * @return the number of distinct records and the estimated size in bytes
+     */
+    static long[] estimateSize ( final Iterable<PackageRecord> records )
+    {
+        final Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean> ();
+
+        long count = 0;
+        long size = 0;
+        for ( final PackageRecord entry : records )
+        {
+            if ( !seen.containsKey ( entry ) )
+            {
+                count++;
+            }
+            size += entry.estimateSize ( seen );
+        }
+
+        return new long[] { count, size };
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.vafer.jdeb.debian.BinaryPackageControlFile;
+
+/**
+ * Read a package file in a single pass
+ * <p>
+ * The whole file is streamed through the digesters once. While doing so, the
+ * control file is parsed from the control member, and the paths of the files
+ * in the data member are collected.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class PackageScanner
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The result of scanning a package file
+     */
+    static final class Result
+    {
+        private final BinaryPackageControlFile control;
+
+        private final String controlFormat;
+
+        private final Map<String, String> checksums;
+
+        private final List<String> contents;
+
+        private Result ( final BinaryPackageControlFile control, final String controlFormat, final Map<String, String> checksums, final List<String> contents )
+        {
+            this.control = control;
+            this.controlFormat = controlFormat;
+            this.checksums = checksums;
+            this.contents = contents;
+        }
+
+        /**
+         * @return the control file, or <code>null</code> if the package has
+         *         no (supported) control member
+         */
+        public BinaryPackageControlFile getControl ()
+        {
+            return this.control;
+        }
+
+        /**
+         * @return the name of the control member, or <code>null</code> if
+         *         there is none
+         */
+        public String getControlFormat ()
+        {
+            return this.controlFormat;
+        }
+
+        public Map<String, String> getChecksums ()
+        {
+            return this.checksums;
+        }
+
+        /**
+         * @return the paths of the files in the data member
+         */
+        public List<String> getContents ()
+        {
+            return this.contents;
+        }
+    }
+
+    /**
+     * An input stream feeding all read and skipped data to a digest
+     */
+    private static class DigestingInputStream extends FilterInputStream
+    {
+        private final MultiDigest digest;
+
+        public DigestingInputStream ( final InputStream in, final MultiDigest digest )
+        {
+            super ( in );
+            this.digest = digest;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            final int result = this.in.read ();
+            if ( result >= 0 )
+            {
+                this.digest.write ( result );
+            }
+            return result;
+        }
+
+        @Override
+        public int read ( final byte[] b, final int off, final int len ) throws IOException
+        {
+            final int result = this.in.read ( b, off, len );
+            if ( result > 0 )
+            {
+                this.digest.write ( b, off, result );
+            }
+            return result;
+        }
+
+        @Override
+        public long skip ( final long n ) throws IOException
+        {
+            final byte[] buffer = new byte[(int)Math.min ( n, BUFFER_SIZE )];
+            long skipped = 0;
+            while ( skipped < n )
+            {
+                final int rc = read ( buffer, 0, (int)Math.min ( buffer.length, n - skipped ) );
+                if ( rc < 0 )
+                {
+                    break;
+                }
+                skipped += rc;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported ()
+        {
+            return false;
+        }
+    }
+
+    private PackageScanner ()
+    {
+    }
+
+    /**
+     * Scan a package file
+     * 
+     * @param file
+     *            the package file
+     * @param digesters
+     *            the digesters for the package checksums
+     * @return the result
+     */
+    public static Result scan ( final File file, final List<Digester> digesters ) throws IOException, ParseException
+    {
+        final MultiDigest digest = new MultiDigest ( digesters );
+
+        BinaryPackageControlFile control = null;
+        String controlFormat = null;
+        List<String> contents = new ArrayList<String> ();
+
+        try ( final InputStream in = new DigestingInputStream ( new BufferedInputStream ( new FileInputStream ( file ), BUFFER_SIZE ), digest ) )
+        {
+            final ArArchiveInputStream ar = new ArArchiveInputStream ( in );
+
+            ArArchiveEntry entry;
+            while ( ( entry = ar.getNextArEntry () ) != null )
+            {
+                if ( control == null && entry.getName ().startsWith ( "control.tar" ) )
+                {
+                    controlFormat = entry.getName ();
+                    control = readControl ( ar, entry.getName () );
+                }
+                else if ( entry.getName ().startsWith ( "data.tar" ) )
+                {
+                    contents = listContents ( ar, entry.getName () );
+                }
+            }
+
+            // feed any trailing data to the digesters
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while ( in.read ( buffer ) >= 0 )
+            {
+                // the stream digests what is read
+            }
+        }
+
+        return new Result ( control, controlFormat, digest.getResult (), contents );
+    }
+
+    /**
+     * List the paths of the files in the data member of a package file
+     * <p>
+     * This only reads the data member.
+     * </p>
+     * 
+     * @param file
+     *            the package file
+     * @return the paths, empty if the package has no (supported) data member
+     */
+    public static List<String> listContents ( final File file ) throws IOException
+    {
+        try ( final ArFile ar = new ArFile ( file.toPath () ) )
+        {
+            final ArFile.Member member = ar.findMember ( "data.tar" );
+            if ( member == null )
+            {
+                return new ArrayList<String> ();
+            }
+            return listContents ( new BufferedInputStream ( ar.openMember ( member ), BUFFER_SIZE ), member.getName () );
+        }
+    }
+
+    private static BinaryPackageControlFile readControl ( final InputStream member, final String name ) throws IOException, ParseException
+    {
+        try ( final InputStream in = decompress ( CloseShieldInputStream.wrap ( member ), name ) )
+        {
+            if ( in == null )
+            {
+                return null;
+            }
+
+            final TarArchiveInputStream tar = new TarArchiveInputStream ( in );
+            TarArchiveEntry te;
+            while ( ( te = tar.getNextTarEntry () ) != null )
+            {
+                if ( te.getName ().equals ( "./control" ) || te.getName ().equals ( "control" ) )
+                {
+                    return new BinaryPackageControlFile ( tar );
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<String> listContents ( final InputStream member, final String name ) throws IOException
+    {
+        final List<String> result = new ArrayList<String> ();
+
+        try ( final InputStream in = decompress ( CloseShieldInputStream.wrap ( member ), name ) )
+        {
+            if ( in == null )
+            {
+                return result;
+            }
+
+            final TarArchiveInputStream tar = new TarArchiveInputStream ( in );
+            TarArchiveEntry te;
+            while ( ( te = tar.getNextTarEntry () ) != null )
+            {
+                if ( te.isDirectory () )
+                {
+                    continue;
+                }
+
+                final String path = normalize ( te.getName () );
+                if ( !path.isEmpty () )
+                {
+                    result.add ( path );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Strip the leading <code>./</code> or <code>/</code> of a path
+     */
+    private static String normalize ( final String path )
+    {
+        int start = path.startsWith ( "./" ) ? 2 : 0;
+        while ( start < path.length () && path.charAt ( start ) == '/' )
+        {
+            start++;
+        }
+        return path.substring ( start );
+    }
+
+    /**
+     * Decompress the content of a <code>control.tar.*</code> or
+     * <code>data.tar.*</code> member
+     * 
+     * @param in
+     *            the raw content of the member
+     * @param name
+     *            the name of the member
+     * @return the stream, or <code>null</code> if the compression is not
+     *         supported
+     */
+    public static InputStream decompress ( final InputStream in, final String name ) throws IOException
+    {
+        if ( name.endsWith ( ".tar" ) )
+        {
+            return in;
+        }
+        if ( name.endsWith ( ".tar.gz" ) )
+        {
+            return new GZIPInputStream ( in );
+        }
+        if ( name.endsWith ( ".tar.xz" ) )
+        {
+            return new XZCompressorInputStream ( in );
+        }
+        if ( name.endsWith ( ".tar.zst" ) )
+        {
+            return new ZstdCompressorInputStream ( in );
+        }
+        if ( name.endsWith ( ".tar.bz2" ) )
+        {
+            return new BZip2CompressorInputStream ( in );
+        }
+        return null;
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * The <code>Packages.diff</code> directory of a package list
+ * <p>
+ * Each update of a package list adds an <code>ed</code> script, transforming
+ * the previous into the new package list, as
+ * <code>Packages.diff/&lt;name&gt;.gz</code>. The file
+ * <code>Packages.diff/Index</code> lists the checksums of the current package
+ * list and, for each patch, the checksums of the package list it applies to,
+ * of the patch and of the compressed patch. Clients holding one of the listed
+ * package lists download the patches instead of the full package list.
+ * </p>
+ * <p>
+ * If the package list changed too much, or the index doesn't match the
+ * previous package list, the history is dropped and starts over with the
+ * next update.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class PackagesDiff
+{
+    private static final String INDEX = "Index";
+
+    /**
+     * The maximum number of inserted and deleted lines of a patch
+     */
+    private static final int MAX_EDITS = 2000;
+
+    private static final DateTimeFormatter PATCH_NAME = DateTimeFormatter.ofPattern ( "yyyy-MM-dd-HHmm.ss" ).withZone ( ZoneId.of ( "UTC" ) );
+
+    private static final class Patch
+    {
+        private final String name;
+
+        private final FileInformation history;
+
+        private final FileInformation patch;
+
+        private final FileInformation download;
+
+        public Patch ( final String name, final FileInformation history, final FileInformation patch, final FileInformation download )
+        {
+            this.name = name;
+            this.history = history;
+            this.patch = patch;
+            this.download = download;
+        }
+    }
+
+    private final File dir;
+
+    private final String name;
+
+    private final List<Digester> digesters;
+
+    private final Configuration configuration;
+
+    private final Console console;
+
+    /**
+     * @param listDir
+     *            the directory of the package list, e.g.
+     *            <code>main/binary-amd64</code>
+     * @param listName
+     *            the name of the directory of the package list, relative to
+     *            the distribution directory, e.g.
+     *            <code>main/binary-amd64/</code>
+     * @param digesters
+     *            the digesters of the release file
+     * @param configuration
+     *            the configuration
+     * @param console
+     *            the console to log to
+     */
+    public PackagesDiff ( final File listDir, final String listName, final List<Digester> digesters, final Configuration configuration, final Console console )
+    {
+        this.dir = new File ( listDir, "Packages.diff" );
+        this.name = listName + "Packages.diff/";
+        this.digesters = digesters;
+        this.configuration = configuration;
+        this.console = console;
+    }
+
+    /**
+     * Create the name of a patch
+     * 
+     * @param timestamp
+     *            the time of the update
+     * @return the name, e.g. <code>2014-09-05-1432.07</code>
+     */
+    public static String makePatchName ( final Instant timestamp )
+    {
+        return PATCH_NAME.format ( timestamp );
+    }
+
+    /**
+     * Add the patch from the previous to the current package list
+     * 
+     * @param previous
+     *            the content of the previous package list
+     * @param current
+     *            the content of the current package list
+     * @param patchName
+     *            the name of the patch
+     * @return the information of the written index file, or <code>null</code>
+     *         if no index file was written
+     */
+    public FileInformation update ( final byte[] previous, final byte[] current, final String patchName ) throws IOException
+    {
+        final FileInformation previousInfo = digest ( patchName, previous );
+        final FileInformation currentInfo = digest ( INDEX, current );
+
+        if ( sameChecksums ( previousInfo, currentInfo ) )
+        {
+            this.console.debug ( "Package list unchanged: " + this.dir );
+            return null;
+        }
+
+        final String script = EdDiff.diff ( EdDiff.lines ( new String ( previous, StandardCharsets.UTF_8 ) ), EdDiff.lines ( new String ( current, StandardCharsets.UTF_8 ) ), MAX_EDITS );
+        if ( script == null )
+        {
+            this.console.info ( "Package list changed too much, dropping patch history: " + this.dir );
+            cleanup ( new HashSet<String> () );
+            return null;
+        }
+
+        Files.createDirectories ( this.dir.toPath () );
+
+        final List<Patch> patches = readIndex ( previousInfo );
+
+        final Set<String> names = new HashSet<String> ();
+        for ( final Patch patch : patches )
+        {
+            names.add ( patch.name );
+        }
+
+        String name = patchName;
+        for ( int i = 1; names.contains ( name ); i++ )
+        {
+            name = patchName + "." + i;
+        }
+
+        patches.add ( writePatch ( name, previousInfo, script.getBytes ( StandardCharsets.UTF_8 ) ) );
+
+        while ( patches.size () > this.configuration.getPdiffHistory () )
+        {
+            patches.remove ( 0 );
+        }
+
+        final Set<String> keep = new HashSet<String> ();
+        keep.add ( INDEX );
+        for ( final Patch patch : patches )
+        {
+            keep.add ( patch.download.getName () );
+        }
+        cleanup ( keep );
+
+        return writeIndex ( currentInfo, patches );
+    }
+
+    private Patch writePatch ( final String patchName, final FileInformation previousInfo, final byte[] data ) throws IOException
+    {
+        final File file = new File ( this.dir, patchName );
+
+        this.console.info ( "Writing: " + file + Compression.GZIP.getSuffix () );
+
+        final IndexWriter writer = new IndexWriter ( file, patchName, this.digesters, this.configuration, EnumSet.of ( Compression.GZIP ), false, null );
+        try
+        {
+            writer.write ( data );
+        }
+        finally
+        {
+            writer.close ();
+        }
+
+        return new Patch ( patchName, previousInfo, digest ( patchName, data ), writer.getFiles ().get ( 0 ) );
+    }
+
+    /**
+     * Read the patches of the existing index file
+     * 
+     * @param previousInfo
+     *            the previous package list, the index file must list it as
+     *            the current package list
+     * @return the patches, oldest first, or an empty list if there is no
+     *         index file or it doesn't match the previous package list
+     */
+    private List<Patch> readIndex ( final FileInformation previousInfo ) throws IOException
+    {
+        final List<Patch> result = new ArrayList<Patch> ();
+
+        final File indexFile = new File ( this.dir, INDEX );
+        if ( !indexFile.isFile () )
+        {
+            return result;
+        }
+
+        final Map<String, String> values = new HashMap<String, String> ();
+        final Map<String, List<String[]>> lists = new HashMap<String, List<String[]>> ();
+
+        String field = null;
+        for ( final String line : Files.readAllLines ( indexFile.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( line.trim ().isEmpty () )
+            {
+                continue;
+            }
+
+            if ( !Character.isWhitespace ( line.charAt ( 0 ) ) )
+            {
+                final int idx = line.indexOf ( ':' );
+                field = idx > 0 ? line.substring ( 0, idx ) : null;
+                if ( field != null )
+                {
+                    values.put ( field, line.substring ( idx + 1 ).trim () );
+                    lists.put ( field, new ArrayList<String[]> () );
+                }
+                continue;
+            }
+
+            final String[] toks = line.trim ().split ( "\\s+" );
+            if ( field != null && toks.length == 3 )
+            {
+                lists.get ( field ).add ( toks );
+            }
+        }
+
+        final Map<String, Map<String, String>> history = new LinkedHashMap<String, Map<String, String>> ();
+        final Map<String, Map<String, String>> patch = new HashMap<String, Map<String, String>> ();
+        final Map<String, Map<String, String>> download = new HashMap<String, Map<String, String>> ();
+        final Map<String, Long> historySizes = new HashMap<String, Long> ();
+        final Map<String, Long> patchSizes = new HashMap<String, Long> ();
+        final Map<String, Long> downloadSizes = new HashMap<String, Long> ();
+
+        for ( final Digester d : this.digesters )
+        {
+            final String[] current = values.getOrDefault ( d.getName () + "-Current", "" ).split ( "\\s+" );
+            if ( current.length != 2 || !current[0].equals ( previousInfo.getChecksum ( d.getName () ) ) || !current[1].equals ( Long.toString ( previousInfo.getSize () ) ) )
+            {
+                this.console.info ( "Patch index doesn't match the previous package list, dropping patch history: " + this.dir );
+                return result;
+            }
+
+            collect ( d, lists.get ( d.getName () + "-History" ), history, historySizes, "" );
+            collect ( d, lists.get ( d.getName () + "-Patches" ), patch, patchSizes, "" );
+            collect ( d, lists.get ( d.getName () + "-Download" ), download, downloadSizes, Compression.GZIP.getSuffix () );
+        }
+
+        for ( final Map.Entry<String, Map<String, String>> entry : history.entrySet () )
+        {
+            final String name = entry.getKey ();
+            final FileInformation historyInfo = new FileInformation ( name, historySizes.get ( name ), entry.getValue () );
+            final FileInformation patchInfo = patch.containsKey ( name ) ? new FileInformation ( name, patchSizes.get ( name ), patch.get ( name ) ) : null;
+            final FileInformation downloadInfo = download.containsKey ( name ) ? new FileInformation ( name + Compression.GZIP.getSuffix (), downloadSizes.get ( name ), download.get ( name ) ) : null;
+
+            if ( !historyInfo.hasChecksums ( this.digesters ) || patchInfo == null || !patchInfo.hasChecksums ( this.digesters ) || downloadInfo == null || !downloadInfo.hasChecksums ( this.digesters ) || !new File ( this.dir, downloadInfo.getName () ).isFile () )
+            {
+                this.console.info ( "Patch index is incomplete, dropping patch history: " + this.dir );
+                result.clear ();
+                return result;
+            }
+
+            result.add ( new Patch ( name, historyInfo, patchInfo, downloadInfo ) );
+        }
+
+        return result;
+    }
+
+    private static void collect ( final Digester d, final List<String[]> entries, final Map<String, Map<String, String>> checksums, final Map<String, Long> sizes, final String suffix )
+    {
+        if ( entries == null )
+        {
+            return;
+        }
+
+        for ( final String[] toks : entries )
+        {
+            if ( !toks[2].endsWith ( suffix ) )
+            {
+                continue;
+            }
+
+            final String name = toks[2].substring ( 0, toks[2].length () - suffix.length () );
+            checksums.computeIfAbsent ( name, n -> new HashMap<String, String> () ).put ( d.getName (), toks[0] );
+            sizes.put ( name, Long.parseLong ( toks[1] ) );
+        }
+    }
+
+    private FileInformation writeIndex ( final FileInformation currentInfo, final List<Patch> patches ) throws IOException
+    {
+        final StringWriter sw = new StringWriter ();
+        final PrintWriter pw = new PrintWriter ( sw );
+
+        for ( final Digester d : this.digesters )
+        {
+            pw.format ( "%s-Current: %s %s\n", d.getName (), currentInfo.getChecksum ( d.getName () ), currentInfo.getSize () );
+
+            pw.format ( "%s-History:\n", d.getName () );
+            for ( final Patch patch : patches )
+            {
+                pw.format ( " %s %20s %s\n", patch.history.getChecksum ( d.getName () ), patch.history.getSize (), patch.name );
+            }
+
+            pw.format ( "%s-Patches:\n", d.getName () );
+            for ( final Patch patch : patches )
+            {
+                pw.format ( " %s %20s %s\n", patch.patch.getChecksum ( d.getName () ), patch.patch.getSize (), patch.name );
+            }
+
+            pw.format ( "%s-Download:\n", d.getName () );
+            for ( final Patch patch : patches )
+            {
+                pw.format ( " %s %20s %s\n", patch.download.getChecksum ( d.getName () ), patch.download.getSize (), patch.download.getName () );
+            }
+        }
+
+        pw.close ();
+
+        final byte[] data = sw.toString ().getBytes ( StandardCharsets.UTF_8 );
+
+        final File indexFile = new File ( this.dir, INDEX );
+        this.console.info ( "Writing: " + indexFile );
+        Files.write ( indexFile.toPath (), data );
+
+        return digest ( this.name + INDEX, data );
+    }
+
+    /**
+     * Delete all files of the directory which are not kept
+     * 
+     * @param keep
+     *            the names of the files to keep
+     */
+    private void cleanup ( final Set<String> keep ) throws IOException
+    {
+        final File[] files = this.dir.listFiles ();
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( final File file : files )
+        {
+            if ( file.isFile () && !keep.contains ( file.getName () ) )
+            {
+                this.console.debug ( "Deleting: " + file );
+                Files.delete ( file.toPath () );
+            }
+        }
+    }
+
+    private FileInformation digest ( final String name, final byte[] data )
+    {
+        final MultiDigest digest = new MultiDigest ( this.digesters );
+        digest.write ( data, 0, data.length );
+        return new FileInformation ( name, data.length, digest.getResult () );
+    }
+
+    private boolean sameChecksums ( final FileInformation a, final FileInformation b )
+    {
+        if ( a.getSize () != b.getSize () )
+        {
+            return false;
+        }
+
+        for ( final Digester d : this.digesters )
+        {
+            if ( !a.getChecksum ( d.getName () ).equals ( b.getChecksum ( d.getName () ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
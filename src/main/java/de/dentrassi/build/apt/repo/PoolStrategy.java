@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * Strategies to put package files into the pool
+ * <p>
+ * All strategies except {@link #COPY} fall back to {@link #COPY} if they are
+ * not possible, e.g. when hard linking across devices.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+public enum PoolStrategy
+{
+    /**
+     * Copy the file, including its attributes
+     */
+    COPY
+    {
+        @Override
+        protected void apply ( final Path source, final Path target ) throws IOException
+        {
+            Files.copy ( source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING );
+        }
+    },
+    /**
+     * Copy the file using {@link FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}, which allows the operating
+     * system to copy without passing the data through user space
+     */
+    TRANSFER
+    {
+        @Override
+        protected void apply ( final Path source, final Path target ) throws IOException
+        {
+            try ( FileChannel in = FileChannel.open ( source, StandardOpenOption.READ );
+                  FileChannel out = FileChannel.open ( target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+            {
+                final long size = in.size ();
+                long position = 0;
+                while ( position < size )
+                {
+                    final long transferred = in.transferTo ( position, size - position, out );
+                    if ( transferred <= 0 && position >= in.size () )
+                    {
+                        throw new IOException ( String.format ( "%s got truncated while copying", source ) );
+                    }
+                    position += transferred;
+                }
+            }
+            Files.setLastModifiedTime ( target, Files.getLastModifiedTime ( source ) );
+        }
+    },
+    /**
+     * Create a hard link to the source file
+     */
+    HARDLINK
+    {
+        @Override
+        protected void apply ( final Path source, final Path target ) throws IOException
+        {
+            Files.deleteIfExists ( target );
+            Files.createLink ( target, source );
+        }
+    },
+    /**
+     * Create a copy-on-write clone of the source file
+     * <p>
+     * This requires a file system which supports reflinks, like Btrfs or XFS,
+     * and is only available on Linux. Each package file is cloned by running
+     * <code>cp --reflink=always</code>, so this forks one process per package
+     * file.
+     * </p>
+     */
+    REFLINK
+    {
+        @Override
+        protected void apply ( final Path source, final Path target ) throws IOException
+        {
+            if ( !System.getProperty ( "os.name", "" ).toLowerCase ( Locale.ROOT ).contains ( "linux" ) )
+            {
+                throw new UnsupportedOperationException ( "Reflinks are only supported on Linux" );
+            }
+
+            final Process process = new ProcessBuilder ( "cp", "--reflink=always", "--preserve=mode,timestamps", source.toString (), target.toString () ).redirectErrorStream ( true ).start ();
+            final int rc;
+            try
+            {
+                rc = process.waitFor ();
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+                throw new IOException ( "Interrupted while cloning: " + source, e );
+            }
+            if ( rc != 0 )
+            {
+                throw new IOException ( String.format ( "Failed to clone %s (rc=%s)", source, rc ) );
+            }
+        }
+    },
+    /**
+     * Create a symbolic link to the absolute path of the source file
+     * <p>
+     * The pool then depends on the source files being kept.
+     * </p>
+     */
+    SYMLINK
+    {
+        @Override
+        protected void apply ( final Path source, final Path target ) throws IOException
+        {
+            Files.deleteIfExists ( target );
+            Files.createSymbolicLink ( target, source.toAbsolutePath () );
+        }
+    };
+
+    protected abstract void apply ( Path source, Path target ) throws IOException;
+
+    /**
+     * Put the source file into the pool
+     * <p>
+     * If this strategy is not possible, the file is copied instead. The first
+     * fallback of a build is reported as a warning, all others only as debug
+     * messages.
+     * </p>
+     * 
+     * @param source
+     *            the source file
+     * @param target
+     *            the target file in the pool, the parent directory must exist
+     * @param console
+     *            the console to report fallbacks to
+     * @param fallbackReported
+     *            whether a fallback was already reported as warning, shared
+     *            by all calls of a build
+     * @throws IOException
+     *             if the file could not be put into the pool
+     */
+    public void populate ( final Path source, final Path target, final Console console, final AtomicBoolean fallbackReported ) throws IOException
+    {
+        try
+        {
+            apply ( source, target );
+        }
+        catch ( final IOException | UnsupportedOperationException e )
+        {
+            if ( this == COPY )
+            {
+                throw e;
+            }
+            final String message = String.format ( "Pool strategy %s failed for %s, copying instead: %s", this, source, e.getMessage () );
+            if ( fallbackReported.compareAndSet ( false, true ) )
+            {
+                console.warn ( message );
+            }
+            else
+            {
+                console.debug ( message );
+            }
+            COPY.apply ( source, target );
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+/**
+ * Strategies to publish the repository into the target folder
+ * 
+ * @author Jens Reimann
+ */
+public enum PublishStrategy
+{
+    /**
+     * Write directly into the target folder
+     * <p>
+     * Clients may see a partially written repository while building.
+     * </p>
+     */
+    DIRECT,
+    /**
+     * Build in a sibling staging folder and rename it to the target folder
+     * <p>
+     * The previous target folder is renamed out of the way first, so there is
+     * a short moment in which the target folder does not exist, and clients
+     * requesting files in that moment fail. Java has no way to exchange two
+     * folders atomically, use {@link #SYMLINK} if the target folder must
+     * always exist. If the build fails, the target folder is not touched.
+     * </p>
+     */
+    RENAME,
+    /**
+     * Build in a new sibling folder and atomically point the target folder,
+     * which is a symbolic link, to it
+     * <p>
+     * Clients always see either the previous or the new repository, this is
+     * the recommended strategy. The folders are named
+     * <code>&lt;target&gt;.&lt;timestamp&gt;</code>. The previous one is kept
+     * until the next publish, so clients which resolved it before the switch
+     * can finish their downloads, older ones are deleted. An existing target
+     * folder which is not a symbolic link is replaced by one.
+     * </p>
+     */
+    SYMLINK;
+}
@@ -0,0 +1,948 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * A static HTTP server for a repository
+ * <p>
+ * This serves the files of a repository to APT clients, e.g. in development
+ * and CI environments, without the need for a separate web server. It
+ * supports <code>GET</code> and <code>HEAD</code> requests, persistent
+ * connections, single byte ranges and conditional requests. File content is
+ * sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system send files without copying them through
+ * user space.
+ * </p>
+ * <p>
+ * The entity tag of a file is the checksum recorded in the release file or
+ * the package list, and the digest for by-hash files. Files without a
+ * recorded checksum, or which changed since it was recorded, get a weak
+ * entity tag derived from their size and modification timestamp.
+ * </p>
+ * <p>
+ * Each connection is handled by its own thread, a virtual thread if the Java
+ * runtime supports them.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+public class RepositoryServer implements Closeable
+{
+    private static final String SERVER = "apt-repo";
+
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private static final int KEEP_ALIVE_TIMEOUT = 30 * 1000;
+
+    /**
+     * The time to wait for the rest of a bad request before closing the
+     * connection
+     */
+    private static final int LINGER_TIMEOUT = 2 * 1000;
+
+    /**
+     * Returned by {@link #readLine(InputStream)} for a line longer than
+     * {@link #MAX_HEADER_SIZE}, no actual line can contain a line feed
+     */
+    /**
+     * The minimum time between two checks for changed release files, in
+     * nanoseconds
+     */
+    private static final long RELEASE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos ( 1 );
+
+    private static final String LINE_TOO_LONG = "\n";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern ( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US ).withZone ( ZoneId.of ( "GMT" ) );
+
+    /**
+     * The checksum fields by preference
+     */
+    private static final String[] CHECKSUM_FIELDS = { "SHA512", "SHA256", "SHA1", "MD5Sum", "MD5sum" };
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String> ();
+
+    static
+    {
+        CONTENT_TYPES.put ( "deb", "application/vnd.debian.binary-package" );
+        CONTENT_TYPES.put ( "gz", "application/gzip" );
+        CONTENT_TYPES.put ( "xz", "application/x-xz" );
+        CONTENT_TYPES.put ( "bz2", "application/x-bzip2" );
+        CONTENT_TYPES.put ( "zst", "application/zstd" );
+        CONTENT_TYPES.put ( "gpg", "application/pgp-signature" );
+        CONTENT_TYPES.put ( "asc", "application/pgp-signature" );
+    }
+
+    /**
+     * A file listed by a release file or a package list, with the state the
+     * checksum was recorded for
+     */
+    private static final class RecordedFile
+    {
+        private final String etag;
+
+        private final long size;
+
+        private final long modified;
+
+        public RecordedFile ( final String etag, final long size, final long modified )
+        {
+            this.etag = etag;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static final class Request
+    {
+        /**
+         * The request could not be parsed and is answered with
+         * <code>400</code>
+         */
+        private boolean bad;
+
+        private String method;
+
+        private String path;
+
+        private boolean http11;
+
+        private final Map<String, String> headers = new HashMap<String, String> ();
+
+        public String header ( final String name )
+        {
+            return this.headers.get ( name.toLowerCase ( Locale.ROOT ) );
+        }
+    }
+
+    private final Path root;
+
+    private final InetSocketAddress address;
+
+    private final Console console;
+
+    private final AtomicInteger connections = new AtomicInteger ();
+
+    private volatile Map<String, RecordedFile> checksums = new HashMap<String, RecordedFile> ();
+
+    /**
+     * The modification timestamps of the release files the checksums were
+     * loaded from
+     */
+    private volatile Map<File, Long> releaseFiles = new HashMap<File, Long> ();
+
+    /**
+     * The time of the last check for changed release files, from
+     * {@link System#nanoTime()}
+     */
+    private final AtomicLong releaseCheck = new AtomicLong ( System.nanoTime () - RELEASE_CHECK_INTERVAL );
+
+    private ServerSocketChannel serverChannel;
+
+    private ExecutorService executor;
+
+    private Thread acceptor;
+
+    /**
+     * @param root
+     *            the repository folder
+     * @param address
+     *            the address to listen on, a port of <code>0</code> selects a
+     *            free port
+     * @param console
+     *            the console to log to
+     */
+    public RepositoryServer ( final File root, final InetSocketAddress address, final Console console )
+    {
+        this.root = root.toPath ().toAbsolutePath ().normalize ();
+        this.address = address;
+        this.console = console;
+    }
+
+    /**
+     * Start listening
+     */
+    public synchronized void start () throws IOException
+    {
+        loadChecksums ();
+
+        this.serverChannel = ServerSocketChannel.open ();
+        this.serverChannel.socket ().setReuseAddress ( true );
+        this.serverChannel.bind ( this.address, 1024 );
+
+        this.executor = createExecutor ();
+
+        this.acceptor = new Thread ( this::accept, "apt-repo-server" );
+        this.acceptor.start ();
+
+        this.console.info ( String.format ( "Serving %s on http://%s:%s/", this.root, this.address.getHostString (), getPort () ) );
+    }
+
+    /**
+     * Get the port the server listens on
+     */
+    public int getPort ()
+    {
+        return this.serverChannel.socket ().getLocalPort ();
+    }
+
+    /**
+     * Wait until the server is closed
+     */
+    public void join () throws InterruptedException
+    {
+        this.acceptor.join ();
+    }
+
+    @Override
+    public synchronized void close () throws IOException
+    {
+        if ( this.serverChannel != null )
+        {
+            this.serverChannel.close ();
+        }
+        if ( this.executor != null )
+        {
+            this.executor.shutdownNow ();
+        }
+    }
+
+    /**
+     * Create the executor for the connections
+     * <p>
+     * Uses virtual threads when running on a Java runtime supporting them.
+     * </p>
+     */
+    private static ExecutorService createExecutor ()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod ( "newVirtualThreadPerTaskExecutor" ).invoke ( null );
+        }
+        catch ( final ReflectiveOperationException e )
+        {
+            return Executors.newCachedThreadPool ( r -> {
+                final Thread t = new Thread ( r, "apt-repo-connection" );
+                t.setDaemon ( true );
+                return t;
+            } );
+        }
+    }
+
+    private void accept ()
+    {
+        while ( this.serverChannel.isOpen () )
+        {
+            try
+            {
+                final SocketChannel channel = this.serverChannel.accept ();
+                this.executor.execute ( () -> serve ( channel ) );
+            }
+            catch ( final ClosedChannelException e )
+            {
+                break;
+            }
+            catch ( final IOException e )
+            {
+                this.console.warn ( "Failed to accept connection: " + e.getMessage () );
+            }
+        }
+    }
+
+    private void serve ( final SocketChannel channel )
+    {
+        this.connections.incrementAndGet ();
+        try ( final SocketChannel c = channel )
+        {
+            c.socket ().setTcpNoDelay ( true );
+            c.socket ().setSoTimeout ( KEEP_ALIVE_TIMEOUT );
+
+            final InputStream in = new BufferedInputStream ( c.socket ().getInputStream () );
+
+            Request request;
+            while ( ( request = readRequest ( in ) ) != null )
+            {
+                if ( !handle ( c, request ) )
+                {
+                    if ( request.bad )
+                    {
+                        linger ( c, in );
+                    }
+                    break;
+                }
+            }
+        }
+        catch ( final SocketTimeoutException | ClosedChannelException e )
+        {
+            // idle or closed connection
+        }
+        catch ( final IOException e )
+        {
+            this.console.debug ( "Connection failed: " + e.getMessage () );
+        }
+        finally
+        {
+            this.connections.decrementAndGet ();
+        }
+    }
+
+    /**
+     * Discard the rest of a bad request before the connection is closed
+     * <p>
+     * Closing a connection with unread data resets it, and the client may
+     * then lose the response before reading it. So the response is finished
+     * first, and the remaining request data is read until the client closes
+     * the connection, for a limited time and size.
+     * </p>
+     */
+    private static void linger ( final SocketChannel channel, final InputStream in ) throws IOException
+    {
+        channel.shutdownOutput ();
+        channel.socket ().setSoTimeout ( LINGER_TIMEOUT );
+
+        final byte[] buffer = new byte[4096];
+        long remaining = 4L * MAX_HEADER_SIZE;
+        int rc;
+        while ( remaining > 0 && ( rc = in.read ( buffer ) ) >= 0 )
+        {
+            remaining -= rc;
+        }
+    }
+
+    /**
+     * Read the request line and the headers of a request
+     * 
+     * @return the request, or <code>null</code> if the connection was closed.
+     *         A request which cannot be parsed is marked as bad.
+     */
+    private static Request readRequest ( final InputStream in ) throws IOException
+    {
+        String line = readLine ( in );
+        while ( line != null && line.isEmpty () )
+        {
+            line = readLine ( in );
+        }
+        if ( line == null )
+        {
+            return null;
+        }
+
+        final Request request = new Request ();
+
+        final String[] toks = line.split ( " " );
+        if ( LINE_TOO_LONG.equals ( line ) || toks.length != 3 || !toks[2].startsWith ( "HTTP/" ) )
+        {
+            request.bad = true;
+            return request;
+        }
+
+        request.method = toks[0];
+        request.path = toks[1];
+        request.http11 = "HTTP/1.1".equals ( toks[2] );
+
+        int size = line.length ();
+        while ( ( line = readLine ( in ) ) != null && !line.isEmpty () )
+        {
+            size += line.length ();
+            if ( LINE_TOO_LONG.equals ( line ) || size > MAX_HEADER_SIZE )
+            {
+                request.bad = true;
+                return request;
+            }
+
+            final int idx = line.indexOf ( ':' );
+            if ( idx > 0 )
+            {
+                request.headers.put ( line.substring ( 0, idx ).trim ().toLowerCase ( Locale.ROOT ), line.substring ( idx + 1 ).trim () );
+            }
+        }
+
+        return line == null ? null : request;
+    }
+
+    /**
+     * Read a line of the request header
+     * 
+     * @return the line, without the line terminator, {@link #LINE_TOO_LONG}
+     *         if the line is too long, or <code>null</code> if the connection
+     *         was closed
+     */
+    private static String readLine ( final InputStream in ) throws IOException
+    {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream ( 128 );
+
+        int b;
+        while ( ( b = in.read () ) >= 0 )
+        {
+            if ( b == '\n' )
+            {
+                final byte[] data = line.toByteArray ();
+                final int len = data.length > 0 && data[data.length - 1] == '\r' ? data.length - 1 : data.length;
+                return new String ( data, 0, len, StandardCharsets.ISO_8859_1 );
+            }
+            if ( line.size () > MAX_HEADER_SIZE )
+            {
+                return LINE_TOO_LONG;
+            }
+            line.write ( b );
+        }
+
+        return null;
+    }
+
+    /**
+     * Handle a request
+     * 
+     * @return <code>true</code> if the connection should be kept open
+     */
+    private boolean handle ( final SocketChannel channel, final Request request ) throws IOException
+    {
+        if ( request.bad )
+        {
+            // the rest of the request can't be trusted, close the connection
+            sendStatus ( channel, 400, "Bad Request", new HashMap<String, String> (), false );
+            return false;
+        }
+
+        final String connection = request.header ( "Connection" );
+        final boolean keepAlive = request.http11 ? !"close".equalsIgnoreCase ( connection ) : "keep-alive".equalsIgnoreCase ( connection );
+
+        final boolean head = "HEAD".equals ( request.method );
+        if ( !head && !"GET".equals ( request.method ) )
+        {
+            final Map<String, String> headers = new HashMap<String, String> ();
+            headers.put ( "Allow", "GET, HEAD" );
+            sendStatus ( channel, 405, "Method Not Allowed", headers, keepAlive );
+            return keepAlive;
+        }
+
+        final String name = resolve ( request.path );
+        final Path file = name == null ? null : this.root.resolve ( name );
+        if ( file == null || !Files.isRegularFile ( file ) )
+        {
+            sendStatus ( channel, 404, "Not Found", new HashMap<String, String> (), keepAlive );
+            return keepAlive;
+        }
+
+        try ( final FileChannel fileChannel = FileChannel.open ( file, StandardOpenOption.READ ) )
+        {
+            final long size = fileChannel.size ();
+            final long modified = Files.getLastModifiedTime ( file ).toMillis ();
+            final String etag = getEntityTag ( name, size, modified );
+            final String lastModified = HTTP_DATE.format ( Instant.ofEpochMilli ( modified ) );
+
+            final Map<String, String> headers = new HashMap<String, String> ();
+            headers.put ( "ETag", etag );
+            headers.put ( "Last-Modified", lastModified );
+            headers.put ( "Accept-Ranges", "bytes" );
+
+            if ( isNotModified ( request, etag, modified ) )
+            {
+                sendHeaders ( channel, 304, "Not Modified", headers, keepAlive );
+                return keepAlive;
+            }
+
+            long start = 0;
+            long length = size;
+            int status = 200;
+            String reason = "OK";
+
+            final String range = request.header ( "Range" );
+            if ( range != null && isRangeApplicable ( request, etag, lastModified ) )
+            {
+                final long[] r = parseRange ( range, size );
+                if ( r == null )
+                {
+                    headers.put ( "Content-Range", "bytes */" + size );
+                    sendStatus ( channel, 416, "Range Not Satisfiable", headers, keepAlive );
+                    return keepAlive;
+                }
+                if ( r.length == 2 )
+                {
+                    start = r[0];
+                    length = r[1] - r[0] + 1;
+                    status = 206;
+                    reason = "Partial Content";
+                    headers.put ( "Content-Range", String.format ( "bytes %s-%s/%s", r[0], r[1], size ) );
+                }
+            }
+
+            headers.put ( "Content-Type", getContentType ( name ) );
+            headers.put ( "Content-Length", Long.toString ( length ) );
+            sendHeaders ( channel, status, reason, headers, keepAlive );
+
+            if ( !head )
+            {
+                long position = start;
+                final long end = start + length;
+                while ( position < end )
+                {
+                    final long sent = fileChannel.transferTo ( position, end - position, channel );
+                    if ( sent <= 0 && position >= fileChannel.size () )
+                    {
+                        // the file got truncated while sending
+                        return false;
+                    }
+                    position += sent;
+                }
+            }
+        }
+
+        return keepAlive;
+    }
+
+    /**
+     * Resolve a request path
+     * <p>
+     * Files internal to the repository are not served. These are the files
+     * and folders starting with a dot, like the indexes of the writer, the
+     * content addressed pool and temporary files, and the generation lists
+     * of the <code>by-hash</code> folders.
+     * </p>
+     * 
+     * @return the name of the file relative to the root, or <code>null</code>
+     *         if the path is invalid
+     */
+    private String resolve ( final String requestPath )
+    {
+        String path = requestPath;
+
+        final int query = path.indexOf ( '?' );
+        if ( query >= 0 )
+        {
+            path = path.substring ( 0, query );
+        }
+
+        try
+        {
+            path = URLDecoder.decode ( path.replace ( "+", "%2B" ), "UTF-8" );
+        }
+        catch ( final UnsupportedEncodingException | IllegalArgumentException e )
+        {
+            return null;
+        }
+
+        if ( !path.startsWith ( "/" ) || path.indexOf ( '\0' ) >= 0 )
+        {
+            return null;
+        }
+
+        final Path resolved = this.root.resolve ( path.substring ( 1 ) ).normalize ();
+        if ( !resolved.startsWith ( this.root ) || resolved.equals ( this.root ) )
+        {
+            return null;
+        }
+
+        final String name = this.root.relativize ( resolved ).toString ().replace ( File.separatorChar, '/' );
+        return isInternal ( name ) ? null : name;
+    }
+
+    private static boolean isInternal ( final String name )
+    {
+        final String[] segments = name.split ( "/" );
+        for ( final String segment : segments )
+        {
+            if ( segment.startsWith ( "." ) )
+            {
+                return true;
+            }
+        }
+
+        return segments.length > 1 && "by-hash".equals ( segments[segments.length - 2] ) && segments[segments.length - 1].startsWith ( "generations" );
+    }
+
+    private static boolean isNotModified ( final Request request, final String etag, final long modified )
+    {
+        final String ifNoneMatch = request.header ( "If-None-Match" );
+        if ( ifNoneMatch != null )
+        {
+            return matchesEntityTag ( ifNoneMatch, etag );
+        }
+
+        final Long since = parseDate ( request.header ( "If-Modified-Since" ) );
+        return since != null && modified / 1000 <= since / 1000;
+    }
+
+    private static boolean isRangeApplicable ( final Request request, final String etag, final String lastModified )
+    {
+        final String ifRange = request.header ( "If-Range" );
+        if ( ifRange == null )
+        {
+            return true;
+        }
+        if ( ifRange.startsWith ( "\"" ) )
+        {
+            return ifRange.equals ( etag );
+        }
+        return ifRange.equals ( lastModified );
+    }
+
+    private static boolean matchesEntityTag ( final String header, final String etag )
+    {
+        final String opaque = etag.startsWith ( "W/" ) ? etag.substring ( 2 ) : etag;
+        for ( final String tok : header.split ( "," ) )
+        {
+            final String tag = tok.trim ();
+            if ( tag.equals ( "*" ) || ( tag.startsWith ( "W/" ) ? tag.substring ( 2 ) : tag ).equals ( opaque ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a byte range
+     * 
+     * @return the first and last byte, an empty array if the range should be
+     *         ignored, or <code>null</code> if it cannot be satisfied
+     */
+    static long[] parseRange ( final String range, final long size )
+    {
+        if ( !range.startsWith ( "bytes=" ) || range.indexOf ( ',' ) >= 0 )
+        {
+            // multiple ranges are answered with the full content
+            return new long[0];
+        }
+
+        final String spec = range.substring ( "bytes=".length () ).trim ();
+        final int idx = spec.indexOf ( '-' );
+        if ( idx < 0 )
+        {
+            return new long[0];
+        }
+
+        try
+        {
+            final String first = spec.substring ( 0, idx ).trim ();
+            final String last = spec.substring ( idx + 1 ).trim ();
+
+            if ( first.isEmpty () )
+            {
+                // suffix range
+                final long suffix = Long.parseLong ( last );
+                if ( suffix <= 0 || size == 0 )
+                {
+                    return null;
+                }
+                return new long[] { Math.max ( 0, size - suffix ), size - 1 };
+            }
+
+            final long start = Long.parseLong ( first );
+            final long end = last.isEmpty () ? size - 1 : Math.min ( Long.parseLong ( last ), size - 1 );
+            if ( start >= size || end < start )
+            {
+                return null;
+            }
+            return new long[] { start, end };
+        }
+        catch ( final NumberFormatException e )
+        {
+            return new long[0];
+        }
+    }
+
+    private static Long parseDate ( final String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+        try
+        {
+            return ZonedDateTime.parse ( value, HTTP_DATE ).toInstant ().toEpochMilli ();
+        }
+        catch ( final DateTimeParseException e )
+        {
+            return null;
+        }
+    }
+
+    private static String getContentType ( final String name )
+    {
+        final String fileName = name.substring ( name.lastIndexOf ( '/' ) + 1 );
+        final int idx = fileName.lastIndexOf ( '.' );
+        if ( idx < 0 )
+        {
+            // Packages, Release, Index and by-hash files
+            return name.contains ( "/by-hash/" ) ? "application/octet-stream" : "text/plain; charset=utf-8";
+        }
+        final String type = CONTENT_TYPES.get ( fileName.substring ( idx + 1 ) );
+        return type != null ? type : "application/octet-stream";
+    }
+
+    private void sendStatus ( final SocketChannel channel, final int status, final String reason, final Map<String, String> headers, final boolean keepAlive ) throws IOException
+    {
+        headers.put ( "Content-Length", "0" );
+        sendHeaders ( channel, status, reason, headers, keepAlive );
+    }
+
+    private void sendHeaders ( final SocketChannel channel, final int status, final String reason, final Map<String, String> headers, final boolean keepAlive ) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder ( 256 );
+        sb.append ( "HTTP/1.1 " ).append ( status ).append ( ' ' ).append ( reason ).append ( "\r\n" );
+        sb.append ( "Date: " ).append ( HTTP_DATE.format ( Instant.now () ) ).append ( "\r\n" );
+        sb.append ( "Server: " ).append ( SERVER ).append ( "\r\n" );
+        for ( final Map.Entry<String, String> entry : headers.entrySet () )
+        {
+            sb.append ( entry.getKey () ).append ( ": " ).append ( entry.getValue () ).append ( "\r\n" );
+        }
+        sb.append ( "Connection: " ).append ( keepAlive ? "keep-alive" : "close" ).append ( "\r\n" );
+        sb.append ( "\r\n" );
+
+        final ByteBuffer buffer = ByteBuffer.wrap ( sb.toString ().getBytes ( StandardCharsets.ISO_8859_1 ) );
+        while ( buffer.hasRemaining () )
+        {
+            channel.write ( buffer );
+        }
+    }
+
+    /**
+     * Get the entity tag of a file
+     * <p>
+     * If there is no recorded checksum or it doesn't match the file any more,
+     * and a release file changed since the checksums were loaded, they are
+     * loaded again. Otherwise a weak entity tag is used.
+     * </p>
+     */
+    private String getEntityTag ( final String name, final long size, final long modified ) throws IOException
+    {
+        final int idx = name.indexOf ( "/by-hash/" );
+        if ( idx >= 0 )
+        {
+            // the name is the digest
+            return "\"" + name.substring ( name.lastIndexOf ( '/' ) + 1 ) + "\"";
+        }
+
+        RecordedFile checksum = this.checksums.get ( name );
+        if ( ( checksum == null || checksum.size != size || checksum.modified != modified ) && reloadChecksums () )
+        {
+            checksum = this.checksums.get ( name );
+        }
+
+        if ( checksum != null && checksum.size == size && checksum.modified == modified )
+        {
+            return checksum.etag;
+        }
+
+        return String.format ( "W/\"%x-%x\"", size, modified );
+    }
+
+    /**
+     * Load the checksums again, if a release file changed
+     * <p>
+     * The release files are checked at most once per interval, by a single
+     * thread, and without holding the lock of the server. So requests for
+     * files without recorded checksum don't list the distributions each time.
+     * </p>
+     * 
+     * @return <code>true</code> if the checksums were loaded again
+     */
+    private boolean reloadChecksums () throws IOException
+    {
+        final long now = System.nanoTime ();
+        final long last = this.releaseCheck.get ();
+        if ( now - last < RELEASE_CHECK_INTERVAL || !this.releaseCheck.compareAndSet ( last, now ) )
+        {
+            return false;
+        }
+
+        if ( findReleaseFiles ().equals ( this.releaseFiles ) )
+        {
+            return false;
+        }
+
+        loadChecksums ();
+        return true;
+    }
+
+    /**
+     * Load the checksums of the release files and the package lists
+     */
+    private synchronized void loadChecksums () throws IOException
+    {
+        final Map<File, Long> releases = findReleaseFiles ();
+        final Map<String, RecordedFile> result = new HashMap<String, RecordedFile> ();
+
+        for ( final File releaseFile : releases.keySet () )
+        {
+            loadRelease ( "dists/" + releaseFile.getParentFile ().getName () + "/", releaseFile, result );
+        }
+
+        this.checksums = result;
+        this.releaseFiles = releases;
+    }
+
+    /**
+     * Find the release files of all distributions
+     * 
+     * @return the modification timestamps by release file
+     */
+    private Map<File, Long> findReleaseFiles ()
+    {
+        final Map<File, Long> result = new HashMap<File, Long> ();
+
+        final File[] dists = this.root.resolve ( "dists" ).toFile ().listFiles ();
+        if ( dists != null )
+        {
+            for ( final File dist : dists )
+            {
+                final File releaseFile = new File ( dist, "Release" );
+                if ( releaseFile.isFile () )
+                {
+                    result.put ( releaseFile, releaseFile.lastModified () );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void loadRelease ( final String prefix, final File releaseFile, final Map<String, RecordedFile> result ) throws IOException
+    {
+        final Map<String, Map<String, String>> files = new HashMap<String, Map<String, String>> ();
+
+        String field = null;
+        for ( final String line : Files.readAllLines ( releaseFile.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( line.isEmpty () )
+            {
+                continue;
+            }
+            if ( !Character.isWhitespace ( line.charAt ( 0 ) ) )
+            {
+                final int idx = line.indexOf ( ':' );
+                field = idx > 0 ? line.substring ( 0, idx ) : null;
+                continue;
+            }
+
+            final String[] toks = line.trim ().split ( "\\s+" );
+            if ( field != null && toks.length == 3 )
+            {
+                final Map<String, String> fields = files.computeIfAbsent ( toks[2], n -> new HashMap<String, String> () );
+                fields.put ( field, toks[0] );
+                fields.put ( "Size", toks[1] );
+            }
+        }
+
+        for ( final Map.Entry<String, Map<String, String>> entry : files.entrySet () )
+        {
+            final String name = prefix + entry.getKey ();
+            recordChecksum ( name, entry.getValue (), releaseFile, result );
+
+            if ( entry.getKey ().endsWith ( "/Packages" ) )
+            {
+                final File packagesFile = this.root.resolve ( name ).toFile ();
+                if ( packagesFile.isFile () )
+                {
+                    loadPackages ( packagesFile, result );
+                }
+            }
+        }
+    }
+
+    private void loadPackages ( final File packagesFile, final Map<String, RecordedFile> result ) throws IOException
+    {
+        final Map<String, String> stanza = new HashMap<String, String> ();
+
+        for ( final String line : Files.readAllLines ( packagesFile.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( line.isEmpty () )
+            {
+                recordPackage ( stanza, packagesFile, result );
+                stanza.clear ();
+                continue;
+            }
+
+            final int idx = line.indexOf ( ':' );
+            if ( idx > 0 && !Character.isWhitespace ( line.charAt ( 0 ) ) )
+            {
+                stanza.put ( line.substring ( 0, idx ), line.substring ( idx + 1 ).trim () );
+            }
+        }
+
+        recordPackage ( stanza, packagesFile, result );
+    }
+
+    private void recordPackage ( final Map<String, String> stanza, final File packagesFile, final Map<String, RecordedFile> result )
+    {
+        final String filename = stanza.get ( "Filename" );
+        if ( filename != null && !result.containsKey ( filename ) )
+        {
+            recordChecksum ( filename, stanza, packagesFile, result );
+        }
+    }
+
+    /**
+     * Record the checksum of a file
+     * <p>
+     * The checksum is only recorded if the file still matches the listed size
+     * and wasn't modified after the list was written.
+     * </p>
+     */
+    private void recordChecksum ( final String name, final Map<String, String> fields, final File listFile, final Map<String, RecordedFile> result )
+    {
+        final File file = this.root.resolve ( name ).toFile ();
+        if ( !Long.toString ( file.length () ).equals ( fields.get ( "Size" ) ) || file.lastModified () > listFile.lastModified () )
+        {
+            return;
+        }
+
+        for ( final String field : CHECKSUM_FIELDS )
+        {
+            final String value = fields.get ( field );
+            if ( value != null )
+            {
+                result.put ( name, new RecordedFile ( "\"" + value + "\"", file.length (), file.lastModified () ) );
+                return;
+            }
+        }
+    }
+}
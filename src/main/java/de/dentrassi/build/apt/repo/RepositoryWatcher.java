@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * Keep a built repository up to date with its source folder
+ * <p>
+ * The source folder, and its sub-directories when scanning recursively, are
+ * watched for new, changed and deleted package files. Changes are collected
+ * until no further change arrived for the debounce time, then the changed
+ * package files are processed and the affected package lists and release
+ * files are written again. The packages of the repository are kept in memory
+ * between changes.
+ * </p>
+ * <p>
+ * Index files are written in place, so enabling by-hash files is recommended
+ * for clients reading the repository while it changes. Staged publishing is
+ * not supported, the repository must use {@link PublishStrategy#DIRECT}.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+public class RepositoryWatcher
+{
+    private final AptWriter writer;
+
+    private final long debounce;
+
+    private final long maxDelay;
+
+    private final SourceScanner scanner;
+
+    private final Path root;
+
+    private final Console console;
+
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path> ();
+
+    /**
+     * @param writer
+     *            the writer, which must have built the repository
+     * @param debounceMillis
+     *            the time without further changes after which changes are
+     *            published, in milliseconds. Changes are published at the
+     *            latest after ten times this time.
+     * @throws IllegalStateException
+     *             if the repository uses a staged publish strategy
+     */
+    public RepositoryWatcher ( final AptWriter writer, final long debounceMillis )
+    {
+        validate ( writer.getConfiguration () );
+
+        this.writer = writer;
+        this.debounce = debounceMillis;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos ( debounceMillis * 10 );
+        this.console = writer.getConsole ();
+        this.scanner = new SourceScanner ( writer.getConfiguration (), this.console );
+        this.root = writer.getConfiguration ().getSourceFolder ().toPath ().toAbsolutePath ();
+    }
+
+    /**
+     * Check that a repository can be watched
+     * <p>
+     * Changes are written into the target folder directly. With a staged
+     * publish strategy this would modify the published repository in place,
+     * so only {@link PublishStrategy#DIRECT} is supported.
+     * </p>
+     * 
+     * @param configuration
+     *            the configuration of the repository
+     * @throws IllegalStateException
+     *             if the repository cannot be watched
+     */
+    public static void validate ( final Configuration configuration ) throws IllegalStateException
+    {
+        if ( configuration.getPublishStrategy () != null && configuration.getPublishStrategy () != PublishStrategy.DIRECT )
+        {
+            throw new IllegalStateException ( String.format ( "Watching requires the publish strategy %s, not %s", PublishStrategy.DIRECT, configuration.getPublishStrategy () ) );
+        }
+    }
+
+    /**
+     * Watch the source folder until the thread is interrupted
+     */
+    public void run () throws Exception
+    {
+        try ( final WatchService watchService = this.root.getFileSystem ().newWatchService () )
+        {
+            final Set<Path> pending = new LinkedHashSet<Path> ();
+
+            register ( watchService, this.root, null );
+
+            this.console.info ( "Watching: " + this.root );
+
+            long first = 0;
+
+            while ( !Thread.currentThread ().isInterrupted () )
+            {
+                final WatchKey key;
+                try
+                {
+                    key = pending.isEmpty () ? watchService.take () : watchService.poll ( this.debounce, TimeUnit.MILLISECONDS );
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread ().interrupt ();
+                    break;
+                }
+
+                if ( key != null )
+                {
+                    if ( pending.isEmpty () )
+                    {
+                        first = System.nanoTime ();
+                    }
+                    handle ( watchService, key, pending );
+                }
+
+                if ( !pending.isEmpty () && ( key == null || System.nanoTime () - first > this.maxDelay ) )
+                {
+                    try
+                    {
+                        publish ( pending );
+                    }
+                    catch ( final Exception e )
+                    {
+                        // the affected package lists stay marked as changed and are written with the next change
+                        this.console.warn ( "Failed to publish changes, retrying with the next change: " + e.getMessage () );
+                    }
+                    pending.clear ();
+                }
+            }
+        }
+    }
+
+    private void handle ( final WatchService watchService, final WatchKey key, final Set<Path> pending ) throws IOException
+    {
+        final Path dir = this.keys.get ( key );
+
+        for ( final WatchEvent<?> event : key.pollEvents () )
+        {
+            if ( event.kind () == StandardWatchEventKinds.OVERFLOW || dir == null )
+            {
+                this.console.warn ( "Missed changes, checking all package files" );
+                register ( watchService, this.root, pending );
+                continue;
+            }
+
+            final Path path = dir.resolve ( (Path)event.context () );
+
+            if ( event.kind () == StandardWatchEventKinds.ENTRY_CREATE && this.scanner.isRecursive () && Files.isDirectory ( path ) && !Files.isSymbolicLink ( path ) )
+            {
+                if ( !this.scanner.isExcluded ( path ) )
+                {
+                    // files may have been created before the directory got registered
+                    register ( watchService, path, pending );
+                }
+            }
+            else if ( this.scanner.isIncluded ( path ) )
+            {
+                pending.add ( path );
+            }
+            else if ( event.kind () == StandardWatchEventKinds.ENTRY_DELETE && this.scanner.isRecursive () )
+            {
+                // may be a directory, there are no events for the files it contained
+                pending.add ( path );
+            }
+        }
+
+        if ( !key.reset () )
+        {
+            this.keys.remove ( key );
+        }
+    }
+
+    /**
+     * Register a directory and, when scanning recursively, its sub-directories
+     * 
+     * @param pending
+     *            the set to add the included files to, or <code>null</code>
+     */
+    private void register ( final WatchService watchService, final Path dir, final Set<Path> pending ) throws IOException
+    {
+        final WatchKey key = dir.register ( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+        this.keys.put ( key, dir );
+
+        try ( final DirectoryStream<Path> stream = Files.newDirectoryStream ( dir ) )
+        {
+            for ( final Path path : stream )
+            {
+                if ( Files.isDirectory ( path ) )
+                {
+                    if ( this.scanner.isRecursive () && !Files.isSymbolicLink ( path ) && !this.scanner.isExcluded ( path ) )
+                    {
+                        register ( watchService, path, pending );
+                    }
+                }
+                else if ( pending != null && this.scanner.isIncluded ( path ) )
+                {
+                    pending.add ( path );
+                }
+            }
+        }
+    }
+
+    private void publish ( final Set<Path> pending ) throws Exception
+    {
+        final long start = System.nanoTime ();
+
+        int count = 0;
+        for ( final Path path : pending )
+        {
+            try
+            {
+                if ( Files.isRegularFile ( path ) )
+                {
+                    this.writer.updatePackageFile ( path.toFile () );
+                }
+                else if ( !Files.exists ( path ) )
+                {
+                    this.writer.removePackageFile ( path.toFile () );
+                }
+                count++;
+            }
+            catch ( final Exception e )
+            {
+                // e.g. a package file which is still being written, it will be modified again
+                this.console.warn ( String.format ( "Failed to process %s: %s", path, e.getMessage () ) );
+            }
+        }
+
+        this.writer.publishChanges ();
+
+        this.console.info ( String.format ( "Published %s changes in %s ms", count, TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - start ) ) );
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+/**
+ * A rule assigning packages to a component of a distribution
+ * <p>
+ * A package is assigned to the component if it matches all the patterns which
+ * are set. Patterns are globs, where <code>*</code> matches any number and
+ * <code>?</code> matches exactly one character. A package is assigned to the
+ * components of all matching routes.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+public class Route
+{
+    private String distribution;
+
+    private String component;
+
+    private String packageName;
+
+    private String section;
+
+    private String filename;
+
+    private String label;
+
+    public Route ()
+    {
+    }
+
+    public Route ( final String distribution, final String component )
+    {
+        this.distribution = distribution;
+        this.component = component;
+    }
+
+    public Route ( final Route other )
+    {
+        this.distribution = other.distribution;
+        this.component = other.component;
+        this.packageName = other.packageName;
+        this.section = other.section;
+        this.filename = other.filename;
+        this.label = other.label;
+    }
+
+    /**
+     * Set the name of the target distribution
+     */
+    public void setDistribution ( final String distribution )
+    {
+        this.distribution = distribution;
+    }
+
+    public String getDistribution ()
+    {
+        return this.distribution;
+    }
+
+    /**
+     * Set the name of the target component
+     */
+    public void setComponent ( final String component )
+    {
+        this.component = component;
+    }
+
+    public String getComponent ()
+    {
+        return this.component;
+    }
+
+    /**
+     * Set the pattern of the <code>Package</code> field
+     * 
+     * @param packageName
+     *            the pattern, or <code>null</code> to match any package
+     */
+    public void setPackageName ( final String packageName )
+    {
+        this.packageName = packageName;
+    }
+
+    public String getPackageName ()
+    {
+        return this.packageName;
+    }
+
+    /**
+     * Set the pattern of the <code>Section</code> field
+     * 
+     * @param section
+     *            the pattern, or <code>null</code> to match any section
+     */
+    public void setSection ( final String section )
+    {
+        this.section = section;
+    }
+
+    public String getSection ()
+    {
+        return this.section;
+    }
+
+    /**
+     * Set the pattern of the name of the package file
+     * 
+     * @param filename
+     *            the pattern, or <code>null</code> to match any file
+     */
+    public void setFilename ( final String filename )
+    {
+        this.filename = filename;
+    }
+
+    public String getFilename ()
+    {
+        return this.filename;
+    }
+
+    /**
+     * Set the label of the target component
+     * 
+     * @param label
+     *            the label, or <code>null</code> to use the default label
+     */
+    public void setLabel ( final String label )
+    {
+        this.label = label;
+    }
+
+    public String getLabel ()
+    {
+        return this.label;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return this.distribution + "/" + this.component;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled routes of a configuration
+ * <p>
+ * The patterns of all routes are compiled once, so that routing a package
+ * only needs to match its fields.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class Router
+{
+    private static final class CompiledRoute
+    {
+        private final Component component;
+
+        private final Pattern packageName;
+
+        private final Pattern section;
+
+        private final Pattern filename;
+
+        public CompiledRoute ( final Component component, final Route route )
+        {
+            this.component = component;
+            this.packageName = compileGlob ( route.getPackageName () );
+            this.section = compileGlob ( route.getSection () );
+            this.filename = compileGlob ( route.getFilename () );
+        }
+
+        public boolean matches ( final BinaryPackagePackagesFile cf, final File packageFile )
+        {
+            return matches ( this.packageName, cf.get ( "Package" ) ) && matches ( this.section, cf.get ( "Section" ) ) && matches ( this.filename, packageFile.getName () );
+        }
+
+        private static boolean matches ( final Pattern pattern, final String value )
+        {
+            if ( pattern == null )
+            {
+                return true;
+            }
+            return value != null && pattern.matcher ( value ).matches ();
+        }
+    }
+
+    private final List<CompiledRoute> routes = new ArrayList<CompiledRoute> ();
+
+    /**
+     * Compile the routes of a configuration
+     * 
+     * @param configuration
+     *            the configuration
+     * @throws IllegalStateException
+     *             if a route targets an unknown distribution or component
+     */
+    public Router ( final Configuration configuration ) throws IllegalStateException
+    {
+        for ( final Route route : configuration.getRoutes () )
+        {
+            this.routes.add ( new CompiledRoute ( findComponent ( configuration, route ), route ) );
+        }
+    }
+
+    /**
+     * Check if there are any routes
+     */
+    public boolean isEmpty ()
+    {
+        return this.routes.isEmpty ();
+    }
+
+    /**
+     * Find the components of a package
+     * 
+     * @param cf
+     *            the package information
+     * @param packageFile
+     *            the package file
+     * @return the components of all matching routes, in the order of the
+     *         routes, without duplicates
+     */
+    public List<Component> route ( final BinaryPackagePackagesFile cf, final File packageFile )
+    {
+        List<Component> result = Collections.emptyList ();
+
+        for ( final CompiledRoute route : this.routes )
+        {
+            if ( !route.matches ( cf, packageFile ) )
+            {
+                continue;
+            }
+
+            if ( result.isEmpty () )
+            {
+                result = new ArrayList<Component> ( 2 );
+            }
+            if ( !result.contains ( route.component ) )
+            {
+                result.add ( route.component );
+            }
+        }
+
+        return result;
+    }
+
+    static Component findComponent ( final Configuration configuration, final Route route ) throws IllegalStateException
+    {
+        for ( final Distribution dist : configuration.getDistributions () )
+        {
+            if ( !dist.getName ().equals ( route.getDistribution () ) )
+            {
+                continue;
+            }
+
+            for ( final Component comp : dist.getComponents () )
+            {
+                if ( comp.getName ().equals ( route.getComponent () ) )
+                {
+                    return comp;
+                }
+            }
+        }
+
+        throw new IllegalStateException ( "Route targets an unknown component: " + route );
+    }
+
+    /**
+     * Convert a glob into a regular expression
+     * 
+     * @param glob
+     *            the glob, may be <code>null</code>
+     * @return the pattern, or <code>null</code> if the glob was
+     *         <code>null</code>
+     */
+    static Pattern compileGlob ( final String glob )
+    {
+        if ( glob == null )
+        {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder ();
+        final StringBuilder literal = new StringBuilder ();
+
+        for ( final char c : glob.toCharArray () )
+        {
+            if ( c != '*' && c != '?' )
+            {
+                literal.append ( c );
+                continue;
+            }
+
+            if ( literal.length () > 0 )
+            {
+                sb.append ( Pattern.quote ( literal.toString () ) );
+                literal.setLength ( 0 );
+            }
+            sb.append ( c == '*' ? ".*" : "." );
+        }
+
+        if ( literal.length () > 0 )
+        {
+            sb.append ( Pattern.quote ( literal.toString () ) );
+        }
+
+        return Pattern.compile ( sb.toString (), Pattern.DOTALL );
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.security.MessageDigest;
+
+/**
+ * A digester backed by a JCA message digest algorithm
+ * 
+ * @author Jens Reimann
+ */
+class SimpleDigester implements Digester
+{
+
+    private final String name;
+
+    private final String javaName;
+
+    public SimpleDigester ( final String name, final String javaName )
+    {
+        this.name = name;
+        this.javaName = javaName;
+    }
+
+    @Override
+    public String getName ()
+    {
+        return this.name;
+    }
+
+    @Override
+    public MessageDigest create ()
+    {
+        try
+        {
+            return MessageDigest.getInstance ( this.javaName );
+        }
+        catch ( final Exception e )
+        {
+            throw new RuntimeException ( e );
+        }
+    }
+
+}
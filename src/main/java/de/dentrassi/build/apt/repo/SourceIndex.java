@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * The package files the pool files were created from
+ * <p>
+ * For each package file, by its path relative to the source folder, this
+ * records the size and modification timestamp, and the pool files created
+ * from it. This allows to skip unchanged package files, and to find the
+ * packages of removed package files.
+ * </p>
+ * <p>
+ * The index is stored in the target folder, as plain text file. Each entry
+ * starts with a line of the form
+ * <code>@ &lt;size&gt; &lt;modified&gt; &lt;path&gt;</code>, followed by the
+ * pool file names and an empty line.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class SourceIndex
+{
+    static final String FILE_NAME = ".sources";
+
+    private static final String HEADER = "# apt-repo source index 1";
+
+    static final class Entry
+    {
+        private final long size;
+
+        private final long modified;
+
+        private final List<String> filenames;
+
+        public Entry ( final long size, final long modified, final List<String> filenames )
+        {
+            this.size = size;
+            this.modified = modified;
+            this.filenames = Collections.unmodifiableList ( filenames );
+        }
+
+        public long getSize ()
+        {
+            return this.size;
+        }
+
+        public long getModified ()
+        {
+            return this.modified;
+        }
+
+        public List<String> getFilenames ()
+        {
+            return this.filenames;
+        }
+    }
+
+    private final Console console;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry> ();
+
+    /**
+     * The paths of the package files, by pool file name
+     */
+    private final Map<String, Set<String>> sources = new HashMap<String, Set<String>> ();
+
+    /**
+     * @param console
+     *            the console to report to
+     */
+    public SourceIndex ( final Console console )
+    {
+        this.console = console;
+    }
+
+    /**
+     * Load the index file, if it exists
+     * <p>
+     * An index file which cannot be read is ignored.
+     * </p>
+     * 
+     * @param targetFolder
+     *            the target folder of the repository
+     */
+    public synchronized void load ( final File targetFolder )
+    {
+        final File file = new File ( targetFolder, FILE_NAME );
+        if ( !file.isFile () )
+        {
+            return;
+        }
+
+        try ( final BufferedReader reader = Files.newBufferedReader ( file.toPath (), StandardCharsets.UTF_8 ) )
+        {
+            if ( !HEADER.equals ( reader.readLine () ) )
+            {
+                this.console.warn ( "Ignoring source index with unknown format: " + file );
+                return;
+            }
+
+            String path = null;
+            long size = 0;
+            long modified = 0;
+            final List<String> filenames = new ArrayList<String> ();
+
+            String line;
+            while ( ( line = reader.readLine () ) != null )
+            {
+                if ( line.startsWith ( "@ " ) )
+                {
+                    final String[] toks = line.split ( " ", 4 );
+                    size = Long.parseLong ( toks[1] );
+                    modified = Long.parseLong ( toks[2] );
+                    path = toks[3];
+                    filenames.clear ();
+                }
+                else if ( line.isEmpty () )
+                {
+                    if ( path != null )
+                    {
+                        put ( path, new Entry ( size, modified, new ArrayList<String> ( filenames ) ) );
+                    }
+                    path = null;
+                }
+                else
+                {
+                    filenames.add ( line );
+                }
+            }
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            this.console.warn ( "Failed to read source index: " + file + ": " + e.getMessage () );
+            this.entries.clear ();
+            this.sources.clear ();
+        }
+
+        this.console.debug ( String.format ( "Loaded %s entries from source index: %s", this.entries.size (), file ) );
+    }
+
+    /**
+     * Write the index file
+     * 
+     * @param targetFolder
+     *            the target folder of the repository
+     */
+    public synchronized void store ( final File targetFolder ) throws IOException
+    {
+        final Path path = new File ( targetFolder, FILE_NAME ).toPath ();
+        final Path tmp = Files.createTempFile ( path.getParent (), path.getFileName ().toString (), ".tmp" );
+        try
+        {
+            try ( final Writer writer = Files.newBufferedWriter ( tmp, StandardCharsets.UTF_8 ) )
+            {
+                writer.write ( HEADER );
+                writer.write ( '\n' );
+
+                for ( final Map.Entry<String, Entry> entry : new TreeMap<String, Entry> ( this.entries ).entrySet () )
+                {
+                    final Entry e = entry.getValue ();
+                    writer.write ( String.format ( "@ %s %s %s\n", e.size, e.modified, entry.getKey () ) );
+                    for ( final String filename : e.filenames )
+                    {
+                        writer.write ( filename );
+                        writer.write ( '\n' );
+                    }
+                    writer.write ( '\n' );
+                }
+            }
+
+            Files.move ( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            Files.deleteIfExists ( tmp );
+        }
+    }
+
+    public synchronized Entry get ( final String path )
+    {
+        return this.entries.get ( path );
+    }
+
+    /**
+     * Record the pool files of a package file
+     * 
+     * @param path
+     *            the path of the package file, relative to the source folder
+     * @param entry
+     *            the package file information
+     * @return the previous entry, or <code>null</code> if there was none
+     */
+    public synchronized Entry put ( final String path, final Entry entry )
+    {
+        final Entry previous = remove ( path );
+
+        this.entries.put ( path, entry );
+        for ( final String filename : entry.filenames )
+        {
+            this.sources.computeIfAbsent ( filename, f -> new LinkedHashSet<String> () ).add ( path );
+        }
+
+        return previous;
+    }
+
+    /**
+     * Remove a package file
+     * 
+     * @param path
+     *            the path of the package file, relative to the source folder
+     * @return the removed entry, or <code>null</code> if there was none
+     */
+    public synchronized Entry remove ( final String path )
+    {
+        final Entry entry = this.entries.remove ( path );
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        for ( final String filename : entry.filenames )
+        {
+            final Set<String> paths = this.sources.get ( filename );
+            if ( paths != null )
+            {
+                paths.remove ( path );
+                if ( paths.isEmpty () )
+                {
+                    this.sources.remove ( filename );
+                }
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Get the paths of the package files a pool file was created from
+     * 
+     * @param filename
+     *            the pool file name
+     * @return the paths, relative to the source folder, may be empty
+     */
+    public synchronized List<String> getSources ( final String filename )
+    {
+        final Set<String> paths = this.sources.get ( filename );
+        return paths == null ? Collections.<String> emptyList () : new ArrayList<String> ( paths );
+    }
+
+    /**
+     * Get the paths of all package files in a directory and its sub
+     * directories
+     * 
+     * @param dir
+     *            the path of the directory, relative to the source folder,
+     *            empty for the source folder
+     * @return the paths, relative to the source folder
+     */
+    public synchronized List<String> getPaths ( final String dir )
+    {
+        final String prefix = dir.isEmpty () ? "" : dir + "/";
+
+        final List<String> result = new ArrayList<String> ();
+        for ( final String path : this.entries.keySet () )
+        {
+            if ( path.startsWith ( prefix ) )
+            {
+                result.add ( path );
+            }
+        }
+        Collections.sort ( result );
+        return result;
+    }
+}
+
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * Find the package files of the source directory
+ * <p>
+ * Files are reported to the listener as soon as their directory has been
+ * listed, so that processing them overlaps with listing the remaining
+ * directories. When running with an executor, sub-directories are listed in
+ * parallel, which helps on file systems with a high latency, like NFS.
+ * </p>
+ * <p>
+ * Patterns are globs (see {@link FileSystems#getPathMatcher(String)}),
+ * matched against the path relative to the source directory. A file is
+ * reported if it matches any of the include patterns and none of the exclude
+ * patterns. Directories matching an exclude pattern are skipped. Symbolic
+ * links to directories are not followed.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class SourceScanner
+{
+    /**
+     * Receives the found package files
+     * <p>
+     * This may be called concurrently when scanning with an executor.
+     * </p>
+     */
+    interface Listener
+    {
+        public void found ( SourceFile file ) throws Exception;
+    }
+
+    /**
+     * A found package file
+     * <p>
+     * Source files are ordered like a sequential, depth first walk would
+     * find them, independent of the order in which they were found.
+     * </p>
+     */
+    static final class SourceFile implements Comparable<SourceFile>
+    {
+        private final File file;
+
+        private final int[] order;
+
+        private SourceFile ( final File file, final int[] order )
+        {
+            this.file = file;
+            this.order = order;
+        }
+
+        public File getFile ()
+        {
+            return this.file;
+        }
+
+        @Override
+        public int compareTo ( final SourceFile o )
+        {
+            final int len = Math.min ( this.order.length, o.order.length );
+            for ( int i = 0; i < len; i++ )
+            {
+                if ( this.order[i] != o.order[i] )
+                {
+                    return this.order[i] < o.order[i] ? -1 : 1;
+                }
+            }
+            return Integer.compare ( this.order.length, o.order.length );
+        }
+
+        @Override
+        public String toString ()
+        {
+            return this.file.toString ();
+        }
+    }
+
+    /**
+     * The directories which are submitted, but not yet scanned
+     * <p>
+     * A directory registers its sub-directories before it arrives itself, so
+     * the count only drops to zero once the whole tree has been scanned. The
+     * count is not limited, unlike the parties of a
+     * {@link java.util.concurrent.Phaser}, as deep trees may have many more
+     * pending directories than threads.
+     * </p>
+     */
+    private static final class PendingDirectories
+    {
+        private final AtomicInteger count = new AtomicInteger ();
+
+        private final CountDownLatch done = new CountDownLatch ( 1 );
+
+        public void register ()
+        {
+            this.count.incrementAndGet ();
+        }
+
+        public void arrive ()
+        {
+            if ( this.count.decrementAndGet () == 0 )
+            {
+                this.done.countDown ();
+            }
+        }
+
+        public void await () throws InterruptedException
+        {
+            this.done.await ();
+        }
+    }
+
+    private final Path root;
+
+    private final boolean recursive;
+
+    private final List<PathMatcher> includes;
+
+    private final List<PathMatcher> excludes;
+
+    private final Console console;
+
+    private final LongAdder nanos = new LongAdder ();
+
+    private final LongAdder bytes = new LongAdder ();
+
+    public SourceScanner ( final Configuration configuration, final Console console )
+    {
+        this.root = configuration.getSourceFolder ().toPath ();
+        this.recursive = configuration.isRecursive ();
+        this.includes = compile ( configuration.getIncludes () );
+        this.excludes = compile ( configuration.getExcludes () );
+        this.console = console;
+    }
+
+    /**
+     * Compile glob patterns
+     * 
+     * @throws IllegalArgumentException
+     *             if a pattern is invalid
+     */
+    static List<PathMatcher> compile ( final List<String> patterns ) throws IllegalArgumentException
+    {
+        final List<PathMatcher> result = new ArrayList<PathMatcher> ( patterns.size () );
+        for ( final String pattern : patterns )
+        {
+            result.add ( FileSystems.getDefault ().getPathMatcher ( "glob:" + pattern ) );
+        }
+        return result;
+    }
+
+    /**
+     * Scan the source directory
+     * 
+     * @param executor
+     *            the executor to list directories with, or <code>null</code>
+     *            to scan sequentially, in which case the files are reported
+     *            in order
+     * @param listener
+     *            the listener to report the files to
+     */
+    public void scan ( final ExecutorService executor, final Listener listener ) throws Exception
+    {
+        if ( executor == null )
+        {
+            scanDirectory ( this.root, new int[0], null, listener, null, null );
+            return;
+        }
+
+        final PendingDirectories pending = new PendingDirectories ();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable> ();
+
+        submitDirectory ( this.root, new int[0], executor, listener, pending, error );
+
+        pending.await ();
+
+        final Throwable e = error.get ();
+        if ( e instanceof Exception )
+        {
+            throw (Exception)e;
+        }
+        if ( e instanceof Error )
+        {
+            throw (Error)e;
+        }
+    }
+
+    /**
+     * Get the time spent listing directories, summed over all threads
+     */
+    public long getNanos ()
+    {
+        return this.nanos.sum ();
+    }
+
+    /**
+     * Get the total size of the found files
+     */
+    public long getBytes ()
+    {
+        return this.bytes.sum ();
+    }
+
+    private void submitDirectory ( final Path dir, final int[] order, final ExecutorService executor, final Listener listener, final PendingDirectories pending, final AtomicReference<Throwable> error )
+    {
+        pending.register ();
+        executor.execute ( () -> {
+            try
+            {
+                if ( error.get () == null )
+                {
+                    scanDirectory ( dir, order, executor, listener, pending, error );
+                }
+            }
+            catch ( final Throwable e )
+            {
+                error.compareAndSet ( null, e );
+            }
+            finally
+            {
+                pending.arrive ();
+            }
+        } );
+    }
+
+    private void scanDirectory ( final Path dir, final int[] order, final ExecutorService executor, final Listener listener, final PendingDirectories pending, final AtomicReference<Throwable> error ) throws Exception
+    {
+        this.console.debug ( "Scanning: " + dir );
+
+        final long start = System.nanoTime ();
+
+        final List<Path> entries = new ArrayList<Path> ();
+        final BitSet dirs = new BitSet ();
+
+        try ( final DirectoryStream<Path> stream = Files.newDirectoryStream ( dir ) )
+        {
+            for ( final Path path : stream )
+            {
+                final Path relative = this.root.relativize ( path );
+                if ( matches ( this.excludes, relative ) )
+                {
+                    continue;
+                }
+
+                final BasicFileAttributes attrs;
+                try
+                {
+                    attrs = Files.readAttributes ( path, BasicFileAttributes.class );
+                }
+                catch ( final IOException e )
+                {
+                    this.console.warn ( "Unable to read attributes: " + path );
+                    continue;
+                }
+
+                if ( attrs.isDirectory () )
+                {
+                    if ( this.recursive && !Files.isSymbolicLink ( path ) )
+                    {
+                        dirs.set ( entries.size () );
+                        entries.add ( path );
+                    }
+                }
+                else if ( attrs.isRegularFile () && matches ( this.includes, relative ) && Files.isReadable ( path ) )
+                {
+                    entries.add ( path );
+                    this.bytes.add ( attrs.size () );
+                }
+            }
+        }
+
+        this.nanos.add ( System.nanoTime () - start );
+
+        for ( int i = 0; i < entries.size (); i++ )
+        {
+            final Path path = entries.get ( i );
+
+            final int[] childOrder = Arrays.copyOf ( order, order.length + 1 );
+            childOrder[order.length] = i;
+
+            if ( dirs.get ( i ) )
+            {
+                if ( executor == null )
+                {
+                    scanDirectory ( path, childOrder, null, listener, null, null );
+                }
+                else
+                {
+                    submitDirectory ( path, childOrder, executor, listener, pending, error );
+                }
+            }
+            else
+            {
+                listener.found ( new SourceFile ( path.toFile (), childOrder ) );
+            }
+        }
+    }
+
+    /**
+     * Check if a file would be reported by a scan
+     * <p>
+     * This only checks the patterns, not the file itself.
+     * </p>
+     * 
+     * @param file
+     *            the file, in the source directory
+     * @return <code>true</code> if the file is included
+     */
+    public boolean isIncluded ( final Path file )
+    {
+        final Path relative = this.root.relativize ( file );
+        if ( !this.recursive && relative.getNameCount () > 1 )
+        {
+            return false;
+        }
+        return matches ( this.includes, relative ) && !isExcluded ( file );
+    }
+
+    /**
+     * Check if a file or directory, or any of its parent directories, is
+     * excluded
+     * 
+     * @param path
+     *            the path, in the source directory
+     * @return <code>true</code> if the path is excluded
+     */
+    public boolean isExcluded ( final Path path )
+    {
+        for ( Path relative = this.root.relativize ( path ); relative != null; relative = relative.getParent () )
+        {
+            if ( matches ( this.excludes, relative ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if sub-directories are scanned
+     */
+    public boolean isRecursive ()
+    {
+        return this.recursive;
+    }
+
+    private static boolean matches ( final List<PathMatcher> matchers, final Path path )
+    {
+        for ( final PathMatcher matcher : matchers )
+        {
+            if ( matcher.matches ( path ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Pattern;
+
+import org.vafer.jdeb.Console;
+
+/**
+ * Build a repository in a staging folder and swap it in afterwards
+ * <p>
+ * In update mode the staging folder starts as a copy of the published
+ * repository. Pool files never change in place, so they are hard linked
+ * instead of copied, all other files are copied.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+class StagedPublish
+{
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern ( "yyyyMMddHHmmssSSS" ).withZone ( ZoneId.of ( "UTC" ) );
+
+    private final Path target;
+
+    private final PublishStrategy strategy;
+
+    private final Console console;
+
+    private final Pattern releasePattern;
+
+    private Path staging;
+
+    /**
+     * @param target
+     *            the target folder, which is served to clients
+     * @param strategy
+     *            the publish strategy, must not be
+     *            {@link PublishStrategy#DIRECT}
+     * @param console
+     *            the console to log to
+     */
+    public StagedPublish ( final Path target, final PublishStrategy strategy, final Console console )
+    {
+        this.target = target.toAbsolutePath ();
+        this.strategy = strategy;
+        this.console = console;
+        this.releasePattern = Pattern.compile ( Pattern.quote ( this.target.getFileName ().toString () ) + "\\.\\d{17}" );
+    }
+
+    /**
+     * Create the staging folder
+     * 
+     * @param update
+     *            <code>true</code> to start with a copy of the published
+     *            repository, if there is one
+     * @return the staging folder, to build the repository in
+     */
+    public Path prepare ( final boolean update ) throws IOException
+    {
+        final String name = this.target.getFileName ().toString ();
+
+        switch ( this.strategy )
+        {
+            case RENAME:
+                this.staging = this.target.resolveSibling ( name + ".staging" );
+                deleteRecursively ( this.staging );
+                break;
+            case SYMLINK:
+                this.staging = this.target.resolveSibling ( name + "." + TIMESTAMP.format ( Instant.now () ) );
+                if ( Files.exists ( this.staging, LinkOption.NOFOLLOW_LINKS ) )
+                {
+                    throw new FileAlreadyExistsException ( this.staging.toString () );
+                }
+                break;
+            default:
+                throw new IllegalStateException ( "Not a staged publish strategy: " + this.strategy );
+        }
+
+        if ( update && Files.isDirectory ( this.target ) )
+        {
+            this.console.info ( String.format ( "Staging: %s -> %s", this.target, this.staging ) );
+            copyTree ( this.target.toRealPath (), this.staging );
+        }
+        else
+        {
+            this.console.info ( "Staging: " + this.staging );
+        }
+
+        return this.staging;
+    }
+
+    /**
+     * Publish the staging folder
+     */
+    public void commit () throws IOException
+    {
+        final Path backup = this.target.resolveSibling ( this.target.getFileName () + ".old" );
+        deleteRecursively ( backup );
+
+        this.console.info ( String.format ( "Publishing: %s -> %s", this.staging, this.target ) );
+
+        if ( this.strategy == PublishStrategy.RENAME )
+        {
+            if ( Files.exists ( this.target, LinkOption.NOFOLLOW_LINKS ) )
+            {
+                Files.move ( this.target, backup, StandardCopyOption.ATOMIC_MOVE );
+            }
+            try
+            {
+                Files.move ( this.staging, this.target, StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( final IOException e )
+            {
+                if ( Files.exists ( backup, LinkOption.NOFOLLOW_LINKS ) )
+                {
+                    Files.move ( backup, this.target, StandardCopyOption.ATOMIC_MOVE );
+                }
+                throw e;
+            }
+            deleteRecursively ( backup );
+            return;
+        }
+
+        // SYMLINK
+
+        Path previous = null;
+        if ( Files.isSymbolicLink ( this.target ) )
+        {
+            previous = this.target.resolveSibling ( Files.readSymbolicLink ( this.target ) ).normalize ();
+        }
+        else if ( Files.exists ( this.target, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            // the folder is kept as the previous release, until the next publish
+            this.console.info ( "Replacing folder with a symbolic link: " + this.target );
+            Files.move ( this.target, backup, StandardCopyOption.ATOMIC_MOVE );
+        }
+
+        final Path link = this.target.resolveSibling ( "." + this.target.getFileName () + ".link" );
+        Files.deleteIfExists ( link );
+        Files.createSymbolicLink ( link, this.staging.getFileName () );
+        Files.move ( link, this.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+
+        // keep the previous release, clients may still download from it, delete older and abandoned ones
+
+        try ( final DirectoryStream<Path> siblings = Files.newDirectoryStream ( this.target.getParent () ) )
+        {
+            for ( final Path sibling : siblings )
+            {
+                if ( !sibling.equals ( this.staging ) && !sibling.equals ( previous ) && this.releasePattern.matcher ( sibling.getFileName ().toString () ).matches () )
+                {
+                    this.console.debug ( "Deleting old release: " + sibling );
+                    deleteRecursively ( sibling );
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the staging folder after a failed build
+     * <p>
+     * The published repository is not touched.
+     * </p>
+     */
+    public void abort ()
+    {
+        if ( this.staging == null )
+        {
+            return;
+        }
+
+        this.console.info ( "Discarding: " + this.staging );
+        try
+        {
+            deleteRecursively ( this.staging );
+        }
+        catch ( final IOException e )
+        {
+            this.console.warn ( "Failed to delete staging folder: " + e.getMessage () );
+        }
+    }
+
+    private void copyTree ( final Path source, final Path target ) throws IOException
+    {
+        final Path pool = source.resolve ( "pool" );
+
+        Files.walkFileTree ( source, new SimpleFileVisitor<Path> () {
+            @Override
+            public FileVisitResult preVisitDirectory ( final Path dir, final BasicFileAttributes attrs ) throws IOException
+            {
+                Files.createDirectories ( target.resolve ( source.relativize ( dir ).toString () ) );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile ( final Path file, final BasicFileAttributes attrs ) throws IOException
+            {
+                final Path targetFile = target.resolve ( source.relativize ( file ).toString () );
+
+                if ( attrs.isRegularFile () && file.startsWith ( pool ) )
+                {
+                    try
+                    {
+                        Files.createLink ( targetFile, file );
+                        return FileVisitResult.CONTINUE;
+                    }
+                    catch ( final IOException | UnsupportedOperationException e )
+                    {
+                        StagedPublish.this.console.debug ( "Failed to link, copying: " + file );
+                    }
+                }
+
+                Files.copy ( file, targetFile, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    private static void deleteRecursively ( final Path path ) throws IOException
+    {
+        if ( !Files.exists ( path, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            return;
+        }
+
+        Files.walkFileTree ( path, new SimpleFileVisitor<Path> () {
+            @Override
+            public FileVisitResult visitFile ( final Path file, final BasicFileAttributes attrs ) throws IOException
+            {
+                Files.delete ( file );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory ( final Path dir, final IOException exc ) throws IOException
+            {
+                if ( exc != null )
+                {
+                    throw exc;
+                }
+                Files.delete ( dir );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+}
@@ -17,7 +17,14 @@ package de.dentrassi.build.apt.repo.maven;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.maven.plugin.AbstractMojo;
@@ -27,9 +34,14 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 import de.dentrassi.build.apt.repo.AptWriter;
+import de.dentrassi.build.apt.repo.Checksum;
 import de.dentrassi.build.apt.repo.Component;
+import de.dentrassi.build.apt.repo.Compression;
 import de.dentrassi.build.apt.repo.Configuration;
 import de.dentrassi.build.apt.repo.Distribution;
+import de.dentrassi.build.apt.repo.PoolStrategy;
+import de.dentrassi.build.apt.repo.PublishStrategy;
+import de.dentrassi.build.apt.repo.Route;
 
 /**
  * Create an APT repository structure.
@@ -38,8 +50,10 @@ import de.dentrassi.build.apt.repo.Distribution;
  * it.
  * </p>
  * <p>
- * At the moment the plugin itself can only create a repository with one
- * distribution and one component.
+ * Without routes, the plugin creates a repository with one distribution and
+ * one component. With routes, the packages are assigned to the distributions
+ * and components of the matching routes, reading each package file only
+ * once.
  * </p>
  * 
  * @author Jens Reimann
@@ -54,6 +68,29 @@ public class RepositoryMojo extends AbstractMojo
     @Parameter ( required = true )
     private File sourceDirectory;
 
+    /**
+     * Also scan the sub-directories of the source directory
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean recursive;
+
+    /**
+     * The patterns of the package files
+     * <p>
+     * Globs, matched against the path relative to the source directory.
+     * <code>**</code> also matches across directories, e.g.
+     * <code>**.deb</code> or <code>project-*&#47;**.deb</code>.
+     * </p>
+     */
+    @Parameter
+    private List<String> includes = new LinkedList<String> ( Arrays.asList ( "**.deb" ) );
+
+    /**
+     * The patterns of the files and directories to skip
+     */
+    @Parameter
+    private List<String> excludes = new LinkedList<String> ();
+
     /**
      * The output directory
      */
@@ -94,6 +131,38 @@ public class RepositoryMojo extends AbstractMojo
     @Parameter
     private String componentLabel;
 
+    /**
+     * The routes assigning packages to distributions and components
+     * <p>
+     * Each route has a <code>distribution</code> and a <code>component</code>
+     * and optional <code>packageName</code>, <code>section</code> and
+     * <code>filename</code> globs, e.g.:
+     * </p>
+     * 
+     * <pre>
+     * &lt;routes&gt;
+     *   &lt;route&gt;
+     *     &lt;distribution&gt;stable&lt;/distribution&gt;
+     *     &lt;component&gt;contrib&lt;/component&gt;
+     *     &lt;section&gt;contrib/*&lt;/section&gt;
+     *   &lt;/route&gt;
+     * &lt;/routes&gt;
+     * </pre>
+     * <p>
+     * A package is published to all matching routes, packages matching no
+     * route are skipped. The distributions and components are created from
+     * the routes, instead of <code>distributionName</code> and
+     * <code>componentName</code>.
+     * </p>
+     * <p>
+     * A route may also have a <code>label</code> for its component. Without
+     * one, the component named <code>componentName</code> is labeled with
+     * <code>componentLabel</code>, and all other components with their name.
+     * </p>
+     */
+    @Parameter
+    private List<Route> routes = new LinkedList<Route> ();
+
     /**
      * The origin of the repository
      */
@@ -106,6 +175,215 @@ public class RepositoryMojo extends AbstractMojo
     @Parameter ( defaultValue = "${project.description}" )
     private String description;
 
+    /**
+     * The number of threads used to process the package files
+     * <p>
+     * Reading, digesting and copying package files is done in parallel when
+     * this is greater than one. The generated repository is the same for any
+     * number of threads.
+     * </p>
+     */
+    @Parameter ( defaultValue = "1" )
+    private int threads;
+
+    /**
+     * Update an existing repository
+     * <p>
+     * By default the output directory must not exist. In update mode an
+     * existing repository is extended with new and changed package files
+     * instead. Packages which are already present in the pool are not copied
+     * or digested again, and only the affected package lists are written.
+     * </p>
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean update;
+
+    /**
+     * The package metadata cache file
+     * <p>
+     * If set, the metadata and checksums of each package file are recorded in
+     * this file, keyed by path, size and modification timestamp. Unchanged
+     * package files are neither unpacked nor digested again in later builds.
+     * The file may be shared between projects, e.g.
+     * <code>${settings.localRepository}/../apt-repo.cache</code>.
+     * </p>
+     */
+    @Parameter
+    private File cacheFile;
+
+    /**
+     * Also use the file key (e.g. the inode) to match cache entries
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean cacheFileKey;
+
+    /**
+     * How package files are put into the pool
+     * <p>
+     * One of <code>COPY</code>, <code>TRANSFER</code> (copy using
+     * <code>FileChannel.transferTo</code>), <code>HARDLINK</code>,
+     * <code>REFLINK</code> (copy-on-write clone, Linux only) or
+     * <code>SYMLINK</code>. If the selected strategy is not possible, e.g.
+     * hard linking across devices, the file is copied.
+     * </p>
+     */
+    @Parameter ( defaultValue = "COPY" )
+    private PoolStrategy poolStrategy;
+
+    /**
+     * Store each distinct package file only once
+     * <p>
+     * Package files are stored by their SHA-256 checksum, and the pool files
+     * of all components and distributions are hard links to them. This saves
+     * disk space and copying, when the same package file is published in
+     * several places.
+     * </p>
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean contentAddressedPool;
+
+    /**
+     * How the repository is published into the output directory
+     * <p>
+     * One of <code>DIRECT</code> (write into the output directory),
+     * <code>RENAME</code> (build in a sibling directory and rename it) or
+     * <code>SYMLINK</code> (build in a new sibling directory and atomically
+     * switch the output directory, a symbolic link, to it). With the staged
+     * strategies a web server never serves a half written repository, and
+     * the output directory may exist without update mode, in which case it is
+     * replaced.
+     * </p>
+     * <p>
+     * <code>RENAME</code> moves the previous output directory away before
+     * renaming the new one, requests in between fail. <code>SYMLINK</code>
+     * has no such window and is recommended, it keeps the previous directory
+     * until the next build so running downloads can finish.
+     * </p>
+     */
+    @Parameter ( defaultValue = "DIRECT" )
+    private PublishStrategy publishStrategy;
+
+    /**
+     * The compression formats of the index files
+     * <p>
+     * Any of <code>GZIP</code>, <code>XZ</code>, <code>BZIP2</code> and
+     * <code>ZSTD</code>. The plain index files are always written.
+     * </p>
+     * <p>
+     * <code>ZSTD</code> requires <code>com.github.luben:zstd-jni</code>, which
+     * is not included by default. Add it as a dependency of the plugin:
+     * </p>
+     * 
+     * <pre>
+     * &lt;plugin&gt;
+     *   &lt;groupId&gt;de.dentrassi.build&lt;/groupId&gt;
+     *   &lt;artifactId&gt;apt-repo&lt;/artifactId&gt;
+     *   &lt;dependencies&gt;
+     *     &lt;dependency&gt;
+     *       &lt;groupId&gt;com.github.luben&lt;/groupId&gt;
+     *       &lt;artifactId&gt;zstd-jni&lt;/artifactId&gt;
+     *       &lt;version&gt;1.5.0-2&lt;/version&gt;
+     *     &lt;/dependency&gt;
+     *   &lt;/dependencies&gt;
+     * &lt;/plugin&gt;
+     * </pre>
+     */
+    @Parameter
+    private Set<String> compressions = new HashSet<String> ( Arrays.asList ( "GZIP" ) );
+
+    /**
+     * The compression level by format
+     * <p>
+     * For example <code>&lt;XZ&gt;9&lt;/XZ&gt;</code>. Formats which are not
+     * listed use their default level.
+     * </p>
+     */
+    @Parameter
+    private Map<String, Integer> compressionLevels = new HashMap<String, Integer> ();
+
+    /**
+     * The checksums of package files and index files
+     * <p>
+     * Any of <code>MD5</code>, <code>SHA1</code>, <code>SHA256</code> and
+     * <code>SHA512</code>.
+     * </p>
+     */
+    @Parameter
+    private Set<String> checksums = new HashSet<String> ( Arrays.asList ( "MD5", "SHA1", "SHA256" ) );
+
+    /**
+     * Create contents files
+     * <p>
+     * A <code>Contents-&lt;arch&gt;.gz</code> file is created for each
+     * architecture in the component directory and listed in the release file,
+     * so that tools like <code>apt-file</code> can search the repository.
+     * </p>
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean contents;
+
+    /**
+     * Also store index files by their checksums
+     * <p>
+     * Each index file is also written to
+     * <code>by-hash/&lt;checksum&gt;/&lt;digest&gt;</code> next to it, and
+     * the release file gets <code>Acquire-By-Hash: yes</code>. These files
+     * never change, so they can be cached as immutable and clients don't get
+     * checksum mismatches while a repository is being published.
+     * </p>
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean byHash;
+
+    /**
+     * The number of previous generations of by-hash files to keep
+     */
+    @Parameter ( defaultValue = "2" )
+    private int byHashGenerations;
+
+    /**
+     * Create patches of the package lists
+     * <p>
+     * When updating a repository, an <code>ed</code> script from the previous
+     * to the new <code>Packages</code> file is stored in
+     * <code>Packages.diff</code> and listed in its <code>Index</code> file, so
+     * that clients only download the changes.
+     * </p>
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean pdiff;
+
+    /**
+     * The number of patches kept for each package list
+     */
+    @Parameter ( defaultValue = "14" )
+    private int pdiffHistory;
+
+    /**
+     * The performance report file
+     * <p>
+     * If set, a JSON report is written to this file. It lists the time, the
+     * number of bytes and the throughput of each build phase (scan, parse
+     * control, hash, pool copy, index write, compress and release digest), as
+     * well as the timings of each package and the slowest packages. For
+     * example <code>${project.build.directory}/apt-report.json</code>.
+     * </p>
+     */
+    @Parameter
+    private File reportFile;
+
+    /**
+     * Log a summary of the performance report
+     */
+    @Parameter ( defaultValue = "false" )
+    private boolean reportSummary;
+
+    /**
+     * The number of slowest packages listed in the performance report
+     */
+    @Parameter ( defaultValue = "10" )
+    private int reportSlowest;
+
     public void setArchitectures ( final Set<String> architectures )
     {
         this.architectures = architectures;
@@ -113,34 +391,164 @@ public class RepositoryMojo extends AbstractMojo
 
     @Override
     public void execute () throws MojoExecutionException, MojoFailureException
+    {
+        final AptWriter writer = new AptWriter ( createConfiguration (), new MojoConsole ( getLog () ) );
+        try
+        {
+            writer.build ();
+        }
+        catch ( final Exception e )
+        {
+            throw new MojoExecutionException ( "Failed to create APT repository", e );
+        }
+    }
+
+    /**
+     * Create the repository configuration from the parameters
+     */
+    protected Configuration createConfiguration () throws MojoExecutionException
     {
         final Configuration configuration = new Configuration ();
 
         configuration.setSourceFolder ( this.sourceDirectory );
         configuration.setTargetFolder ( this.outputDirectory );
+        configuration.setRecursive ( this.recursive );
+        configuration.setIncludes ( this.includes );
+        configuration.setExcludes ( this.excludes );
         configuration.setArchitectures ( this.architectures );
+        configuration.setThreads ( this.threads );
+        configuration.setUpdate ( this.update );
+        configuration.setCacheFile ( this.cacheFile );
+        configuration.setCacheFileKey ( this.cacheFileKey );
+        configuration.setPoolStrategy ( this.poolStrategy );
+        configuration.setContentAddressedPool ( this.contentAddressedPool );
+        configuration.setPublishStrategy ( this.publishStrategy );
+        final Set<Checksum> checksums = EnumSet.noneOf ( Checksum.class );
+        for ( final String checksum : this.checksums )
+        {
+            checksums.add ( toChecksum ( checksum ) );
+        }
+        configuration.setChecksums ( checksums );
+
+        configuration.setContents ( this.contents );
+        configuration.setByHash ( this.byHash );
+        configuration.setByHashGenerations ( this.byHashGenerations );
+        configuration.setPdiff ( this.pdiff );
+        configuration.setPdiffHistory ( this.pdiffHistory );
 
+        configuration.setReportFile ( this.reportFile );
+        configuration.setReportSummary ( this.reportSummary );
+        configuration.setReportSlowest ( this.reportSlowest );
+
+        final Set<Compression> compressions = EnumSet.noneOf ( Compression.class );
+        for ( final String compression : this.compressions )
+        {
+            compressions.add ( toCompression ( compression ) );
+        }
+        configuration.setCompressions ( compressions );
+
+        for ( final Map.Entry<String, Integer> entry : this.compressionLevels.entrySet () )
+        {
+            configuration.setCompressionLevel ( toCompression ( entry.getKey () ), entry.getValue () );
+        }
+
+        if ( this.routes.isEmpty () )
+        {
+            final Distribution dist = createDistribution ( this.distributionName );
+
+            final Component comp = new Component ();
+            comp.setName ( this.componentName );
+            comp.setLabel ( this.componentLabel );
+            dist.addComponent ( comp );
+
+            configuration.addDistribution ( dist );
+        }
+        else
+        {
+            // component labels by distribution, the first explicit label of a component wins
+            final Map<String, Map<String, String>> dists = new LinkedHashMap<String, Map<String, String>> ();
+            for ( final Route route : this.routes )
+            {
+                if ( route.getDistribution () == null || route.getComponent () == null )
+                {
+                    throw new MojoExecutionException ( "Route must have a distribution and a component: " + route );
+                }
+
+                final Map<String, String> labels = dists.computeIfAbsent ( route.getDistribution (), d -> new LinkedHashMap<String, String> () );
+                if ( route.getLabel () != null )
+                {
+                    labels.putIfAbsent ( route.getComponent (), route.getLabel () );
+                }
+                else if ( !labels.containsKey ( route.getComponent () ) )
+                {
+                    labels.put ( route.getComponent (), null );
+                }
+
+                configuration.addRoute ( route );
+            }
+
+            for ( final Map.Entry<String, Map<String, String>> entry : dists.entrySet () )
+            {
+                final Distribution dist = createDistribution ( entry.getKey () );
+
+                for ( final Map.Entry<String, String> label : entry.getValue ().entrySet () )
+                {
+                    final Component comp = new Component ();
+                    comp.setName ( label.getKey () );
+                    comp.setLabel ( label.getValue () != null ? label.getValue () : makeComponentLabel ( label.getKey () ) );
+                    dist.addComponent ( comp );
+                }
+
+                configuration.addDistribution ( dist );
+            }
+        }
+
+        return configuration;
+    }
+
+    /**
+     * Get the default label of a component created from routes
+     */
+    private String makeComponentLabel ( final String name )
+    {
+        if ( name.equals ( this.componentName ) && this.componentLabel != null )
+        {
+            return this.componentLabel;
+        }
+        return name;
+    }
+
+    private Distribution createDistribution ( final String name )
+    {
         final Distribution dist = new Distribution ();
-        dist.setName ( this.distributionName );
+        dist.setName ( name );
         dist.setOrigin ( this.origin );
         dist.setLabel ( this.distributionLabel );
         dist.setDescription ( this.description );
+        return dist;
+    }
 
-        final Component comp = new Component ();
-        comp.setName ( this.componentName );
-        comp.setLabel ( this.componentLabel );
-        dist.addComponent ( comp );
-
-        configuration.addDistribution ( dist );
+    private static Checksum toChecksum ( final String name ) throws MojoExecutionException
+    {
+        try
+        {
+            return Checksum.valueOf ( name.trim ().toUpperCase ( Locale.ROOT ).replace ( "-", "" ) );
+        }
+        catch ( final IllegalArgumentException e )
+        {
+            throw new MojoExecutionException ( "Unknown checksum: " + name, e );
+        }
+    }
 
-        final AptWriter writer = new AptWriter ( configuration, new MojoConsole ( getLog () ) );
+    private static Compression toCompression ( final String name ) throws MojoExecutionException
+    {
         try
         {
-            writer.build ();
+            return Compression.valueOf ( name.trim ().toUpperCase ( Locale.ROOT ) );
         }
-        catch ( final Exception e )
+        catch ( final IllegalArgumentException e )
         {
-            throw new MojoExecutionException ( "Failed to create APT repository", e );
+            throw new MojoExecutionException ( "Unknown compression format: " + name, e );
         }
     }
 
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import de.dentrassi.build.apt.repo.RepositoryServer;
+
+/**
+ * Serve an APT repository over HTTP.
+ * <p>
+ * This serves the repository folder, until the build is interrupted. It can
+ * be used together with the <code>watch</code> goal in a separate build, to
+ * provide a continuously updated repository.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+@Mojo ( name = "serve", requiresProject = false, threadSafe = true )
+public class ServeMojo extends AbstractMojo
+{
+    /**
+     * The repository folder to serve
+     */
+    @Parameter ( required = true, defaultValue = "${project.build.directory}/apt" )
+    private File outputDirectory;
+
+    /**
+     * The host name or address to listen on
+     */
+    @Parameter ( defaultValue = "localhost" )
+    private String host;
+
+    /**
+     * The port to listen on
+     */
+    @Parameter ( defaultValue = "8080" )
+    private int port;
+
+    @Override
+    public void execute () throws MojoExecutionException, MojoFailureException
+    {
+        if ( !this.outputDirectory.isDirectory () )
+        {
+            throw new MojoExecutionException ( String.format ( "Repository folder %s does not exist", this.outputDirectory ) );
+        }
+
+        try ( final RepositoryServer server = new RepositoryServer ( this.outputDirectory, new InetSocketAddress ( this.host, this.port ), new MojoConsole ( getLog () ) ) )
+        {
+            server.start ();
+            server.join ();
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException ( "Failed to serve APT repository", e );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo.maven;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import de.dentrassi.build.apt.repo.AptWriter;
+import de.dentrassi.build.apt.repo.Configuration;
+import de.dentrassi.build.apt.repo.RepositoryWatcher;
+
+/**
+ * Create an APT repository and keep it up to date.
+ * <p>
+ * This takes the same parameters as the <code>apt</code> goal. After creating
+ * or updating the repository, it watches the source directory and publishes
+ * new, changed and deleted package files within seconds, until the build is
+ * interrupted.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+@Mojo ( name = "watch", requiresProject = false, threadSafe = false )
+public class WatchMojo extends RepositoryMojo
+{
+    /**
+     * The time in milliseconds without further changes, after which changes
+     * are published
+     */
+    @Parameter ( defaultValue = "1000" )
+    private long debounce;
+
+    @Override
+    public void execute () throws MojoExecutionException, MojoFailureException
+    {
+        final Configuration configuration = createConfiguration ();
+        // a repository of an earlier run is continued
+        configuration.setUpdate ( true );
+
+        try
+        {
+            RepositoryWatcher.validate ( configuration );
+        }
+        catch ( final IllegalStateException e )
+        {
+            throw new MojoFailureException ( e.getMessage (), e );
+        }
+
+        final AptWriter writer = new AptWriter ( configuration, new MojoConsole ( getLog () ) );
+        try
+        {
+            writer.build ();
+            new RepositoryWatcher ( writer, this.debounce ).run ();
+        }
+        catch ( final Exception e )
+        {
+            throw new MojoExecutionException ( "Failed to watch APT repository", e );
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the block wise GZIP compression
+ * 
+ * @author Jens Reimann
+ */
+public class BlockGzipOutputStreamTest
+{
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void startExecutor ()
+    {
+        executor = Executors.newFixedThreadPool ( 4 );
+    }
+
+    @AfterClass
+    public static void stopExecutor ()
+    {
+        executor.shutdownNow ();
+    }
+
+    /**
+     * Create data which looks like a package list, with random binary parts
+     */
+    private static byte[] createData ( final int size, final long seed )
+    {
+        final Random random = new Random ( seed );
+        final String[] words = { "Package: ", "Version: ", "Depends: ", "libc6 (>= 2.17)", "Filename: pool/main/", "\n", "SHA256: ", "Description: " };
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ( size + 64 );
+        while ( out.size () < size )
+        {
+            if ( random.nextInt ( 10 ) == 0 )
+            {
+                final byte[] noise = new byte[random.nextInt ( 200 )];
+                random.nextBytes ( noise );
+                out.write ( noise, 0, noise.length );
+            }
+            else
+            {
+                final byte[] word = words[random.nextInt ( words.length )].getBytes ( StandardCharsets.UTF_8 );
+                out.write ( word, 0, word.length );
+            }
+        }
+        return Arrays.copyOf ( out.toByteArray (), size );
+    }
+
+    /**
+     * Compress with writes of random size
+     */
+    private static byte[] compress ( final byte[] data, final ExecutorService executor, final int parallelism, final long seed ) throws IOException
+    {
+        final Random random = new Random ( seed );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        try ( BlockGzipOutputStream gz = new BlockGzipOutputStream ( out, -1, executor, parallelism ) )
+        {
+            int off = 0;
+            while ( off < data.length )
+            {
+                final int len = Math.min ( data.length - off, random.nextInt ( 100 * 1024 ) );
+                gz.write ( data, off, len );
+                off += len;
+            }
+        }
+        return out.toByteArray ();
+    }
+
+    private static byte[] decompress ( final byte[] data ) throws IOException
+    {
+        try ( InputStream in = new GZIPInputStream ( new ByteArrayInputStream ( data ) ) )
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+            final byte[] buffer = new byte[64 * 1024];
+            int rc;
+            while ( ( rc = in.read ( buffer ) ) > 0 )
+            {
+                out.write ( buffer, 0, rc );
+            }
+            return out.toByteArray ();
+        }
+    }
+
+    @Test
+    public void testRoundTrip () throws IOException
+    {
+        final byte[] data = createData ( 5 * 1024 * 1024 + 512 * 1024, 1 );
+
+        final byte[] sequential = compress ( data, null, 1, 2 );
+        assertArrayEquals ( data, decompress ( sequential ) );
+
+        // the output doesn't depend on the parallelism or the write sizes
+        assertArrayEquals ( sequential, compress ( data, executor, 4, 3 ) );
+        assertArrayEquals ( sequential, compress ( data, executor, 1, 4 ) );
+    }
+
+    @Test
+    public void testBlockBoundaries () throws IOException
+    {
+        final int block = BlockGzipOutputStream.BLOCK_SIZE;
+        for ( final int size : new int[] { 0, 1, block - 1, block, block + 1, 2 * block, 2 * block + 1 } )
+        {
+            final byte[] data = createData ( size, size );
+
+            final byte[] sequential = compress ( data, null, 1, size );
+            assertArrayEquals ( "Size " + size, data, decompress ( sequential ) );
+            assertArrayEquals ( "Size " + size, sequential, compress ( data, executor, 4, size + 1 ) );
+        }
+    }
+
+    @Test
+    public void testSingleByteWrites () throws IOException
+    {
+        final byte[] data = createData ( BlockGzipOutputStream.BLOCK_SIZE + 1000, 5 );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        try ( BlockGzipOutputStream gz = new BlockGzipOutputStream ( out, -1, executor, 4 ) )
+        {
+            for ( final byte b : data )
+            {
+                gz.write ( b );
+            }
+        }
+
+        assertArrayEquals ( data, decompress ( out.toByteArray () ) );
+        assertArrayEquals ( compress ( data, null, 1, 6 ), out.toByteArray () );
+    }
+
+    @Test
+    public void testSmallDataLikeGzipOutputStream () throws IOException
+    {
+        final byte[] data = createData ( 100 * 1024, 7 );
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream ();
+        try ( GZIPOutputStream gz = new GZIPOutputStream ( expected ) )
+        {
+            gz.write ( data );
+        }
+
+        // the operating system field of the header differs between Java versions
+        final byte[] expectedData = expected.toByteArray ();
+        final byte[] actual = compress ( data, null, 1, 8 );
+        assertArrayEquals ( Arrays.copyOfRange ( expectedData, 10, expectedData.length ), Arrays.copyOfRange ( actual, 10, actual.length ) );
+    }
+}
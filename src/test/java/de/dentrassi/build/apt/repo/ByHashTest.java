@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test storing index files by their checksum
+ * 
+ * @author Jens Reimann
+ */
+public class ByHashTest
+{
+    private static final String INDEX_DIR = "dists/devel/main/binary-amd64";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File source;
+
+    private File target;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+        this.target = new File ( this.folder.getRoot (), "repo" );
+    }
+
+    private void build () throws Exception
+    {
+        final Configuration configuration = TestPackages.createConfiguration ( this.source, this.target );
+        configuration.setArchitectures ( Collections.singleton ( "amd64" ) );
+        configuration.setChecksums ( EnumSet.of ( Checksum.SHA256 ) );
+        configuration.setUpdate ( true );
+        configuration.setByHash ( true );
+        configuration.setByHashGenerations ( 1 );
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+    }
+
+    private Path getPackages ()
+    {
+        return this.target.toPath ().resolve ( INDEX_DIR + "/Packages" );
+    }
+
+    /**
+     * Get the by-hash file of an index file
+     */
+    private Path getByHash ( final Path file ) throws Exception
+    {
+        final String sha256 = MultiDigest.toHex ( MessageDigest.getInstance ( "SHA-256" ).digest ( Files.readAllBytes ( file ) ) );
+        return this.target.toPath ().resolve ( INDEX_DIR + "/by-hash/SHA256/" + sha256 );
+    }
+
+    private Path getByHash () throws Exception
+    {
+        return getByHash ( getPackages () );
+    }
+
+    private static Object getFileKey ( final Path path ) throws Exception
+    {
+        return Files.readAttributes ( path, BasicFileAttributes.class ).fileKey ();
+    }
+
+    @Test
+    public void testPublish () throws Exception
+    {
+        build ();
+
+        final String release = new String ( Files.readAllBytes ( this.target.toPath ().resolve ( "dists/devel/Release" ) ), StandardCharsets.UTF_8 );
+        assertTrue ( release.contains ( "\nAcquire-By-Hash: yes\n" ) );
+
+        final Path byHash = getByHash ();
+        assertArrayEquals ( Files.readAllBytes ( getPackages () ), Files.readAllBytes ( byHash ) );
+
+        // stored as hard link
+        assertEquals ( getFileKey ( getPackages () ), getFileKey ( byHash ) );
+
+        // the compressed variant as well
+        assertTrue ( Files.isRegularFile ( getByHash ( getPackages ().resolveSibling ( "Packages.gz" ) ) ) );
+    }
+
+    @Test
+    public void testGenerations () throws Exception
+    {
+        build ();
+        final Path first = getByHash ();
+        final byte[] firstData = Files.readAllBytes ( first );
+
+        TestPackages.createPackage ( this.source, "package2", "1.0", "amd64", 2 );
+        build ();
+        final Path second = getByHash ();
+        assertNotEquals ( first, second );
+
+        // the previous generation is kept, and not changed by writing the new index file
+        assertArrayEquals ( firstData, Files.readAllBytes ( first ) );
+        assertNotEquals ( getFileKey ( getPackages () ), getFileKey ( first ) );
+
+        TestPackages.createPackage ( this.source, "package3", "1.0", "amd64", 3 );
+        build ();
+
+        // older generations are deleted
+        assertFalse ( Files.exists ( first ) );
+        assertTrue ( Files.exists ( second ) );
+        assertTrue ( Files.exists ( getByHash () ) );
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the configurable set of checksums
+ * 
+ * @author Jens Reimann
+ */
+public class ChecksumTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File source;
+
+    private File packageFile;
+
+    private File target;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.source = this.folder.newFolder ( "source" );
+        this.packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+        this.target = new File ( this.folder.getRoot (), "repo" );
+    }
+
+    private void build ( final Set<Checksum> checksums ) throws Exception
+    {
+        final Configuration configuration = TestPackages.createConfiguration ( this.source, this.target );
+        configuration.setArchitectures ( Collections.singleton ( "amd64" ) );
+        if ( checksums != null )
+        {
+            configuration.setChecksums ( checksums );
+        }
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+    }
+
+    private String read ( final String name ) throws Exception
+    {
+        return new String ( Files.readAllBytes ( new File ( this.target, name ).toPath () ), StandardCharsets.UTF_8 );
+    }
+
+    private String digest ( final Checksum checksum ) throws Exception
+    {
+        return MultiDigest.toHex ( MessageDigest.getInstance ( checksum.getAlgorithm () ).digest ( Files.readAllBytes ( this.packageFile.toPath () ) ) );
+    }
+
+    @Test
+    public void testToHex ()
+    {
+        final byte[] data = new byte[256];
+        final StringBuilder expected = new StringBuilder ();
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte)i;
+            expected.append ( String.format ( "%02x", i ) );
+        }
+
+        assertEquals ( expected.toString (), MultiDigest.toHex ( data ) );
+        assertEquals ( "", MultiDigest.toHex ( new byte[0] ) );
+    }
+
+    @Test
+    public void testDefault () throws Exception
+    {
+        build ( null );
+
+        final String packages = read ( "dists/devel/main/binary-amd64/Packages" );
+        assertTrue ( packages.contains ( "\nMD5sum: " + digest ( Checksum.MD5 ) + "\n" ) );
+        assertTrue ( packages.contains ( "\nSHA1: " + digest ( Checksum.SHA1 ) + "\n" ) );
+        assertTrue ( packages.contains ( "\nSHA256: " + digest ( Checksum.SHA256 ) + "\n" ) );
+        assertFalse ( packages.contains ( "\nSHA512: " ) );
+
+        final String release = read ( "dists/devel/Release" );
+        assertTrue ( release.contains ( "\nMD5Sum:" ) );
+        assertTrue ( release.contains ( "\nSHA1:" ) );
+        assertTrue ( release.contains ( "\nSHA256:" ) );
+        assertFalse ( release.contains ( "\nSHA512:" ) );
+    }
+
+    @Test
+    public void testSelected () throws Exception
+    {
+        build ( EnumSet.of ( Checksum.SHA256, Checksum.SHA512 ) );
+
+        final String packages = read ( "dists/devel/main/binary-amd64/Packages" );
+        assertFalse ( packages.contains ( "\nMD5sum: " ) );
+        assertFalse ( packages.contains ( "\nSHA1: " ) );
+        assertTrue ( packages.contains ( "\nSHA256: " + digest ( Checksum.SHA256 ) + "\n" ) );
+        assertTrue ( packages.contains ( "\nSHA512: " + digest ( Checksum.SHA512 ) + "\n" ) );
+
+        final String release = read ( "dists/devel/Release" );
+        assertFalse ( release.contains ( "\nMD5Sum:" ) );
+        assertFalse ( release.contains ( "\nSHA1:" ) );
+        assertTrue ( release.contains ( "\nSHA256:" ) );
+        assertTrue ( release.contains ( "\nSHA512:" ) );
+    }
+
+    @Test ( expected = IllegalStateException.class )
+    public void testNone () throws Exception
+    {
+        build ( EnumSet.noneOf ( Checksum.class ) );
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test storing package files once in a content addressed pool
+ * 
+ * @author Jens Reimann
+ */
+public class ContentPoolTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    /**
+     * Build a repository which publishes all packages in the components
+     * <code>main</code> and <code>extra</code>
+     */
+    private void build ( final File source, final File target ) throws Exception
+    {
+        final Configuration configuration = new Configuration ();
+        configuration.setSourceFolder ( source );
+        configuration.setTargetFolder ( target );
+        configuration.setUpdate ( true );
+        configuration.setContentAddressedPool ( true );
+
+        final Distribution dist = new Distribution ();
+        final Component main = new Component ();
+        dist.addComponent ( main );
+        final Component extra = new Component ();
+        extra.setName ( "extra" );
+        dist.addComponent ( extra );
+        configuration.addDistribution ( dist );
+
+        configuration.addRoute ( new Route ( dist.getName (), main.getName () ) );
+        configuration.addRoute ( new Route ( dist.getName (), extra.getName () ) );
+
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+    }
+
+    private static Object getFileKey ( final Path path ) throws Exception
+    {
+        return Files.readAttributes ( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).fileKey ();
+    }
+
+    private static List<Path> listStored ( final File target ) throws Exception
+    {
+        final List<Path> result = new ArrayList<Path> ();
+        for ( final String name : TestPackages.listFiles ( target.toPath () ) )
+        {
+            if ( name.startsWith ( "pool/" + ContentPool.FOLDER + "/" ) )
+            {
+                result.add ( target.toPath ().resolve ( name ) );
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testSharedContent () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( source, "package1", "1.0", "amd64", 1 );
+
+        final File target = new File ( this.folder.getRoot (), "repo" );
+        build ( source, target );
+
+        final Path main = target.toPath ().resolve ( "pool/main/p/package1/package1_1.0_amd64.deb" );
+        final Path extra = target.toPath ().resolve ( "pool/extra/p/package1/package1_1.0_amd64.deb" );
+
+        final List<Path> stored = listStored ( target );
+        assertEquals ( 1, stored.size () );
+
+        final Object fileKey = getFileKey ( stored.get ( 0 ) );
+        assertNotNull ( fileKey );
+        assertEquals ( fileKey, getFileKey ( main ) );
+        assertEquals ( fileKey, getFileKey ( extra ) );
+    }
+
+    @Test
+    public void testCleanup () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( source, "package1", "1.0", "amd64", 1 );
+
+        final File target = new File ( this.folder.getRoot (), "repo" );
+        build ( source, target );
+
+        final List<Path> stored = listStored ( target );
+        assertEquals ( 1, stored.size () );
+
+        // content no pool file refers to
+        final Path orphan = stored.get ( 0 ).getParent ().resolveSibling ( "00" ).resolve ( String.format ( "%064d", 0 ) );
+        Files.createDirectories ( orphan.getParent () );
+        Files.write ( orphan, new byte[] { 1, 2, 3 } );
+
+        build ( source, target );
+
+        assertTrue ( Files.isRegularFile ( stored.get ( 0 ) ) );
+        assertEquals ( getFileKey ( stored.get ( 0 ) ), getFileKey ( target.toPath ().resolve ( "pool/main/p/package1/package1_1.0_amd64.deb" ) ) );
+        assertFalse ( Files.exists ( orphan ) );
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Test the <code>ed</code> scripts, by applying them like APT does
+ * 
+ * @author Jens Reimann
+ */
+public class EdDiffTest
+{
+    private static final Pattern COMMAND = Pattern.compile ( "(\\d+)(?:,(\\d+))?([acd])" );
+
+    /**
+     * Apply an <code>ed</code> script
+     * <p>
+     * This supports the commands which <code>diff --ed</code> creates.
+     * </p>
+     * 
+     * @param lines
+     *            the lines to patch
+     * @param script
+     *            the script
+     * @return the patched lines
+     */
+    static List<String> apply ( final List<String> lines, final String script )
+    {
+        final List<String> result = new ArrayList<String> ( lines );
+        final List<String> commands = EdDiff.lines ( script );
+
+        int i = 0;
+        while ( i < commands.size () )
+        {
+            final Matcher m = COMMAND.matcher ( commands.get ( i++ ) );
+            if ( !m.matches () )
+            {
+                throw new IllegalArgumentException ( "Invalid command: " + commands.get ( i - 1 ) );
+            }
+
+            final int start = Integer.parseInt ( m.group ( 1 ) );
+            final int end = m.group ( 2 ) != null ? Integer.parseInt ( m.group ( 2 ) ) : start;
+            final char command = m.group ( 3 ).charAt ( 0 );
+
+            final List<String> text = new ArrayList<String> ();
+            if ( command != 'd' )
+            {
+                while ( !".".equals ( commands.get ( i ) ) )
+                {
+                    text.add ( commands.get ( i++ ) );
+                }
+                i++;
+            }
+
+            if ( command == 'a' )
+            {
+                result.addAll ( start, text );
+            }
+            else
+            {
+                result.subList ( start - 1, end ).clear ();
+                if ( command == 'c' )
+                {
+                    result.addAll ( start - 1, text );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static List<String> lines ( final String... lines )
+    {
+        return Arrays.asList ( lines );
+    }
+
+    private static void assertPatch ( final List<String> oldLines, final List<String> newLines )
+    {
+        final String script = EdDiff.diff ( oldLines, newLines, 1000 );
+        assertNotNull ( script );
+        assertEquals ( newLines, apply ( oldLines, script ) );
+    }
+
+    @Test
+    public void testLines ()
+    {
+        assertEquals ( Collections.emptyList (), EdDiff.lines ( "" ) );
+        assertEquals ( lines ( "a", "b" ), EdDiff.lines ( "a\nb\n" ) );
+        assertEquals ( lines ( "a", "b" ), EdDiff.lines ( "a\nb" ) );
+        assertEquals ( lines ( "a", "", "b" ), EdDiff.lines ( "a\n\nb\n" ) );
+        assertEquals ( lines ( "a", "" ), EdDiff.lines ( "a\n\n" ) );
+    }
+
+    @Test
+    public void testUnchanged ()
+    {
+        assertEquals ( "", EdDiff.diff ( lines ( "a", "b" ), lines ( "a", "b" ), 10 ) );
+        assertEquals ( "", EdDiff.diff ( lines (), lines (), 10 ) );
+    }
+
+    @Test
+    public void testInsert ()
+    {
+        assertEquals ( "2a\nc\n.\n", EdDiff.diff ( lines ( "a", "b" ), lines ( "a", "b", "c" ), 10 ) );
+        assertPatch ( lines ( "b", "c" ), lines ( "a", "b", "c" ) );
+        assertPatch ( lines ( "a", "c" ), lines ( "a", "b", "c" ) );
+        assertPatch ( lines ( "a", "d" ), lines ( "a", "b", "c", "d" ) );
+    }
+
+    @Test
+    public void testDelete ()
+    {
+        assertEquals ( "2d\n", EdDiff.diff ( lines ( "a", "b", "c" ), lines ( "a", "c" ), 10 ) );
+        assertEquals ( "2,3d\n", EdDiff.diff ( lines ( "a", "b", "c", "d" ), lines ( "a", "d" ), 10 ) );
+        assertPatch ( lines ( "a", "b", "c" ), lines ( "b", "c" ) );
+        assertPatch ( lines ( "a", "b", "c" ), lines ( "a", "b" ) );
+    }
+
+    @Test
+    public void testReplace ()
+    {
+        assertEquals ( "2c\nx\n.\n", EdDiff.diff ( lines ( "a", "b", "c" ), lines ( "a", "x", "c" ), 10 ) );
+        assertPatch ( lines ( "a", "b", "c", "d" ), lines ( "a", "x", "y", "z", "d" ) );
+        assertPatch ( lines ( "a", "b", "c", "d", "e" ), lines ( "x", "b", "y", "d", "z" ) );
+    }
+
+    @Test
+    public void testEmpty ()
+    {
+        assertEquals ( "0a\na\nb\n.\n", EdDiff.diff ( lines (), lines ( "a", "b" ), 10 ) );
+        assertEquals ( "1,2d\n", EdDiff.diff ( lines ( "a", "b" ), lines (), 10 ) );
+    }
+
+    @Test
+    public void testEmptyLines ()
+    {
+        // package lists separate stanzas by empty lines
+        assertPatch ( lines ( "a", "", "b", "" ), lines ( "a", "", "c", "", "b", "" ) );
+        assertPatch ( lines ( "a", "", "b", "" ), lines ( "b", "" ) );
+    }
+
+    @Test
+    public void testDotLine ()
+    {
+        assertNull ( EdDiff.diff ( lines ( "a" ), lines ( "a", "." ), 10 ) );
+    }
+
+    @Test
+    public void testMaxEdits ()
+    {
+        final List<String> oldLines = lines ( "a", "b", "c", "d" );
+        final List<String> newLines = lines ( "a", "w", "x", "d" );
+
+        // two deleted and two inserted lines
+        assertNull ( EdDiff.diff ( oldLines, newLines, 3 ) );
+        assertNotNull ( EdDiff.diff ( oldLines, newLines, 4 ) );
+    }
+
+    @Test
+    public void testRandom ()
+    {
+        final Random random = new Random ( 1 );
+        for ( int i = 0; i < 300; i++ )
+        {
+            final List<String> oldLines = new ArrayList<String> ();
+            for ( int j = random.nextInt ( 50 ); j > 0; j-- )
+            {
+                oldLines.add ( "line" + random.nextInt ( 10 ) );
+            }
+
+            final List<String> newLines = new ArrayList<String> ( oldLines );
+            for ( int j = random.nextInt ( 10 ); j > 0; j-- )
+            {
+                final int pos = newLines.isEmpty () ? 0 : random.nextInt ( newLines.size () );
+                switch ( random.nextInt ( 3 ) )
+                {
+                    case 0:
+                        newLines.add ( pos, "new" + random.nextInt ( 10 ) );
+                        break;
+                    case 1:
+                        if ( !newLines.isEmpty () )
+                        {
+                            newLines.remove ( pos );
+                        }
+                        break;
+                    default:
+                        if ( !newLines.isEmpty () )
+                        {
+                            newLines.set ( pos, "changed" + random.nextInt ( 10 ) );
+                        }
+                        break;
+                }
+            }
+
+            assertPatch ( oldLines, newLines );
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the cache of package stanzas
+ * 
+ * @author Jens Reimann
+ */
+public class PackageCacheTest
+{
+    private static final String STANZA = "Package: package1\nVersion: 1.0\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File source;
+
+    private File cacheFile;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.source = this.folder.newFolder ( "source" );
+        this.cacheFile = new File ( this.folder.getRoot (), "cache/packages" );
+    }
+
+    private PackageCache load ()
+    {
+        final PackageCache cache = new PackageCache ( this.cacheFile, true, TestPackages.QUIET );
+        cache.load ();
+        return cache;
+    }
+
+    @Test
+    public void testStoreAndLoad () throws Exception
+    {
+        final File packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        final PackageCache cache = load ();
+        assertNull ( cache.get ( packageFile ) );
+        cache.put ( packageFile, STANZA );
+        cache.store ( this.source );
+
+        assertEquals ( STANZA, load ().get ( packageFile ) );
+
+        // no temporary files are left next to the cache file
+        assertEquals ( Arrays.asList ( "packages" ), Arrays.asList ( this.cacheFile.getParentFile ().list () ) );
+    }
+
+    @Test
+    public void testChangedFile () throws Exception
+    {
+        final File packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        final PackageCache cache = load ();
+        cache.put ( packageFile, STANZA );
+        cache.store ( this.source );
+
+        Files.setLastModifiedTime ( packageFile.toPath (), FileTime.fromMillis ( packageFile.lastModified () + 2000 ) );
+
+        assertNull ( load ().get ( packageFile ) );
+    }
+
+    @Test
+    public void testRemovedFile () throws Exception
+    {
+        final File packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        final PackageCache cache = load ();
+        cache.put ( packageFile, STANZA );
+        cache.store ( this.source );
+
+        Files.delete ( packageFile.toPath () );
+        load ().store ( this.source );
+
+        final String content = new String ( Files.readAllBytes ( this.cacheFile.toPath () ), StandardCharsets.UTF_8 );
+        assertFalse ( content.contains ( packageFile.getAbsolutePath () ) );
+    }
+
+    @Test
+    public void testSharedCache () throws Exception
+    {
+        final File other = this.folder.newFolder ( "other" );
+        final File otherFile = TestPackages.createPackage ( other, "package2", "1.0", "amd64", 2 );
+
+        PackageCache cache = load ();
+        cache.put ( otherFile, STANZA );
+        cache.store ( other );
+
+        // a build of another source folder keeps the entries
+        final File packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+        cache = load ();
+        cache.put ( packageFile, STANZA );
+        cache.store ( this.source );
+
+        cache = load ();
+        assertEquals ( STANZA, cache.get ( otherFile ) );
+        assertEquals ( STANZA, cache.get ( packageFile ) );
+    }
+
+    @Test
+    public void testUnknownFormat () throws Exception
+    {
+        final File packageFile = TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        this.cacheFile.getParentFile ().mkdirs ();
+        Files.write ( this.cacheFile.toPath (), ( "# other cache\n@ 1 2 - " + packageFile.getAbsolutePath () + "\n" + STANZA + "\n" ).getBytes ( StandardCharsets.UTF_8 ) );
+
+        assertNull ( load ().get ( packageFile ) );
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the patch history of package lists
+ * 
+ * @author Jens Reimann
+ */
+public class PackagesDiffTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File listDir;
+
+    private File diffDir;
+
+    private PackagesDiff diff;
+
+    private final List<Digester> digesters = Collections.singletonList ( Checksum.SHA256.createReleaseDigester () );
+
+    @Before
+    public void setup () throws IOException
+    {
+        this.listDir = this.folder.newFolder ( "binary-amd64" );
+        this.diffDir = new File ( this.listDir, "Packages.diff" );
+
+        final Configuration configuration = new Configuration ();
+        configuration.setPdiff ( true );
+        configuration.setPdiffHistory ( 3 );
+
+        this.diff = new PackagesDiff ( this.listDir, "main/binary-amd64/", this.digesters, configuration, TestPackages.QUIET );
+    }
+
+    /**
+     * Create a package list with the given packages
+     */
+    private static byte[] packages ( final String... names )
+    {
+        final StringBuilder sb = new StringBuilder ();
+        for ( final String name : names )
+        {
+            sb.append ( "Package: " ).append ( name ).append ( '\n' );
+            sb.append ( "Version: 1.0" ).append ( '\n' );
+            sb.append ( "Filename: pool/main/" ).append ( name.charAt ( 0 ) ).append ( '/' ).append ( name ).append ( '/' ).append ( name ).append ( "_1.0_all.deb" ).append ( '\n' );
+            sb.append ( '\n' );
+        }
+        return sb.toString ().getBytes ( StandardCharsets.UTF_8 );
+    }
+
+    private String sha256 ( final byte[] data )
+    {
+        final MultiDigest digest = new MultiDigest ( this.digesters );
+        digest.write ( data, 0, data.length );
+        return digest.getResult ().get ( "SHA256" );
+    }
+
+    private String readIndex () throws IOException
+    {
+        return new String ( Files.readAllBytes ( new File ( this.diffDir, "Index" ).toPath () ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Get the patch names listed in a section of the index
+     */
+    private List<String> listed ( final String field ) throws IOException
+    {
+        final List<String> result = new ArrayList<String> ();
+
+        boolean inField = false;
+        for ( final String line : EdDiff.lines ( readIndex () ) )
+        {
+            if ( !line.startsWith ( " " ) )
+            {
+                inField = line.equals ( field + ":" );
+            }
+            else if ( inField )
+            {
+                final String[] toks = line.trim ().split ( "\\s+" );
+                result.add ( toks[2] );
+            }
+        }
+
+        return result;
+    }
+
+    private byte[] applyPatch ( final byte[] data, final String name ) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        try ( InputStream in = new GZIPInputStream ( Files.newInputStream ( new File ( this.diffDir, name + ".gz" ).toPath () ) ) )
+        {
+            final byte[] buffer = new byte[4096];
+            int rc;
+            while ( ( rc = in.read ( buffer ) ) > 0 )
+            {
+                out.write ( buffer, 0, rc );
+            }
+        }
+
+        final List<String> lines = EdDiffTest.apply ( EdDiff.lines ( new String ( data, StandardCharsets.UTF_8 ) ), new String ( out.toByteArray (), StandardCharsets.UTF_8 ) );
+
+        final StringBuilder sb = new StringBuilder ();
+        for ( final String line : lines )
+        {
+            sb.append ( line ).append ( '\n' );
+        }
+        return sb.toString ().getBytes ( StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void testSinglePatch () throws IOException
+    {
+        final byte[] v0 = packages ( "alpha", "gamma" );
+        final byte[] v1 = packages ( "alpha", "beta", "gamma" );
+
+        final FileInformation info = this.diff.update ( v0, v1, "2014-01-01-0000.00" );
+        assertNotNull ( info );
+        assertEquals ( "main/binary-amd64/Packages.diff/Index", info.getName () );
+
+        assertArrayEquals ( v1, applyPatch ( v0, "2014-01-01-0000.00" ) );
+
+        final String index = readIndex ();
+        assertTrue ( index, index.startsWith ( "SHA256-Current: " + sha256 ( v1 ) + " " + v1.length + "\n" ) );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.00" ), listed ( "SHA256-History" ) );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.00.gz" ), listed ( "SHA256-Download" ) );
+        assertTrue ( index.contains ( " " + sha256 ( v0 ) + " " ) );
+    }
+
+    @Test
+    public void testUnchanged () throws IOException
+    {
+        final byte[] v0 = packages ( "alpha" );
+        assertNull ( this.diff.update ( v0, v0, "2014-01-01-0000.00" ) );
+        assertFalse ( new File ( this.diffDir, "Index" ).exists () );
+    }
+
+    @Test
+    public void testChainAndHistory () throws IOException
+    {
+        final byte[][] versions = {
+                packages ( "alpha" ),
+                packages ( "alpha", "beta" ),
+                packages ( "beta" ),
+                packages ( "beta", "delta" ),
+                packages ( "alpha", "beta", "delta" )
+        };
+
+        for ( int i = 1; i < versions.length; i++ )
+        {
+            assertNotNull ( this.diff.update ( versions[i - 1], versions[i], "2014-01-01-0000.0" + i ) );
+        }
+
+        // the history is limited to three patches
+
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.02", "2014-01-01-0000.03", "2014-01-01-0000.04" ), listed ( "SHA256-History" ) );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.02", "2014-01-01-0000.03", "2014-01-01-0000.04" ), listed ( "SHA256-Patches" ) );
+        assertFalse ( new File ( this.diffDir, "2014-01-01-0000.01.gz" ).exists () );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.02.gz", "2014-01-01-0000.03.gz", "2014-01-01-0000.04.gz", "Index" ), TestPackages.listFiles ( this.diffDir.toPath () ) );
+
+        // each history entry is the list the patch applies to
+
+        final Matcher m = Pattern.compile ( "SHA256-History:\n ([0-9a-f]+) " ).matcher ( readIndex () );
+        assertTrue ( m.find () );
+        assertEquals ( sha256 ( versions[1] ), m.group ( 1 ) );
+
+        // chained patches create the current list
+
+        byte[] data = versions[1];
+        for ( final String name : listed ( "SHA256-History" ) )
+        {
+            data = applyPatch ( data, name );
+        }
+        assertArrayEquals ( versions[4], data );
+    }
+
+    @Test
+    public void testSamePatchName () throws IOException
+    {
+        assertNotNull ( this.diff.update ( packages ( "alpha" ), packages ( "beta" ), "2014-01-01-0000.00" ) );
+        assertNotNull ( this.diff.update ( packages ( "beta" ), packages ( "gamma" ), "2014-01-01-0000.00" ) );
+
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.00", "2014-01-01-0000.00.1" ), listed ( "SHA256-History" ) );
+    }
+
+    @Test
+    public void testTooManyEdits () throws IOException
+    {
+        assertNotNull ( this.diff.update ( packages ( "alpha" ), packages ( "beta" ), "2014-01-01-0000.00" ) );
+
+        final String[] names = new String[1000];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            names[i] = "package" + i;
+        }
+
+        // the history is dropped
+
+        assertNull ( this.diff.update ( packages ( "beta" ), packages ( names ), "2014-01-01-0000.01" ) );
+        assertEquals ( Collections.emptyList (), TestPackages.listFiles ( this.diffDir.toPath () ) );
+
+        // and starts over with the next update
+
+        final String[] more = Arrays.copyOf ( names, names.length + 1 );
+        more[names.length] = "alpha";
+        assertNotNull ( this.diff.update ( packages ( names ), packages ( more ), "2014-01-01-0000.02" ) );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.02" ), listed ( "SHA256-History" ) );
+    }
+
+    @Test
+    public void testIndexMismatch () throws IOException
+    {
+        assertNotNull ( this.diff.update ( packages ( "alpha" ), packages ( "beta" ), "2014-01-01-0000.00" ) );
+
+        // the previous list is not the one of the index
+
+        assertNotNull ( this.diff.update ( packages ( "gamma" ), packages ( "delta" ), "2014-01-01-0000.01" ) );
+        assertEquals ( Arrays.asList ( "2014-01-01-0000.01" ), listed ( "SHA256-History" ) );
+        assertFalse ( new File ( this.diffDir, "2014-01-01-0000.00.gz" ).exists () );
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.util.EnumSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test that building with several threads creates the same repository as
+ * building with a single thread
+ * 
+ * @author Jens Reimann
+ */
+public class ParallelBuildTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File createSources () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+
+        final String[] architectures = { "all", "amd64", "i386" };
+        for ( int i = 0; i < 30; i++ )
+        {
+            TestPackages.createPackage ( source, String.format ( "package%02d", i ), "1.0." + i % 3, architectures[i % architectures.length], i );
+        }
+
+        return source;
+    }
+
+    private File build ( final File source, final String name, final int threads, final boolean contents ) throws Exception
+    {
+        final File target = new File ( this.folder.getRoot (), name );
+
+        final Configuration configuration = TestPackages.createConfiguration ( source, target );
+        configuration.setThreads ( threads );
+        configuration.setCompressions ( EnumSet.of ( Compression.GZIP, Compression.XZ ) );
+        configuration.setContents ( contents );
+
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+
+        return target;
+    }
+
+    @Test
+    public void testSameOutput () throws Exception
+    {
+        final File source = createSources ();
+
+        final File sequential = build ( source, "sequential", 1, false );
+        RepositoryAssert.assertSameTree ( sequential, build ( source, "parallel", 4, false ) );
+    }
+
+    @Test
+    public void testSameOutputWithContents () throws Exception
+    {
+        final File source = createSources ();
+
+        final File sequential = build ( source, "sequential", 1, true );
+        RepositoryAssert.assertSameTree ( sequential, build ( source, "parallel", 4, true ) );
+    }
+}
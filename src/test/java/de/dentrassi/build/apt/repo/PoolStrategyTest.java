@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.vafer.jdeb.Console;
+
+/**
+ * Test putting package files into the pool with the different strategies
+ * 
+ * @author Jens Reimann
+ */
+public class PoolStrategyTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private Path source;
+
+    private byte[] data;
+
+    private final List<String> warnings = new ArrayList<String> ();
+
+    private final Console console = new Console () {
+
+        @Override
+        public void debug ( final String message )
+        {
+        }
+
+        @Override
+        public void info ( final String message )
+        {
+        }
+
+        @Override
+        public void warn ( final String message )
+        {
+            PoolStrategyTest.this.warnings.add ( message );
+        }
+    };
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.data = new byte[64 * 1024 + 17];
+        new Random ( 1 ).nextBytes ( this.data );
+
+        this.source = this.folder.newFile ( "source.deb" ).toPath ();
+        Files.write ( this.source, this.data );
+        Files.setLastModifiedTime ( this.source, FileTime.fromMillis ( 1_000_000_000_000L ) );
+    }
+
+    private Path populate ( final PoolStrategy strategy, final AtomicBoolean fallbackReported ) throws Exception
+    {
+        final Path target = this.folder.getRoot ().toPath ().resolve ( "pool-" + strategy + ".deb" );
+        strategy.populate ( this.source, target, this.console, fallbackReported );
+        assertArrayEquals ( this.data, Files.readAllBytes ( target ) );
+        return target;
+    }
+
+    private static Object getFileKey ( final Path path ) throws Exception
+    {
+        return Files.readAttributes ( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).fileKey ();
+    }
+
+    @Test
+    public void testCopy () throws Exception
+    {
+        final Path target = populate ( PoolStrategy.COPY, new AtomicBoolean () );
+        assertNotEquals ( getFileKey ( this.source ), getFileKey ( target ) );
+        assertEquals ( Files.getLastModifiedTime ( this.source ), Files.getLastModifiedTime ( target ) );
+    }
+
+    @Test
+    public void testTransfer () throws Exception
+    {
+        final Path target = populate ( PoolStrategy.TRANSFER, new AtomicBoolean () );
+        assertNotEquals ( getFileKey ( this.source ), getFileKey ( target ) );
+        assertEquals ( Files.getLastModifiedTime ( this.source ), Files.getLastModifiedTime ( target ) );
+    }
+
+    @Test
+    public void testHardlink () throws Exception
+    {
+        final Path target = populate ( PoolStrategy.HARDLINK, new AtomicBoolean () );
+        assertEquals ( getFileKey ( this.source ), getFileKey ( target ) );
+        assertTrue ( this.warnings.isEmpty () );
+    }
+
+    @Test
+    public void testSymlink () throws Exception
+    {
+        final Path target = populate ( PoolStrategy.SYMLINK, new AtomicBoolean () );
+        assertTrue ( Files.isSymbolicLink ( target ) );
+        assertEquals ( this.source.toAbsolutePath (), Files.readSymbolicLink ( target ) );
+    }
+
+    @Test
+    public void testReplaceExisting () throws Exception
+    {
+        for ( final PoolStrategy strategy : PoolStrategy.values () )
+        {
+            final Path target = this.folder.getRoot ().toPath ().resolve ( "pool-" + strategy + ".deb" );
+            Files.write ( target, new byte[] { 1, 2, 3 } );
+            populate ( strategy, new AtomicBoolean () );
+        }
+    }
+
+    /**
+     * A reflink either succeeds or falls back to a copy, which is reported
+     * once per build
+     */
+    @Test
+    public void testReflinkFallback () throws Exception
+    {
+        final AtomicBoolean fallbackReported = new AtomicBoolean ();
+
+        final Path target = populate ( PoolStrategy.REFLINK, fallbackReported );
+        assertFalse ( Files.isSymbolicLink ( target ) );
+        populate ( PoolStrategy.REFLINK, fallbackReported );
+
+        assertEquals ( fallbackReported.get () ? 1 : 0, this.warnings.size () );
+
+        // the next build reports again
+        populate ( PoolStrategy.REFLINK, new AtomicBoolean () );
+        assertEquals ( fallbackReported.get () ? 2 : 0, this.warnings.size () );
+    }
+}
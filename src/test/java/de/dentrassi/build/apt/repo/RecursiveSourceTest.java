@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test package files with the same name in different directories of a
+ * recursively scanned source folder
+ * 
+ * @author Jens Reimann
+ */
+public class RecursiveSourceTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File build ( final File source, final String name, final int threads, final boolean update ) throws Exception
+    {
+        final File target = new File ( this.folder.getRoot (), name );
+
+        final Configuration configuration = TestPackages.createConfiguration ( source, target );
+        configuration.setRecursive ( true );
+        configuration.setThreads ( threads );
+        configuration.setUpdate ( update );
+
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+
+        return target;
+    }
+
+    private static List<String> listPackageFiles ( final File target ) throws Exception
+    {
+        final List<String> result = new ArrayList<String> ();
+        for ( final String name : TestPackages.listFiles ( target.toPath () ) )
+        {
+            if ( name.startsWith ( "pool/" ) && name.endsWith ( ".deb" ) )
+            {
+                result.add ( name );
+            }
+        }
+        return result;
+    }
+
+    private static int countPackages ( final File target ) throws Exception
+    {
+        int result = 0;
+        for ( final String name : TestPackages.listFiles ( target.toPath () ) )
+        {
+            if ( name.endsWith ( "/Packages" ) )
+            {
+                for ( final String line : Files.readAllLines ( target.toPath ().resolve ( name ), StandardCharsets.UTF_8 ) )
+                {
+                    if ( line.startsWith ( "Package: " ) )
+                    {
+                        result++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testDifferentContent () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( new File ( source, "a" ), "package", "1.0", "amd64", 1 );
+        TestPackages.createPackage ( new File ( source, "b" ), "package", "1.0", "amd64", 2 );
+
+        for ( final int threads : new int[] { 1, 4 } )
+        {
+            try
+            {
+                build ( source, "target" + threads, threads, false );
+                fail ( "Build must fail for different package files with the same pool file" );
+            }
+            catch ( final IllegalStateException e )
+            {
+                assertTrue ( e.getMessage (), e.getMessage ().contains ( "differ" ) );
+            }
+        }
+    }
+
+    @Test
+    public void testSameContent () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( new File ( source, "a" ), "package", "1.0", "amd64", 1 );
+        TestPackages.createPackage ( new File ( source, "b" ), "package", "1.0", "amd64", 1 );
+        TestPackages.createPackage ( new File ( source, "b" ), "other", "1.0", "amd64", 2 );
+
+        final File sequential = build ( source, "sequential", 1, false );
+        assertEquals ( 2, listPackageFiles ( sequential ).size () );
+        assertEquals ( 2, countPackages ( sequential ) );
+
+        RepositoryAssert.assertSameTree ( sequential, build ( source, "parallel", 4, false ) );
+    }
+
+    @Test
+    public void testUpdateSameName () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        final File first = TestPackages.createPackage ( new File ( source, "a" ), "package", "1.0", "amd64", 1 );
+
+        final File target = build ( source, "target", 1, true );
+
+        // same name, size and timestamp, but different content
+        File second = null;
+        for ( int i = 1; i <= 50 && ( second == null || second.length () != first.length () ); i++ )
+        {
+            second = TestPackages.createPackage ( new File ( source, "b" ), "package", "1.0", "amd64", 1 + i * 4096 );
+        }
+        assumeTrue ( first.length () == second.length () );
+        second.setLastModified ( first.lastModified () );
+        Files.delete ( first.toPath () );
+
+        build ( source, "target", 1, true );
+
+        final List<String> packageFiles = listPackageFiles ( target );
+        assertEquals ( 1, packageFiles.size () );
+        assertEquals ( 1, countPackages ( target ) );
+        assertArrayEquals ( Files.readAllBytes ( second.toPath () ), Files.readAllBytes ( target.toPath ().resolve ( packageFiles.get ( 0 ) ) ) );
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Assertions on repositories
+ * 
+ * @author Jens Reimann
+ */
+final class RepositoryAssert
+{
+    private RepositoryAssert ()
+    {
+    }
+
+    /**
+     * Assert that two repositories are the same
+     * <p>
+     * Both trees must contain the same files with the same content. The
+     * <code>Date</code> field of the release files is ignored.
+     * </p>
+     */
+    static void assertSameTree ( final File expected, final File actual ) throws IOException
+    {
+        final List<String> expectedFiles = TestPackages.listFiles ( expected.toPath () );
+        assertEquals ( expectedFiles, TestPackages.listFiles ( actual.toPath () ) );
+
+        for ( final String name : expectedFiles )
+        {
+            final byte[] expectedData = Files.readAllBytes ( expected.toPath ().resolve ( name ) );
+            final byte[] actualData = Files.readAllBytes ( actual.toPath ().resolve ( name ) );
+
+            if ( name.endsWith ( "Release" ) )
+            {
+                assertEquals ( name, withoutDate ( expectedData ), withoutDate ( actualData ) );
+            }
+            else
+            {
+                assertArrayEquals ( name, expectedData, actualData );
+            }
+        }
+    }
+
+    private static String withoutDate ( final byte[] data )
+    {
+        return new String ( data, StandardCharsets.UTF_8 ).replaceAll ( "(?m)^Date: .*$", "" );
+    }
+}
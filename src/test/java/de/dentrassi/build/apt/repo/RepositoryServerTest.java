@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the repository server with plain HTTP requests
+ * 
+ * @author Jens Reimann
+ */
+public class RepositoryServerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File target;
+
+    private RepositoryServer server;
+
+    private String packageFile;
+
+    private String packagesFile;
+
+    private static final class Response
+    {
+        private int status;
+
+        private final Map<String, String> headers = new HashMap<String, String> ();
+
+        private byte[] body;
+    }
+
+    @Before
+    public void setup () throws Exception
+    {
+        final File source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( source, "package1", "1.0", "amd64", 1 );
+        TestPackages.createPackage ( source, "package2", "1.0", "amd64", 2 );
+
+        this.target = new File ( this.folder.getRoot (), "repo" );
+        new AptWriter ( TestPackages.createConfiguration ( source, this.target ), TestPackages.QUIET ).build ();
+
+        for ( final String name : TestPackages.listFiles ( this.target.toPath () ) )
+        {
+            if ( name.endsWith ( ".deb" ) )
+            {
+                this.packageFile = name;
+            }
+            else if ( name.endsWith ( "/Packages" ) )
+            {
+                this.packagesFile = name;
+            }
+        }
+        assertNotNull ( this.packageFile );
+        assertNotNull ( this.packagesFile );
+
+        Files.write ( new File ( this.folder.getRoot (), "secret.txt" ).toPath (), "secret".getBytes ( StandardCharsets.UTF_8 ) );
+
+        this.server = new RepositoryServer ( this.target, new InetSocketAddress ( InetAddress.getLoopbackAddress (), 0 ), TestPackages.QUIET );
+        this.server.start ();
+    }
+
+    @After
+    public void cleanup () throws Exception
+    {
+        this.server.close ();
+    }
+
+    private Response request ( final String method, final String path, final String... headers ) throws Exception
+    {
+        final StringBuilder sb = new StringBuilder ();
+        sb.append ( method ).append ( ' ' ).append ( path ).append ( " HTTP/1.1\r\n" );
+        sb.append ( "Host: localhost\r\n" );
+        sb.append ( "Connection: close\r\n" );
+        for ( final String header : headers )
+        {
+            sb.append ( header ).append ( "\r\n" );
+        }
+        sb.append ( "\r\n" );
+        return send ( sb.toString () );
+    }
+
+    private Response send ( final String request ) throws Exception
+    {
+        try ( Socket socket = new Socket ( InetAddress.getLoopbackAddress (), this.server.getPort () ) )
+        {
+            socket.setSoTimeout ( 10_000 );
+
+            final OutputStream out = socket.getOutputStream ();
+            out.write ( request.getBytes ( StandardCharsets.ISO_8859_1 ) );
+            out.flush ();
+
+            final ByteArrayOutputStream data = new ByteArrayOutputStream ();
+            final InputStream in = socket.getInputStream ();
+            final byte[] buffer = new byte[4096];
+            int rc;
+            while ( ( rc = in.read ( buffer ) ) > 0 )
+            {
+                data.write ( buffer, 0, rc );
+            }
+
+            return parse ( data.toByteArray () );
+        }
+    }
+
+    private static Response parse ( final byte[] data )
+    {
+        final String text = new String ( data, StandardCharsets.ISO_8859_1 );
+        final int end = text.indexOf ( "\r\n\r\n" );
+
+        final String[] lines = text.substring ( 0, end ).split ( "\r\n" );
+
+        final Response response = new Response ();
+        response.status = Integer.parseInt ( lines[0].split ( " " )[1] );
+        for ( int i = 1; i < lines.length; i++ )
+        {
+            final int idx = lines[i].indexOf ( ':' );
+            response.headers.put ( lines[i].substring ( 0, idx ), lines[i].substring ( idx + 1 ).trim () );
+        }
+        response.body = Arrays.copyOfRange ( data, end + 4, data.length );
+
+        return response;
+    }
+
+    private byte[] read ( final String name ) throws Exception
+    {
+        return Files.readAllBytes ( this.target.toPath ().resolve ( name ) );
+    }
+
+    @Test
+    public void testGet () throws Exception
+    {
+        final Response response = request ( "GET", "/" + this.packageFile );
+
+        assertEquals ( 200, response.status );
+        assertEquals ( "application/vnd.debian.binary-package", response.headers.get ( "Content-Type" ) );
+        assertArrayEquals ( read ( this.packageFile ), response.body );
+    }
+
+    @Test
+    public void testHead () throws Exception
+    {
+        final Response response = request ( "HEAD", "/" + this.packageFile );
+
+        assertEquals ( 200, response.status );
+        assertEquals ( Long.toString ( read ( this.packageFile ).length ), response.headers.get ( "Content-Length" ) );
+        assertEquals ( 0, response.body.length );
+    }
+
+    @Test
+    public void testNotFound () throws Exception
+    {
+        assertEquals ( 404, request ( "GET", "/pool/missing.deb" ).status );
+    }
+
+    @Test
+    public void testRange () throws Exception
+    {
+        final byte[] data = read ( this.packageFile );
+
+        final Response response = request ( "GET", "/" + this.packageFile, "Range: bytes=10-19" );
+        assertEquals ( 206, response.status );
+        assertEquals ( "bytes 10-19/" + data.length, response.headers.get ( "Content-Range" ) );
+        assertArrayEquals ( Arrays.copyOfRange ( data, 10, 20 ), response.body );
+
+        final Response suffix = request ( "GET", "/" + this.packageFile, "Range: bytes=-5" );
+        assertEquals ( 206, suffix.status );
+        assertArrayEquals ( Arrays.copyOfRange ( data, data.length - 5, data.length ), suffix.body );
+    }
+
+    @Test
+    public void testRangeNotSatisfiable () throws Exception
+    {
+        final int size = read ( this.packageFile ).length;
+
+        final Response response = request ( "GET", "/" + this.packageFile, "Range: bytes=" + size + "-" );
+        assertEquals ( 416, response.status );
+        assertEquals ( "bytes */" + size, response.headers.get ( "Content-Range" ) );
+    }
+
+    @Test
+    public void testMethodNotAllowed () throws Exception
+    {
+        final Response response = request ( "POST", "/" + this.packageFile );
+        assertEquals ( 405, response.status );
+        assertEquals ( "GET, HEAD", response.headers.get ( "Allow" ) );
+    }
+
+    @Test
+    public void testBadRequest () throws Exception
+    {
+        assertEquals ( 400, send ( "GARBAGE\r\n\r\n" ).status );
+        assertEquals ( 400, send ( "GET /a b HTTP/1.1\r\n\r\n" ).status );
+
+        final char[] value = new char[32 * 1024];
+        Arrays.fill ( value, 'a' );
+        assertEquals ( 400, send ( "GET / HTTP/1.1\r\nX-Large: " + new String ( value ) + "\r\n\r\n" ).status );
+        assertEquals ( 400, send ( "GET /" + new String ( value ) + " HTTP/1.1\r\n\r\n" ).status );
+    }
+
+    @Test
+    public void testNotModified () throws Exception
+    {
+        final Response response = request ( "GET", "/" + this.packagesFile );
+        assertEquals ( 200, response.status );
+
+        final String etag = response.headers.get ( "ETag" );
+        assertNotNull ( etag );
+        assertFalse ( "Entity tag of a package list must be strong", etag.startsWith ( "W/" ) );
+
+        final Response notModified = request ( "GET", "/" + this.packagesFile, "If-None-Match: " + etag );
+        assertEquals ( 304, notModified.status );
+        assertEquals ( 0, notModified.body.length );
+
+        assertEquals ( 200, request ( "GET", "/" + this.packagesFile, "If-None-Match: \"other\"" ).status );
+    }
+
+    @Test
+    public void testChangedRepository () throws Exception
+    {
+        final String etag = request ( "GET", "/" + this.packagesFile ).headers.get ( "ETag" );
+
+        final File source = new File ( this.folder.getRoot (), "source" );
+        TestPackages.createPackage ( source, "package3", "1.0", "amd64", 3 );
+        final Configuration configuration = TestPackages.createConfiguration ( source, this.target );
+        configuration.setUpdate ( true );
+        new AptWriter ( configuration, TestPackages.QUIET ).build ();
+
+        // the checksums are loaded again from the new release file
+        final Response response = request ( "GET", "/" + this.packagesFile, "If-None-Match: " + etag );
+        assertEquals ( 200, response.status );
+        assertArrayEquals ( read ( this.packagesFile ), response.body );
+        assertFalse ( response.headers.get ( "ETag" ).startsWith ( "W/" ) );
+        assertNotEquals ( etag, response.headers.get ( "ETag" ) );
+    }
+
+    @Test
+    public void testTraversal () throws Exception
+    {
+        assertEquals ( 404, request ( "GET", "/../secret.txt" ).status );
+        assertEquals ( 404, request ( "GET", "/dists/../../secret.txt" ).status );
+        assertEquals ( 404, request ( "GET", "/%2e%2e/secret.txt" ).status );
+        assertEquals ( 404, request ( "GET", "/dists/..%2f..%2fsecret.txt" ).status );
+    }
+
+    @Test
+    public void testInternalFiles () throws Exception
+    {
+        final File byHash = new File ( this.target, "dists/devel/main/binary-amd64/by-hash" );
+        byHash.mkdirs ();
+        Files.write ( new File ( byHash, "generations" ).toPath (), "internal".getBytes ( StandardCharsets.UTF_8 ) );
+        Files.write ( new File ( byHash, "generations-amd64" ).toPath (), "internal".getBytes ( StandardCharsets.UTF_8 ) );
+        Files.write ( new File ( this.target, ".sources" ).toPath (), "internal".getBytes ( StandardCharsets.UTF_8 ) );
+
+        assertEquals ( 404, request ( "GET", "/.sources" ).status );
+        assertEquals ( 404, request ( "GET", "/pool/../.sources" ).status );
+        assertEquals ( 404, request ( "GET", "/%2esources" ).status );
+        assertEquals ( 404, request ( "GET", "/pool/.sha256/" ).status );
+        assertEquals ( 404, request ( "GET", "/dists/devel/main/binary-amd64/by-hash/generations" ).status );
+        assertEquals ( 404, request ( "GET", "/dists/devel/main/binary-amd64/by-hash/generations-amd64" ).status );
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test publishing added, changed and removed package files in watch mode
+ * 
+ * @author Jens Reimann
+ */
+public class RepositoryWatcherTest
+{
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis ( 30 );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File source;
+
+    private File target;
+
+    private Thread thread;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        this.target = new File ( this.folder.getRoot (), "repo" );
+
+        final Configuration configuration = TestPackages.createConfiguration ( this.source, this.target );
+        configuration.setUpdate ( true );
+
+        final AptWriter writer = new AptWriter ( configuration, TestPackages.QUIET );
+        writer.build ();
+
+        final RepositoryWatcher watcher = new RepositoryWatcher ( writer, 100 );
+        this.thread = new Thread ( () -> {
+            try
+            {
+                watcher.run ();
+            }
+            catch ( final Exception e )
+            {
+                throw new RuntimeException ( e );
+            }
+        }, "watcher" );
+        this.thread.start ();
+
+        // give the watcher time to register the source folder
+        Thread.sleep ( 500 );
+    }
+
+    @After
+    public void stop () throws Exception
+    {
+        this.thread.interrupt ();
+        this.thread.join ( TIMEOUT );
+    }
+
+    private List<String> listPoolFiles () throws Exception
+    {
+        final List<String> result = new ArrayList<String> ();
+        for ( final String name : TestPackages.listFiles ( this.target.toPath () ) )
+        {
+            if ( name.startsWith ( "pool/" ) && name.endsWith ( ".deb" ) )
+            {
+                result.add ( name );
+            }
+        }
+        return result;
+    }
+
+    private List<String> listPackages () throws Exception
+    {
+        final List<String> result = new ArrayList<String> ();
+        for ( final String name : TestPackages.listFiles ( this.target.toPath () ) )
+        {
+            if ( name.endsWith ( "/Packages" ) )
+            {
+                for ( final String line : Files.readAllLines ( this.target.toPath ().resolve ( name ), StandardCharsets.UTF_8 ) )
+                {
+                    if ( line.startsWith ( "Package: " ) )
+                    {
+                        result.add ( line.substring ( "Package: ".length () ) );
+                    }
+                }
+            }
+        }
+        Collections.sort ( result );
+        return result;
+    }
+
+    /**
+     * Wait until the repository has the expected packages and pool files
+     */
+    private void awaitRepository ( final List<String> packages, final List<String> poolFiles ) throws Exception
+    {
+        final long end = System.currentTimeMillis () + TIMEOUT;
+        while ( System.currentTimeMillis () < end && ( !packages.equals ( listPackages () ) || !poolFiles.equals ( listPoolFiles () ) ) )
+        {
+            Thread.sleep ( 100 );
+        }
+
+        assertEquals ( packages, listPackages () );
+        assertEquals ( poolFiles, listPoolFiles () );
+    }
+
+    @Test
+    public void testAddChangeRemove () throws Exception
+    {
+        awaitRepository ( Arrays.asList ( "package1" ), Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb" ) );
+
+        // add
+        final File packageFile = TestPackages.createPackage ( this.source, "package2", "1.0", "amd64", 2 );
+        awaitRepository ( Arrays.asList ( "package1", "package2" ), Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb", "pool/main/p/package2/package2_1.0_amd64.deb" ) );
+
+        // change the package name, keeping the name of the package file
+        final File renamed = TestPackages.createPackage ( this.folder.newFolder ( "work" ), "renamed", "1.0", "amd64", 3 );
+        Files.move ( renamed.toPath (), packageFile.toPath (), StandardCopyOption.REPLACE_EXISTING );
+        awaitRepository ( Arrays.asList ( "package1", "renamed" ), Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb", "pool/main/r/renamed/package2_1.0_amd64.deb" ) );
+
+        // remove
+        Files.delete ( packageFile.toPath () );
+        awaitRepository ( Arrays.asList ( "package1" ), Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb" ) );
+    }
+}
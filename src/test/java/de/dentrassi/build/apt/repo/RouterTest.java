@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test routing packages to components
+ * 
+ * @author Jens Reimann
+ */
+public class RouterTest
+{
+    private Configuration configuration;
+
+    private Distribution dist;
+
+    private Component main;
+
+    private Component extra;
+
+    @Before
+    public void setup ()
+    {
+        this.configuration = new Configuration ();
+
+        this.dist = new Distribution ();
+        this.main = new Component ();
+        this.dist.addComponent ( this.main );
+        this.extra = new Component ();
+        this.extra.setName ( "extra" );
+        this.dist.addComponent ( this.extra );
+        this.configuration.addDistribution ( this.dist );
+    }
+
+    private void addRoute ( final Component component, final String packageName, final String section, final String filename )
+    {
+        final Route route = new Route ( this.dist.getName (), component.getName () );
+        route.setPackageName ( packageName );
+        route.setSection ( section );
+        route.setFilename ( filename );
+        this.configuration.addRoute ( route );
+    }
+
+    private static BinaryPackagePackagesFile makePackage ( final String name, final String section )
+    {
+        final BinaryPackagePackagesFile cf = new BinaryPackagePackagesFile ();
+        cf.set ( "Package", name );
+        if ( section != null )
+        {
+            cf.set ( "Section", section );
+        }
+        return cf;
+    }
+
+    private static boolean matches ( final String glob, final String value )
+    {
+        return Router.compileGlob ( glob ).matcher ( value ).matches ();
+    }
+
+    @Test
+    public void testGlob ()
+    {
+        assertNull ( Router.compileGlob ( null ) );
+
+        assertTrue ( matches ( "lib*", "libfoo" ) );
+        assertTrue ( matches ( "lib*", "lib" ) );
+        assertFalse ( matches ( "lib*", "foolib" ) );
+
+        assertTrue ( matches ( "foo?", "foo1" ) );
+        assertFalse ( matches ( "foo?", "foo" ) );
+        assertFalse ( matches ( "foo?", "foo12" ) );
+
+        assertTrue ( matches ( "*", "" ) );
+        assertTrue ( matches ( "*", "line1\nline2" ) );
+    }
+
+    /**
+     * Everything besides <code>*</code> and <code>?</code> is matched
+     * literally
+     */
+    @Test
+    public void testGlobLiteral ()
+    {
+        assertTrue ( matches ( "lib+x.*", "lib+x.so" ) );
+        assertFalse ( matches ( "lib+x.*", "libbx.so" ) );
+        assertFalse ( matches ( "lib+x.*", "lib+xso" ) );
+
+        assertTrue ( matches ( "a[1]\\E(b)", "a[1]\\E(b)" ) );
+        assertFalse ( matches ( "a[1]", "a1" ) );
+
+        assertEquals ( Pattern.DOTALL, Router.compileGlob ( "x" ).flags () );
+    }
+
+    @Test
+    public void testEmpty ()
+    {
+        final Router router = new Router ( this.configuration );
+        assertTrue ( router.isEmpty () );
+        assertEquals ( Collections.emptyList (), router.route ( makePackage ( "package1", null ), new File ( "package1.deb" ) ) );
+    }
+
+    @Test
+    public void testRoute ()
+    {
+        addRoute ( this.main, "lib*", null, null );
+        addRoute ( this.extra, null, "contrib/*", null );
+        addRoute ( this.extra, null, null, "*_amd64.deb" );
+
+        final Router router = new Router ( this.configuration );
+        assertFalse ( router.isEmpty () );
+
+        assertEquals ( Arrays.asList ( this.main ), router.route ( makePackage ( "libfoo", "libs" ), new File ( "libfoo_1.0_i386.deb" ) ) );
+        assertEquals ( Arrays.asList ( this.extra ), router.route ( makePackage ( "foo", "contrib/net" ), new File ( "foo_1.0_i386.deb" ) ) );
+        assertEquals ( Arrays.asList ( this.extra ), router.route ( makePackage ( "foo", "net" ), new File ( "foo_1.0_amd64.deb" ) ) );
+
+        // no match
+        assertEquals ( Collections.emptyList (), router.route ( makePackage ( "foo", "net" ), new File ( "foo_1.0_i386.deb" ) ) );
+
+        // a missing field does not match a pattern
+        assertEquals ( Collections.emptyList (), router.route ( makePackage ( "foo", null ), new File ( "foo_1.0_i386.deb" ) ) );
+    }
+
+    @Test
+    public void testAllConditions ()
+    {
+        addRoute ( this.extra, "lib*", "libs", "*.deb" );
+
+        final Router router = new Router ( this.configuration );
+
+        assertEquals ( Arrays.asList ( this.extra ), router.route ( makePackage ( "libfoo", "libs" ), new File ( "libfoo.deb" ) ) );
+        assertEquals ( Collections.emptyList (), router.route ( makePackage ( "libfoo", "net" ), new File ( "libfoo.deb" ) ) );
+        assertEquals ( Collections.emptyList (), router.route ( makePackage ( "libfoo", "libs" ), new File ( "libfoo.udeb" ) ) );
+    }
+
+    /**
+     * All matching components are returned in the order of the routes, each
+     * of them once
+     */
+    @Test
+    public void testMultipleMatches ()
+    {
+        addRoute ( this.extra, "lib*", null, null );
+        addRoute ( this.main, null, null, null );
+        addRoute ( this.extra, null, "libs", null );
+
+        final Router router = new Router ( this.configuration );
+
+        assertEquals ( Arrays.asList ( this.extra, this.main ), router.route ( makePackage ( "libfoo", "libs" ), new File ( "libfoo.deb" ) ) );
+        assertEquals ( Arrays.asList ( this.main ), router.route ( makePackage ( "foo", "net" ), new File ( "foo.deb" ) ) );
+    }
+
+    @Test ( expected = IllegalStateException.class )
+    public void testUnknownComponent ()
+    {
+        this.configuration.addRoute ( new Route ( this.dist.getName (), "unknown" ) );
+        new Router ( this.configuration );
+    }
+
+    @Test ( expected = IllegalStateException.class )
+    public void testUnknownDistribution ()
+    {
+        this.configuration.addRoute ( new Route ( "unknown", this.main.getName () ) );
+        new Router ( this.configuration );
+    }
+}
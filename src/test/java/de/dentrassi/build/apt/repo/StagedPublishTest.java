@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test publishing a repository through a staging folder
+ * 
+ * @author Jens Reimann
+ */
+public class StagedPublishTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File source;
+
+    private File target;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.source = this.folder.newFolder ( "source" );
+        TestPackages.createPackage ( this.source, "package1", "1.0", "amd64", 1 );
+
+        this.target = new File ( this.folder.getRoot (), "repo" );
+    }
+
+    private AptWriter build ( final File source, final PublishStrategy strategy ) throws Exception
+    {
+        final Configuration configuration = TestPackages.createConfiguration ( source, this.target );
+        configuration.setUpdate ( true );
+        configuration.setPublishStrategy ( strategy );
+
+        final AptWriter writer = new AptWriter ( configuration, TestPackages.QUIET );
+        writer.build ();
+        return writer;
+    }
+
+    /**
+     * Build from a source folder which doesn't exist, after the staging
+     * folder was prepared
+     */
+    private void buildFailing ( final PublishStrategy strategy ) throws Exception
+    {
+        final Configuration configuration = TestPackages.createConfiguration ( new File ( this.folder.getRoot (), "missing" ), this.target );
+        configuration.setUpdate ( true );
+        configuration.setPublishStrategy ( strategy );
+
+        final AptWriter writer = new AptWriter ( configuration, TestPackages.QUIET );
+        try
+        {
+            writer.build ();
+            fail ( "Build must fail for a missing source folder" );
+        }
+        catch ( final IllegalStateException e )
+        {
+            // expected
+        }
+
+        assertEquals ( this.target, writer.getConfiguration ().getTargetFolder () );
+    }
+
+    private List<String> listSiblings () throws Exception
+    {
+        final List<String> result = new ArrayList<String> ();
+        for ( final String name : this.folder.getRoot ().list () )
+        {
+            if ( name.startsWith ( this.target.getName () ) )
+            {
+                result.add ( name );
+            }
+        }
+        Collections.sort ( result );
+        return result;
+    }
+
+    private List<String> listPoolFiles () throws Exception
+    {
+        final List<String> result = new ArrayList<String> ();
+        // the target folder may be a symbolic link
+        for ( final String name : TestPackages.listFiles ( this.target.toPath ().toRealPath () ) )
+        {
+            if ( name.startsWith ( "pool/" ) )
+            {
+                result.add ( name );
+            }
+        }
+        return result;
+    }
+
+    private Path resolveRelease () throws Exception
+    {
+        assertTrue ( Files.isSymbolicLink ( this.target.toPath () ) );
+        return this.target.toPath ().toRealPath ();
+    }
+
+    @Test
+    public void testRename () throws Exception
+    {
+        final AptWriter writer = build ( this.source, PublishStrategy.RENAME );
+        assertEquals ( this.target, writer.getConfiguration ().getTargetFolder () );
+        assertEquals ( Arrays.asList ( "repo" ), listSiblings () );
+        assertEquals ( Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb" ), listPoolFiles () );
+
+        TestPackages.createPackage ( this.source, "package2", "1.0", "amd64", 2 );
+        build ( this.source, PublishStrategy.RENAME );
+        assertEquals ( Arrays.asList ( "repo" ), listSiblings () );
+        assertEquals ( Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb", "pool/main/p/package2/package2_1.0_amd64.deb" ), listPoolFiles () );
+    }
+
+    @Test
+    public void testRenameAbort () throws Exception
+    {
+        build ( this.source, PublishStrategy.RENAME );
+        final List<String> files = TestPackages.listFiles ( this.target.toPath () );
+
+        buildFailing ( PublishStrategy.RENAME );
+
+        assertEquals ( Arrays.asList ( "repo" ), listSiblings () );
+        assertEquals ( files, TestPackages.listFiles ( this.target.toPath () ) );
+    }
+
+    @Test
+    public void testSymlink () throws Exception
+    {
+        final AptWriter writer = build ( this.source, PublishStrategy.SYMLINK );
+        assertEquals ( this.target, writer.getConfiguration ().getTargetFolder () );
+        final Path first = resolveRelease ();
+        assertEquals ( Arrays.asList ( "repo", first.getFileName ().toString () ), listSiblings () );
+
+        TestPackages.createPackage ( this.source, "package2", "1.0", "amd64", 2 );
+        build ( this.source, PublishStrategy.SYMLINK );
+        final Path second = resolveRelease ();
+        assertFalse ( first.equals ( second ) );
+        assertEquals ( Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb", "pool/main/p/package2/package2_1.0_amd64.deb" ), listPoolFiles () );
+
+        // the previous release is kept for clients still downloading from it
+        assertEquals ( Arrays.asList ( "repo", first.getFileName ().toString (), second.getFileName ().toString () ), listSiblings () );
+        assertTrue ( Files.isDirectory ( first ) );
+
+        build ( this.source, PublishStrategy.SYMLINK );
+        final Path third = resolveRelease ();
+
+        // older releases are deleted
+        assertEquals ( Arrays.asList ( "repo", second.getFileName ().toString (), third.getFileName ().toString () ), listSiblings () );
+    }
+
+    @Test
+    public void testSymlinkAbort () throws Exception
+    {
+        build ( this.source, PublishStrategy.SYMLINK );
+        final Path release = resolveRelease ();
+        final List<String> siblings = listSiblings ();
+        final List<String> files = TestPackages.listFiles ( release );
+
+        buildFailing ( PublishStrategy.SYMLINK );
+
+        assertEquals ( release, resolveRelease () );
+        assertEquals ( siblings, listSiblings () );
+        assertEquals ( files, TestPackages.listFiles ( release ) );
+    }
+
+    @Test
+    public void testSymlinkReplacesFolder () throws Exception
+    {
+        build ( this.source, PublishStrategy.DIRECT );
+        assertFalse ( Files.isSymbolicLink ( this.target.toPath () ) );
+
+        build ( this.source, PublishStrategy.SYMLINK );
+        final Path release = resolveRelease ();
+
+        // the folder is kept as previous release
+        final List<String> expected = new ArrayList<String> ( Arrays.asList ( "repo", "repo.old", release.getFileName ().toString () ) );
+        Collections.sort ( expected );
+        assertEquals ( expected, listSiblings () );
+        assertEquals ( Arrays.asList ( "pool/main/p/package1/package1_1.0_amd64.deb" ), listPoolFiles () );
+    }
+}
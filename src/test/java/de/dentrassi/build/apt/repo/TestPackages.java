@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Jens Reimann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dentrassi.build.apt.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.vafer.jdeb.Console;
+import org.vafer.jdeb.DataProducer;
+import org.vafer.jdeb.DebMaker;
+import org.vafer.jdeb.mapping.Mapper;
+import org.vafer.jdeb.producers.DataProducerFile;
+
+/**
+ * Package files and helpers for the tests
+ * <p>
+ * This class doesn't depend on JUnit, the benchmarks use it as well.
+ * </p>
+ * 
+ * @author Jens Reimann
+ */
+final class TestPackages
+{
+    /**
+     * A console which drops all messages
+     */
+    static final Console QUIET = new Console () {
+
+        @Override
+        public void debug ( final String message )
+        {
+        }
+
+        @Override
+        public void info ( final String message )
+        {
+        }
+
+        @Override
+        public void warn ( final String message )
+        {
+        }
+    };
+
+    private TestPackages ()
+    {
+    }
+
+    /**
+     * Create a package file
+     * <p>
+     * The file is named <code>&lt;name&gt;_&lt;version&gt;_&lt;architecture&gt;.deb</code>.
+     * Its payload is random, created from the seed.
+     * </p>
+     * 
+     * @param dir
+     *            the directory to create the package in
+     * @param name
+     *            the name of the package
+     * @param version
+     *            the version of the package
+     * @param architecture
+     *            the architecture of the package
+     * @param seed
+     *            the seed of the payload
+     * @return the package file
+     */
+    static File createPackage ( final File dir, final String name, final String version, final String architecture, final long seed ) throws Exception
+    {
+        final byte[] payload = new byte[1024 + (int) ( seed % 4096 )];
+        new Random ( seed ).nextBytes ( payload );
+
+        return createPackage ( dir, name, version, architecture, null, payload );
+    }
+
+    /**
+     * Create a package file with dependencies and a specific payload
+     * 
+     * @param dir
+     *            the directory to create the package in
+     * @param name
+     *            the name of the package
+     * @param version
+     *            the version of the package
+     * @param architecture
+     *            the architecture of the package
+     * @param depends
+     *            the value of the <code>Depends</code> field, may be
+     *            <code>null</code>
+     * @param payload
+     *            the content of the single data file of the package
+     * @return the package file
+     */
+    static File createPackage ( final File dir, final String name, final String version, final String architecture, final String depends, final byte[] payload ) throws Exception
+    {
+        final Path work = Files.createTempDirectory ( "apt-repo-test-" );
+        try
+        {
+            final File controlDir = new File ( work.toFile (), "control" );
+            controlDir.mkdirs ();
+
+            final StringBuilder control = new StringBuilder ();
+            control.append ( "Package: " ).append ( name ).append ( '\n' );
+            control.append ( "Version: " ).append ( version ).append ( '\n' );
+            control.append ( "Section: misc" ).append ( '\n' );
+            control.append ( "Priority: optional" ).append ( '\n' );
+            control.append ( "Architecture: " ).append ( architecture ).append ( '\n' );
+            control.append ( "Maintainer: Jens Reimann <ctron@dentrassi.de>" ).append ( '\n' );
+            if ( depends != null )
+            {
+                control.append ( "Depends: " ).append ( depends ).append ( '\n' );
+            }
+            control.append ( "Description: Test package " ).append ( name ).append ( '\n' );
+            control.append ( " This package was generated for testing." ).append ( '\n' );
+            Files.write ( new File ( controlDir, "control" ).toPath (), control.toString ().getBytes ( StandardCharsets.UTF_8 ) );
+
+            final File data = new File ( work.toFile (), "data.bin" );
+            Files.write ( data.toPath (), payload );
+
+            dir.mkdirs ();
+            final File debFile = new File ( dir, name + "_" + version + "_" + architecture + ".deb" );
+
+            final DataProducer producer = new DataProducerFile ( data, "/usr/share/" + name + "/data.bin", null, null, new Mapper[0] );
+
+            final DebMaker maker = new DebMaker ( QUIET, Collections.singletonList ( producer ), Collections.<DataProducer> emptyList () );
+            maker.setControl ( controlDir );
+            maker.setDeb ( debFile );
+            maker.setCompression ( "gzip" );
+            maker.setOutputTimestampMs ( 0L );
+            maker.makeDeb ();
+
+            return debFile;
+        }
+        finally
+        {
+            delete ( work );
+        }
+    }
+
+    /**
+     * Create a configuration with a single distribution and component
+     * 
+     * @param source
+     *            the source folder
+     * @param target
+     *            the target folder
+     * @return the new configuration
+     */
+    static Configuration createConfiguration ( final File source, final File target )
+    {
+        final Configuration configuration = new Configuration ();
+        configuration.setSourceFolder ( source );
+        configuration.setTargetFolder ( target );
+
+        final Distribution dist = new Distribution ();
+        final Component comp = new Component ();
+        dist.addComponent ( comp );
+        configuration.addDistribution ( dist );
+
+        return configuration;
+    }
+
+    /**
+     * List all files of a tree, relative to its root and sorted
+     */
+    static List<String> listFiles ( final Path root ) throws IOException
+    {
+        try ( final Stream<Path> paths = Files.walk ( root ) )
+        {
+            final List<String> result = paths.filter ( Files::isRegularFile ).map ( p -> root.relativize ( p ).toString ().replace ( File.separatorChar, '/' ) ).collect ( Collectors.toCollection ( ArrayList<String>::new ) );
+            Collections.sort ( result );
+            return result;
+        }
+    }
+
+    /**
+     * Delete a file or directory recursively
+     */
+    static void delete ( final Path path ) throws IOException
+    {
+        if ( !Files.exists ( path ) )
+        {
+            return;
+        }
+
+        try ( final Stream<Path> paths = Files.walk ( path ) )
+        {
+            final Path[] all = paths.sorted ( Collections.reverseOrder () ).toArray ( Path[]::new );
+            for ( final Path p : all )
+            {
+                Files.delete ( p );
+            }
+        }
+    }
+}